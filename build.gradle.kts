@@ -3,6 +3,7 @@ plugins {
     id("war")
     id("com.github.johnrengelman.shadow") version "7.1.2"
     id("application")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "org.example"
@@ -12,8 +13,16 @@ repositories {
     mavenCentral()
 }
 
+// The resampler uses the incubating Vector API when the JVM is started with this flag, scalar code otherwise
+val vectorModule = listOf("--add-modules", "jdk.incubator.vector")
+
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(vectorModule)
+}
+
 application {
     mainClass.set("com.henryhung.aws.ImageProcessingServer")
+    applicationDefaultJvmArgs = vectorModule
 }
 
 tasks.shadowJar {
@@ -28,15 +37,69 @@ tasks.war {
     archiveClassifier.set("")
 }
 
+// AppCDS archive of the classes the worker loads while it warms up; start the jar with
+// -XX:SharedArchiveFile=build/libs/ImageProcessingServer.jsa to map them instead of loading them again.
+// It only fits this jar on the JDK that recorded it, so run the java that will run the worker.
+tasks.register<Exec>("cdsArchive") {
+    description = "Records an AppCDS archive by running the worker jar with --warmup-only."
+    group = "build"
+    dependsOn(tasks.shadowJar)
+    val jar = tasks.shadowJar.get().archiveFile.get().asFile
+    val archive = layout.buildDirectory.file("libs/ImageProcessingServer.jsa").get().asFile
+    inputs.file(jar)
+    outputs.file(archive)
+    doFirst { archive.delete() }
+    commandLine(listOf("java", "-XX:ArchiveClassesAtExit=${archive.path}") + vectorModule + listOf("-jar", jar.path, "--warmup-only"))
+}
+
+// Load generator in src/loadtest/java, kept out of the WAR and the worker jar
+val loadtest by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations["loadtestImplementation"].extendsFrom(configurations.implementation.get())
+configurations["loadtestRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
 dependencies {
     implementation("software.amazon.awssdk:s3:2.17.89")
     implementation("software.amazon.awssdk:sqs:2.17.89")
     implementation("software.amazon.awssdk:ec2:2.17.89")
+    implementation("software.amazon.awssdk:netty-nio-client:2.17.89")
     implementation("javax.servlet:javax.servlet-api:4.0.1")
+    "loadtestImplementation"("org.hdrhistogram:HdrHistogram:2.1.12")
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+    // SeparableResamplerTest compares the Vector API resampler with the scalar one
+    jvmArgs(vectorModule)
+}
+
+// Benchmarks in src/jmh/java, run with `./gradlew jmh`; narrow them with e.g. -Pjmh.includes=ImageProcessingBenchmark.resample
+jmh {
+    jmhVersion.set("1.37")
+    benchmarkMode.set(listOf("thrpt", "avgt"))
+    timeUnit.set("ms")
+    profilers.set(listOf("gc"))
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("2s")
+    iterations.set(5)
+    timeOnIteration.set("2s")
+    jvmArgs.set(listOf("-Xmx4g") + vectorModule)
+    resultFormat.set("JSON")
+    (project.findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+}
+// Open-loop load test, e.g. `./gradlew loadTest -Ploadtest.rate=50 -Ploadtest.target=client -Ptransport=memory`
+tasks.register<JavaExec>("loadTest") {
+    description = "Runs the open-loop load generator against /processImage or ImageUploadClient."
+    group = "verification"
+    classpath = loadtest.runtimeClasspath
+    mainClass.set("com.henryhung.loadtest.LoadGenerator")
+    jvmArgs(listOf("-Xmx4g") + vectorModule)
+    val prefixes = listOf("loadtest.", "transport", "worker.", "client.", "queue.", "aws.", "sqs.")
+    systemProperties(project.properties.filterKeys { key -> prefixes.any { key.startsWith(it) } })
+}
@@ -0,0 +1,75 @@
+package com.henryhung.benchmark;
+
+import com.henryhung.utils.ImageUtils;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Synthetic inputs for the benchmarks: smooth gradients with noise and shapes, so encoders and decoders see
+// roughly photo-like entropy instead of a flat image that compresses to nothing
+public class BenchmarkImages {
+
+    public enum Size {
+        SMALL(1024, 768),
+        MP12(4000, 3000),
+        MP48(8000, 6000);
+
+        private final int width;
+        private final int height;
+
+        Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private BenchmarkImages() {
+    }
+
+    public static BufferedImage create(Size size) {
+        BufferedImage image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), size.width, size.height, new Color(240, 200, 120)));
+            g2d.fillRect(0, 0, size.width, size.height);
+            Random random = new Random(3358);
+            for (int i = 0; i < 200; i++) {
+                g2d.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 128));
+                g2d.fillOval(random.nextInt(size.width), random.nextInt(size.height), size.width / 10, size.height / 10);
+            }
+        } finally {
+            g2d.dispose();
+        }
+
+        // Sensor-like noise on every pixel
+        Random random = new Random(3035782750L);
+        int[] row = new int[size.width];
+        for (int y = 0; y < size.height; y++) {
+            image.getRGB(0, y, size.width, 1, row, 0, size.width);
+            for (int x = 0; x < size.width; x++) {
+                int noise = random.nextInt(9) - 4;
+                int r = clamp(((row[x] >> 16) & 0xff) + noise);
+                int g = clamp(((row[x] >> 8) & 0xff) + noise);
+                int b = clamp((row[x] & 0xff) + noise);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, size.width, 1, row, 0, size.width);
+        }
+        return image;
+    }
+
+    public static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageUtils.writeImage(image, format, output);
+        return output.toByteArray();
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,60 @@
+package com.henryhung.benchmark;
+
+import com.henryhung.utils.ImageMagick;
+import com.henryhung.utils.ImageUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// End to end comparison of the `convert` subprocess against the in-JVM engine, both file to file like the
+// worker's disk path. Requires ImageMagick on the PATH.
+@State(Scope.Thread)
+public class ImageMagickBenchmark {
+
+    private static final int OUTPUT_SIZE = 512;
+
+    @Param({"SMALL", "MP12", "MP48"})
+    public BenchmarkImages.Size size;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    private File inputFile;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        inputFile = File.createTempFile("benchmark-input-", "." + format);
+        outputFile = File.createTempFile("benchmark-output-", "." + format);
+        Files.write(inputFile.toPath(), BenchmarkImages.encode(BenchmarkImages.create(size), format));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        inputFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public long imageMagick() throws IOException, InterruptedException {
+        int exitValue = ImageMagick.resizeImage(inputFile, outputFile, OUTPUT_SIZE, OUTPUT_SIZE, 60);
+        if (exitValue != 0) {
+            throw new IOException("convert failed with exit value " + exitValue);
+        }
+        return outputFile.length();
+    }
+
+    @Benchmark
+    public long java() throws IOException {
+        ImageUtils.resizeImage(inputFile, outputFile, OUTPUT_SIZE, OUTPUT_SIZE);
+        return outputFile.length();
+    }
+}
@@ -0,0 +1,98 @@
+package com.henryhung.benchmark;
+
+import com.henryhung.utils.ImageUtils;
+import com.henryhung.utils.ParallelPngEncoder;
+import com.henryhung.utils.PooledResizer;
+import com.henryhung.utils.ReusableByteArrayOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+// The in-JVM worker path, stage by stage and end to end, as the streaming worker runs it:
+// subsampled decode from memory, fit-and-letterbox to 512x512, encode into a reused buffer.
+// The pooled* variants go through PooledResizer; compare their gc.alloc.rate.norm with the others.
+@State(Scope.Thread)
+public class ImageProcessingBenchmark {
+
+    private static final int OUTPUT_SIZE = 512;
+
+    @Param({"SMALL", "MP12", "MP48"})
+    public BenchmarkImages.Size size;
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    @Param({"PROGRESSIVE_BICUBIC", "LANCZOS3"})
+    public String filter;
+
+    private byte[] encodedInput;
+    private BufferedImage decodedInput;
+    private BufferedImage resizedOutput;
+    private ImageUtils.ResampleFilter resampleFilter;
+    private final ReusableByteArrayOutputStream outputBuffer = new ReusableByteArrayOutputStream(512 * 1024);
+    private PooledResizer resizer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        resampleFilter = ImageUtils.ResampleFilter.fromName(filter);
+        resizer = new PooledResizer(Long.MAX_VALUE);
+        encodedInput = BenchmarkImages.encode(BenchmarkImages.create(size), format);
+        decodedInput = ImageUtils.readImage(new ByteArrayInputStream(encodedInput), OUTPUT_SIZE, OUTPUT_SIZE);
+        resizedOutput = ImageUtils.fitAndLetterbox(decodedInput, OUTPUT_SIZE, OUTPUT_SIZE, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageUtils.readImage(new ByteArrayInputStream(encodedInput), OUTPUT_SIZE, OUTPUT_SIZE);
+    }
+
+    @Benchmark
+    public BufferedImage resample() {
+        return ImageUtils.fitAndLetterbox(decodedInput, OUTPUT_SIZE, OUTPUT_SIZE, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        outputBuffer.reset();
+        ImageUtils.writeImage(resizedOutput, format, outputBuffer);
+        return outputBuffer.size();
+    }
+
+    @Benchmark
+    public int endToEnd() throws IOException {
+        BufferedImage image = ImageUtils.readImage(new ByteArrayInputStream(encodedInput), OUTPUT_SIZE, OUTPUT_SIZE);
+        BufferedImage resized = ImageUtils.fitAndLetterbox(image, OUTPUT_SIZE, OUTPUT_SIZE, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+        outputBuffer.reset();
+        ImageUtils.writeImage(resized, format, outputBuffer);
+        return outputBuffer.size();
+    }
+
+    // Always PNG; compare with encode at format=png
+    @Benchmark
+    public int parallelPngEncode() throws IOException {
+        outputBuffer.reset();
+        ParallelPngEncoder.shared().write(resizedOutput, outputBuffer);
+        return outputBuffer.size();
+    }
+
+    @Benchmark
+    public BufferedImage pooledResample() {
+        return resizer.fitAndLetterbox(decodedInput, OUTPUT_SIZE, OUTPUT_SIZE, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+    }
+
+    @Benchmark
+    public int pooledEndToEnd() throws IOException {
+        BufferedImage image = resizer.readImage(new ByteArrayInputStream(encodedInput), OUTPUT_SIZE, OUTPUT_SIZE);
+        BufferedImage resized = resizer.fitAndLetterbox(image, OUTPUT_SIZE, OUTPUT_SIZE, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+        outputBuffer.reset();
+        resizer.writeImage(resized, format, outputBuffer);
+        return outputBuffer.size();
+    }
+}
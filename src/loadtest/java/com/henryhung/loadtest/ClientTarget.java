@@ -0,0 +1,56 @@
+package com.henryhung.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.henryhung.aws.ImageProcessingServer;
+import com.henryhung.aws.ImageUploadClient;
+import com.henryhung.utils.ThreadUtils;
+
+// Drives ImageUploadClient directly, leaving Tomcat out of the measurement. With transport=memory the worker
+// can run in this JVM as well, which makes the whole pipeline testable on one machine without AWS.
+public class ClientTarget implements LoadTarget {
+
+    private final ImageUploadClient client = new ImageUploadClient();
+    private final ImageProcessingServer worker;
+    // The upload and the inbox send are blocking; keep them off the thread that paces arrivals
+    private final ExecutorService uploadExecutor;
+
+    public ClientTarget(int concurrency, boolean embeddedWorker) {
+        uploadExecutor = Executors.newFixedThreadPool(concurrency, ThreadUtils.daemonThreadFactory("loadtest-upload"));
+        if (embeddedWorker) {
+            worker = new ImageProcessingServer();
+            worker.start();
+        } else {
+            worker = null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(String fileName, byte[] image) {
+        return CompletableFuture.supplyAsync(() -> client.uploadAndProcessAsync(fileName, new ByteArrayInputStream(image)), uploadExecutor)
+                .thenCompose(result -> result)
+                .thenAccept(processedImage -> {
+                    try (InputStream processed = processedImage.getInputStream()) {
+                        if (processed.readAllBytes().length == 0) {
+                            throw new IllegalStateException("Empty processed image " + processedImage.getKey());
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+    }
+
+    @Override
+    public void close() {
+        uploadExecutor.shutdownNow();
+        client.close();
+        if (worker != null) {
+            worker.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.henryhung.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.henryhung.utils.ThreadUtils;
+
+// Posts each image to /processImage as the frontend does: multipart/form-data with an "image" part. The answer
+// is a job, which is long-polled on its status URL and followed to the result (see JobServlet), so a request
+// completes once the processed image has been downloaded.
+public class HttpTarget implements LoadTarget {
+
+    // The servlet caps it at servlet.jobs.maxWaitSeconds
+    private static final int WAIT_SECONDS = 30;
+
+    private final URI uri;
+    private final Duration timeout;
+    private final ExecutorService executor = Executors.newCachedThreadPool(ThreadUtils.daemonThreadFactory("loadtest-http"));
+    private final HttpClient httpClient;
+
+    public HttpTarget(URI uri, Duration timeout) {
+        this.uri = uri;
+        this.timeout = timeout;
+        this.httpClient = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<Void> submit(String fileName, byte[] image) {
+        String boundary = "loadtest-" + UUID.randomUUID();
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(multipartBody(boundary, fileName, image)))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenCompose(response -> {
+                    String location = response.headers().firstValue("Location").orElse(null);
+                    if (response.statusCode() != 202 || location == null) {
+                        throw new StatusException(response.statusCode());
+                    }
+                    URI status = uri.resolve(location);
+                    return awaitResult(URI.create(status + (status.getQuery() == null ? "?" : "&") + "wait=" + WAIT_SECONDS));
+                });
+    }
+
+    // 202 means the job is still running after the wait; a finished job redirects to its result
+    private CompletableFuture<Void> awaitResult(URI status) {
+        HttpRequest request = HttpRequest.newBuilder(status)
+                .timeout(timeout)
+                .GET()
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenCompose(response -> {
+                    if (response.statusCode() == 202) {
+                        return awaitResult(status);
+                    }
+                    if (response.statusCode() != 200 || response.body().length == 0) {
+                        throw new StatusException(response.statusCode());
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    private static byte[] multipartBody(String boundary, String fileName, byte[] image) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(image.length + 256);
+        try {
+            body.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"image\"; filename=\"" + fileName + "\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            body.write(image);
+            body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return body.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // A response that is not a processed image; reported by status code
+    public static class StatusException extends RuntimeException {
+        private final int statusCode;
+
+        public StatusException(int statusCode) {
+            super("HTTP " + statusCode);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.henryhung.loadtest;
+
+import com.henryhung.utils.ImageUtils;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Weighted mix of synthetic input sizes, e.g. "small:70,medium:25,large:5" or "1024x768:1,4000x3000:1".
+// Each size is encoded once up front so the generator spends no time on it while pacing requests.
+public class ImageMix {
+
+    private static final String[][] PRESETS = {
+            {"small", "800x600"},
+            {"medium", "1920x1080"},
+            {"large", "4032x3024"},
+            {"huge", "8000x6000"},
+    };
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final int totalWeight;
+
+    public ImageMix(String spec, String format) throws IOException {
+        int total = 0;
+        for (String item : spec.split(",")) {
+            String[] parts = item.trim().split(":");
+            String size = preset(parts[0].trim());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            String[] dimensions = size.split("x");
+            int width = Integer.parseInt(dimensions[0]);
+            int height = Integer.parseInt(dimensions[1]);
+            byte[] image = encode(create(width, height), format);
+            entries.add(new Entry(parts[0].trim(), weight, image));
+            total += weight;
+        }
+        if (entries.isEmpty() || total <= 0) {
+            throw new IllegalArgumentException("Image mix needs at least one size with a positive weight: " + spec);
+        }
+        totalWeight = total;
+    }
+
+    public Entry pick() {
+        int target = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Entry entry : entries) {
+            target -= entry.weight;
+            if (target < 0) {
+                return entry;
+            }
+        }
+        return entries.get(entries.size() - 1);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    private static String preset(String name) {
+        for (String[] preset : PRESETS) {
+            if (preset[0].equalsIgnoreCase(name)) {
+                return preset[1];
+            }
+        }
+        return name;
+    }
+
+    // Gradient, shapes and per-pixel noise, so the encoded size and decode cost are close to a photo's
+    private static BufferedImage create(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), width, height, new Color(240, 200, 120)));
+            g2d.fillRect(0, 0, width, height);
+            Random random = new Random(3358);
+            for (int i = 0; i < 200; i++) {
+                g2d.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 128));
+                g2d.fillOval(random.nextInt(width), random.nextInt(height), width / 10, height / 10);
+            }
+        } finally {
+            g2d.dispose();
+        }
+
+        Random random = new Random(3035782750L);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(9) - 4;
+                int r = clamp(((row[x] >> 16) & 0xff) + noise);
+                int g = clamp(((row[x] >> 8) & 0xff) + noise);
+                int b = clamp((row[x] & 0xff) + noise);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageUtils.writeImage(image, format, output);
+        return output.toByteArray();
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    public static class Entry {
+        private final String name;
+        private final int weight;
+        private final byte[] image;
+
+        private Entry(String name, int weight, byte[] image) {
+            this.name = name;
+            this.weight = weight;
+            this.image = image;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return image.length;
+        }
+
+        // The encoded image followed by random bytes: decoders stop at the end of the image, but the servlet's
+        // result cache sees a new upload every time, so the load generator never measures cache hits
+        public byte[] uniqueCopy() {
+            byte[] copy = Arrays.copyOf(image, image.length + 16);
+            byte[] nonce = new byte[16];
+            ThreadLocalRandom.current().nextBytes(nonce);
+            System.arraycopy(nonce, 0, copy, image.length, nonce.length);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.henryhung.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.henryhung.transport.Transports;
+import com.henryhung.utils.Config;
+import com.henryhung.utils.ThreadUtils;
+
+// Open-loop load generator for the image pipeline. Requests are scheduled at a fixed arrival rate regardless of
+// how fast earlier ones complete, and every latency is measured from the time the request was scheduled to start.
+// A slow system therefore shows up as growing latency instead of silently lowering the offered load
+// (coordinated omission). Settings are loadtest.* properties, also accepted as --name=value arguments.
+public class LoadGenerator {
+
+    private final String target = Config.getString("loadtest.target", "http");
+    private final String url = Config.getString("loadtest.url", "http://localhost:8080/MyWebApp-1.0.0/processImage");
+    private final double rate = Double.parseDouble(Config.getString("loadtest.rate", "10"));
+    private final boolean poisson = "poisson".equalsIgnoreCase(Config.getString("loadtest.arrivals", "uniform"));
+    private final int concurrency = Config.getInt("loadtest.concurrency", 64);
+    private final long warmupSeconds = Config.getLong("loadtest.warmupSeconds", 10);
+    private final long durationSeconds = Config.getLong("loadtest.durationSeconds", 60);
+    private final long drainSeconds = Config.getLong("loadtest.drainSeconds", 60);
+    private final long timeoutSeconds = Config.getLong("loadtest.timeoutSeconds", 300);
+    private final long reportIntervalSeconds = Config.getLong("loadtest.reportIntervalSeconds", 5);
+    private final String mixSpec = Config.getString("loadtest.mix", "small:70,medium:25,large:5");
+    private final String format = Config.getString("loadtest.format", "jpg");
+    private final String histogramFile = Config.getString("loadtest.histogramFile", "");
+
+    // Microseconds from the scheduled start, and from the actual start, to the processed image being received
+    private final Recorder responseTimes = new Recorder(3);
+    private final Recorder serviceTimes = new Recorder(3);
+    private final Histogram totalResponseTimes = new Histogram(3);
+    private final Histogram totalServiceTimes = new Histogram(3);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder intervalSucceeded = new LongAdder();
+    private final LongAdder intervalFailed = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            // Pipeline settings such as transport or worker.parallelism pass through unchanged
+            System.setProperty(name.contains(".") || name.equals("transport") ? name : "loadtest." + name, arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator().run();
+    }
+
+    public void run() throws Exception {
+        ImageMix mix = new ImageMix(mixSpec, format);
+        for (ImageMix.Entry entry : mix.getEntries()) {
+            debug("Image " + entry.getName() + ": " + entry.getSize() + " bytes");
+        }
+
+        try (LoadTarget loadTarget = createTarget()) {
+            debug(String.format("Offering %.1f requests/s (%s arrivals) to %s for %ds after %ds of warm-up, at most %d in flight",
+                    rate, poisson ? "poisson" : "uniform", describeTarget(), durationSeconds, warmupSeconds, concurrency));
+            generate(loadTarget, mix);
+        }
+    }
+
+    private LoadTarget createTarget() {
+        if ("client".equalsIgnoreCase(target)) {
+            return new ClientTarget(concurrency, Config.getBoolean("loadtest.embeddedWorker", Transports.isInMemory()));
+        }
+        return new HttpTarget(URI.create(url), Duration.ofSeconds(timeoutSeconds));
+    }
+
+    private String describeTarget() {
+        return "client".equalsIgnoreCase(target) ? "ImageUploadClient (transport=" + Transports.transport() + ")" : url;
+    }
+
+    private void generate(LoadTarget loadTarget, ImageMix mix) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        double meanGapNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        Thread reporter = ThreadUtils.daemonThreadFactory("loadtest-report").newThread(() -> report(start, measureFrom));
+        reporter.start();
+
+        long sequence = 0;
+        double nextArrival = start;
+        while (nextArrival < end) {
+            long scheduled = (long) nextArrival;
+            nextArrival += poisson ? -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanGapNanos : meanGapNanos;
+
+            sleepUntil(scheduled);
+            // Waiting for a permit delays the request but not its scheduled start, so the wait is part of its latency
+            permits.acquire();
+            boolean measured = scheduled >= measureFrom;
+            long actualStart = System.nanoTime();
+            ImageMix.Entry entry = mix.pick();
+            sent.increment();
+            inFlight.incrementAndGet();
+            loadTarget.submit("loadtest-" + (sequence++) + "-" + entry.getName() + "." + format, entry.uniqueCopy())
+                    .orTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                    .whenComplete((ignored, error) -> {
+                        long now = System.nanoTime();
+                        inFlight.decrementAndGet();
+                        permits.release();
+                        if (!measured) {
+                            return;
+                        }
+                        if (error == null) {
+                            responseTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(now - scheduled));
+                            serviceTimes.recordValue(TimeUnit.NANOSECONDS.toMicros(now - actualStart));
+                            succeeded.increment();
+                            intervalSucceeded.increment();
+                        } else {
+                            errors.computeIfAbsent(describe(error), k -> new LongAdder()).increment();
+                            failed.increment();
+                            intervalFailed.increment();
+                        }
+                    });
+        }
+
+        debug("Stopped sending after " + sent.sum() + " requests, waiting for " + inFlight.get() + " in flight");
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(100);
+        }
+        reporter.interrupt();
+        reporter.join();
+        printSummary(TimeUnit.NANOSECONDS.toSeconds(end - measureFrom));
+    }
+
+    // Returns early once the thread is interrupted; parkNanos would return at once and spin until the deadline
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // One line per interval; warm-up intervals are shown but not added to the totals
+    private void report(long start, long measureFrom) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+        long next = start + intervalNanos;
+        while (!Thread.currentThread().isInterrupted()) {
+            sleepUntil(next);
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            printInterval(next, start, measureFrom, intervalNanos);
+            next += intervalNanos;
+        }
+        printInterval(System.nanoTime(), start, measureFrom, System.nanoTime() - (next - intervalNanos));
+    }
+
+    private void printInterval(long now, long start, long measureFrom, long intervalNanos) {
+        Histogram interval = responseTimes.getIntervalHistogram();
+        totalResponseTimes.add(interval);
+        totalServiceTimes.add(serviceTimes.getIntervalHistogram());
+        long ok = intervalSucceeded.sumThenReset();
+        long failures = intervalFailed.sumThenReset();
+        double seconds = Math.max(1e-9, intervalNanos / 1e9);
+        debug(String.format("%s t=%4ds completed=%7.1f/s errors=%d in-flight=%d p50=%s p99=%s max=%s",
+                now < measureFrom ? "[warm-up]" : "         ",
+                TimeUnit.NANOSECONDS.toSeconds(now - start), ok / seconds, failures, inFlight.get(),
+                millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)), millis(interval.getMaxValue())));
+    }
+
+    private void printSummary(long measuredSeconds) {
+        long ok = succeeded.sum();
+        long bad = failed.sum();
+        long total = ok + bad;
+        System.out.println();
+        System.out.println("=== Load test summary ===");
+        System.out.printf("Offered rate:      %.1f requests/s (%s arrivals)%n", rate, poisson ? "poisson" : "uniform");
+        System.out.printf("Throughput:        %.1f images/s over %ds%n", ok / (double) Math.max(1, measuredSeconds), measuredSeconds);
+        System.out.printf("Requests:          %d measured, %d succeeded, %d failed, %d unfinished%n", total, ok, bad, inFlight.get());
+        System.out.printf("Error rate:        %.2f%%%n", total == 0 ? 0 : 100.0 * bad / total);
+        errors.forEach((error, count) -> System.out.printf("  %-40s %d%n", error, count.sum()));
+        printPercentiles("Response time (from scheduled start)", totalResponseTimes);
+        printPercentiles("Service time (from actual start)", totalServiceTimes);
+
+        if (!histogramFile.isEmpty()) {
+            try (PrintStream output = new PrintStream(new FileOutputStream(histogramFile))) {
+                // Microseconds recorded, milliseconds reported; loads into the HdrHistogram plotter
+                totalResponseTimes.outputPercentileDistribution(output, 1000.0);
+                debug("Wrote response time distribution to " + histogramFile);
+            } catch (IOException e) {
+                debug("Failed to write " + histogramFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void printPercentiles(String title, Histogram histogram) {
+        System.out.println(title + " in ms:");
+        System.out.printf("  mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s%n",
+                millis((long) histogram.getMean()),
+                millis(histogram.getValueAtPercentile(50)),
+                millis(histogram.getValueAtPercentile(90)),
+                millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1f", micros / 1000.0);
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof HttpTarget.StatusException) {
+            return cause.getMessage();
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    private static void debug(String message) {
+        System.out.println("LoadGenerator: " + message);
+    }
+}
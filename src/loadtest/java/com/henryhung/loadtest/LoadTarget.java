@@ -0,0 +1,13 @@
+package com.henryhung.loadtest;
+
+import java.util.concurrent.CompletableFuture;
+
+// Where the load generator sends its images. A submission completes once the processed image has been received,
+// normally or exceptionally; it must not block the calling thread for longer than it takes to hand the request off.
+public interface LoadTarget extends AutoCloseable {
+
+    CompletableFuture<Void> submit(String fileName, byte[] image);
+
+    @Override
+    void close();
+}
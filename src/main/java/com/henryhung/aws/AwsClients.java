@@ -0,0 +1,126 @@
+package com.henryhung.aws;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+import java.time.Duration;
+
+import com.henryhung.utils.Config;
+
+// One set of non-blocking S3 and SQS clients per JVM. Both run on a single Netty connection pool, so requests
+// in flight wait on the event loop instead of holding a thread and a socket each. Users must not close the
+// clients; whoever owns the process calls closeShared() once at shutdown. The presigner signs URLs locally and
+// never touches the network.
+public class AwsClients implements AutoCloseable {
+
+    private static AwsClients shared;
+
+    private final SdkAsyncHttpClient httpClient;
+    private final S3AsyncClient s3;
+    private final SqsAsyncClient sqs;
+    private final S3Presigner presigner;
+
+    private AwsClients() {
+        Region region = Region.of(Config.getString("aws.region", "ap-southeast-1"));
+        AwsCredentialsProvider credentials = ProfileCredentialsProvider.create();
+
+        httpClient = NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(Config.getInt("aws.maxConnections", 200))
+                .maxPendingConnectionAcquires(Config.getInt("aws.maxPendingConnectionAcquires", 10_000))
+                .connectionTimeout(Duration.ofMillis(Config.getLong("aws.connectionTimeoutMillis", 2_000)))
+                .connectionAcquisitionTimeout(Duration.ofMillis(Config.getLong("aws.connectionAcquisitionTimeoutMillis", 10_000)))
+                // Must exceed the 20 s maximum long poll of ReceiveMessage
+                .readTimeout(Duration.ofMillis(Config.getLong("aws.readTimeoutMillis", 30_000)))
+                .writeTimeout(Duration.ofMillis(Config.getLong("aws.writeTimeoutMillis", 30_000)))
+                // Keep-alive: idle connections stay pooled this long before the reaper closes them
+                .connectionMaxIdleTime(Duration.ofMillis(Config.getLong("aws.connectionMaxIdleMillis", 60_000)))
+                .useIdleConnectionReaper(true)
+                .build();
+
+        ClientOverrideConfiguration overrides = ClientOverrideConfiguration.builder()
+                .apiCallTimeout(Duration.ofMillis(Config.getLong("aws.apiCallTimeoutMillis", 120_000)))
+                .build();
+
+        try {
+            s3 = S3AsyncClient.builder()
+                    .region(region)
+                    .credentialsProvider(credentials)
+                    .httpClient(httpClient)
+                    .overrideConfiguration(overrides)
+                    .build();
+            debug("S3 client created");
+        } catch (Exception e) {
+            debug("Failed to create S3 client");
+            httpClient.close();
+            throw e;
+        }
+
+        try {
+            sqs = SqsAsyncClient.builder()
+                    .region(region)
+                    .credentialsProvider(credentials)
+                    .httpClient(httpClient)
+                    .overrideConfiguration(overrides)
+                    .build();
+            debug("SQS client created");
+        } catch (Exception e) {
+            debug("Failed to create SQS client");
+            s3.close();
+            httpClient.close();
+            throw e;
+        }
+
+        presigner = S3Presigner.builder()
+                .region(region)
+                .credentialsProvider(credentials)
+                .build();
+    }
+
+    public static synchronized AwsClients shared() {
+        if (shared == null) {
+            shared = new AwsClients();
+        }
+        return shared;
+    }
+
+    // Close the shared clients if they were ever created; a later shared() call starts a new set
+    public static synchronized void closeShared() {
+        if (shared != null) {
+            shared.close();
+            shared = null;
+        }
+    }
+
+    public S3AsyncClient s3() {
+        return s3;
+    }
+
+    public SqsAsyncClient sqs() {
+        return sqs;
+    }
+
+    public S3Presigner presigner() {
+        return presigner;
+    }
+
+    @Override
+    public void close() {
+        s3.close();
+        sqs.close();
+        presigner.close();
+        // Clients don't close an HTTP client they were given
+        httpClient.close();
+        debug("Closed S3 and SQS clients");
+    }
+
+    private static void debug(String message) {
+        System.out.println("AwsClients: " + message);
+    }
+}
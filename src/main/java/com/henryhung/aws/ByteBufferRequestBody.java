@@ -0,0 +1,79 @@
+package com.henryhung.aws;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Request body over a region of an existing array, published in chunks as the HTTP client asks for them.
+// AsyncRequestBody.fromBytes/fromByteBuffer copy their input, which would double the heap held by every part.
+// Each subscription starts from the beginning, so the SDK can retry the request.
+class ByteBufferRequestBody implements AsyncRequestBody {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ByteBuffer content;
+
+    ByteBufferRequestBody(byte[] array, int offset, int length) {
+        this.content = ByteBuffer.wrap(array, offset, length).slice();
+    }
+
+    @Override
+    public Optional<Long> contentLength() {
+        return Optional.of((long) content.remaining());
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        ByteBuffer remaining = content.duplicate();
+        AtomicLong demand = new AtomicLong();
+        AtomicBoolean emitting = new AtomicBoolean();
+        AtomicBoolean done = new AtomicBoolean();
+
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    if (done.compareAndSet(false, true)) {
+                        subscriber.onError(new IllegalArgumentException("Requested " + n + " chunks"));
+                    }
+                    return;
+                }
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+                emit();
+            }
+
+            @Override
+            public void cancel() {
+                done.set(true);
+            }
+
+            // request() may be called again from inside onNext; only the outermost call emits
+            private void emit() {
+                while (!done.get() && emitting.compareAndSet(false, true)) {
+                    try {
+                        while (!done.get() && demand.get() > 0 && remaining.hasRemaining()) {
+                            ByteBuffer chunk = remaining.slice();
+                            chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+                            remaining.position(remaining.position() + chunk.remaining());
+                            demand.decrementAndGet();
+                            subscriber.onNext(chunk.asReadOnlyBuffer());
+                        }
+                        if (!remaining.hasRemaining() && done.compareAndSet(false, true)) {
+                            subscriber.onComplete();
+                        }
+                    } finally {
+                        emitting.set(false);
+                    }
+                    if (demand.get() == 0 || done.get()) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+}
@@ -1,61 +1,153 @@
 package com.henryhung.aws;
 
-import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
-import software.amazon.awssdk.services.sqs.model.Message;
-import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
-
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.henryhung.transport.Lane;
+import com.henryhung.transport.MessageQueue;
+import com.henryhung.transport.ObjectStore;
+import com.henryhung.transport.QueueMessage;
+import com.henryhung.transport.StoredObject;
+import com.henryhung.transport.Transports;
+import com.henryhung.utils.Config;
+import com.henryhung.utils.ImageMagick;
+import com.henryhung.utils.ImageMagickPool;
 import com.henryhung.utils.ImageUtils;
+import com.henryhung.utils.Metrics;
+import com.henryhung.utils.MetricsHttpServer;
+import com.henryhung.utils.MultiFrameResizer;
+import com.henryhung.utils.ParallelPngEncoder;
+import com.henryhung.utils.PooledResizer;
+import com.henryhung.utils.RecentKeys;
+import com.henryhung.utils.ReusableByteArrayOutputStream;
+import com.henryhung.utils.ThreadUtils;
 
-public class ImageProcessingServer {
+public class ImageProcessingServer implements AutoCloseable {
 
-    private final String bucketName = "bucket-comp3358-3035782750";
-    private final String inboxQueueUrl = "inbox-queue-comp3358-3035782750";
-    private final String outboxQueueUrl = "outbox-queue-comp3358-3035782750";
+    private final List<Lane> lanes = Lane.enabled();
+    private final String outboxQueueUrl = Transports.outboxQueue();
+    private final int sendDelaySeconds = Transports.sendDelaySeconds();
 
-    private final Region region;
-
-    private final S3Client s3;
-    private final SqsClient sqs;
+    private final ObjectStore store;
+    private final MessageQueue queue;
 
     private final String inputFolder = "assets/images/tmp/raw/";
     private final String outputFolder = "assets/images/tmp/processed/";
 
+    private enum Engine { JAVA, IMAGEMAGICK }
+
+    private enum Outcome { DONE, FAILED, USE_DISK }
+
+    // Encoded outputs are a few hundred KB; don't let one unusual image pin a large buffer to a worker thread
+    private static final int MAX_RETAINED_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    // SQS never returns more than 10 messages per receive
+    private static final int MAX_BATCH_SIZE = 10;
+
+    private final String mode = Config.getString("worker.mode", "concurrent");
+    // Edge lengths of the square outputs, smallest first; all of them come from a single decode of the source
+    private final List<Integer> outputSizes = ImageUtils.parseSizes(Config.getString("output.sizes", "512"));
+    private final int largestSize = outputSizes.get(outputSizes.size() - 1);
+    private final int parallelism = Math.max(1, Config.getInt("worker.parallelism", Runtime.getRuntime().availableProcessors()));
+    private final Engine engine = Engine.valueOf(Config.getString("worker.engine", "java").toUpperCase());
+    private final ImageUtils.ResampleFilter resampleFilter = ImageUtils.ResampleFilter.fromName(Config.getString("worker.resampleFilter", ImageUtils.DEFAULT_FILTER.name()));
+    private final boolean streaming = Config.getBoolean("worker.streaming", true);
+    // Decode, resample and encode with per-thread pooled pixel buffers instead of fresh images for every job
+    private final boolean pooledRasters = Config.getBoolean("worker.pooledRasters", true);
+    // Encode PNG outputs with ParallelPngEncoder ("parallel") or with ImageIO ("imageio")
+    private final boolean parallelPng = Config.getString("worker.pngEncoder", "parallel").equalsIgnoreCase("parallel");
+    // Frames of animated GIFs and multi-page TIFFs are resized on a shared pool, at most frameParallelism of
+    // one job at a time
+    private final int frameParallelism = Math.max(1, Config.getInt("worker.frameParallelism", parallelism));
+    private final ExecutorService frameExecutor = Executors.newFixedThreadPool(Math.max(1, Config.getInt("worker.frameThreads", parallelism)), ThreadUtils.daemonThreadFactory("frame-resizer"));
+    private final MultiFrameResizer frameResizer = new MultiFrameResizer(frameExecutor, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+    // Long-lived ImageMagick processes for the imagemagick engine and the fallback of the java engine
+    private ImageMagickPool magickPool;
+    private boolean magickPoolStarted;
+    private final long streamingMaxBytes = Config.getLong("worker.streamingMaxBytes", 32L * 1024 * 1024);
+    private final ThreadLocal<ReusableByteArrayOutputStream> outputBuffers = ThreadLocal.withInitial(() -> new ReusableByteArrayOutputStream(512 * 1024));
+    private final int visibilityTimeout = Math.max(2, Config.getInt("worker.visibilityTimeoutSeconds", 30));
+    // Keys whose result has gone to the outbox, and keys being processed right now, to recognise redelivered messages
+    private final RecentKeys completedKeys = new RecentKeys(Config.getInt("worker.completedKeys", 10000));
+    private final Set<String> keysInFlight = ConcurrentHashMap.newKeySet();
+
+    // Share of the polling and of the workers each lane gets, and the resulting number of workers per lane
+    private final Map<Lane, Integer> laneWeights = new EnumMap<>(Lane.class);
+    private final Map<Lane, Integer> laneParallelism = new EnumMap<>(Lane.class);
+
+    private final Map<Lane, Metrics.Stage> queueWaitStages = new EnumMap<>(Lane.class);
+    private final Map<Lane, Metrics.Stage> jobStages = new EnumMap<>(Lane.class);
+    private final Metrics.Stage downloadStage = Metrics.global().stage("worker", "download");
+    private final Metrics.Stage streamDecodeStage = Metrics.global().stage("worker", "stream_decode");
+    private final Metrics.Stage processStage = Metrics.global().stage("worker", "process");
+    private final Metrics.Stage uploadStage = Metrics.global().stage("worker", "upload");
+    private final Metrics.Stage outboxStage = Metrics.global().stage("worker", "outbox_send");
+    private final Metrics.Stage inboxDeleteStage = Metrics.global().stage("worker", "inbox_delete");
+    private final LongAdder magickPoolFallbacks = Metrics.global().counter("imagemagick_pool_fallbacks_total", "Images the ImageMagick pool failed on that were given a convert of their own", "");
+    private final LongAdder multiFrameJobs = Metrics.global().counter("image_multi_frame_jobs_total", "Animated GIFs and multi-page TIFFs processed frame by frame", "component=\"worker\"");
+    private final LongAdder duplicatesCompleted = Metrics.global().counter("image_duplicate_jobs_total", "Redelivered inbox messages not processed again, by how the duplicate was recognised", "reason=\"completed\"");
+    private final LongAdder duplicatesInFlight = Metrics.global().counter("image_duplicate_jobs_total", "Redelivered inbox messages not processed again, by how the duplicate was recognised", "reason=\"in_flight\"");
+    private final LongAdder duplicatesStored = Metrics.global().counter("image_duplicate_jobs_total", "Redelivered inbox messages not processed again, by how the duplicate was recognised", "reason=\"stored\"");
+    private final AtomicLong jobsInFlight = Metrics.global().gauge("image_jobs_in_flight", "Jobs currently being processed", "component=\"worker\"");
+
+    private final ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtils.daemonThreadFactory("visibility-heartbeat"));
+
+    private volatile boolean running = true;
+    private volatile Thread runner;
+
+    // Work against the transport selected by the transport setting
     public ImageProcessingServer() {
-        region = Region.AP_SOUTHEAST_1;
+        this(Transports.objectStore(), Transports.messageQueue());
+    }
 
-        try {
-            s3 = S3Client.builder()
-                    .region(region)
-                    .credentialsProvider(ProfileCredentialsProvider.create())
-                    .build();
-            debug("S3 client created");
-        } catch (Exception e) {
-            debug("Failed to create S3 client");
-            throw e;
-        }
+    public ImageProcessingServer(ObjectStore store, MessageQueue queue) {
+        this.store = store;
+        this.queue = queue;
 
-        try {
-            sqs = SqsClient.builder()
-                    .region(region)
-                    .credentialsProvider(ProfileCredentialsProvider.create())
-                    .build();
-            debug("SQS client created");
-        } catch (Exception e) {
-            debug("Failed to create SQS client");
-            throw e;
+        int totalWeight = 0;
+        for (Lane lane : lanes) {
+            laneWeights.put(lane, Math.max(1, Config.getInt("worker." + lane.getLabel() + "Weight", lane == Lane.FAST ? 3 : 1)));
+            totalWeight += laneWeights.get(lane);
+        }
+        for (Lane lane : lanes) {
+            // Every lane gets at least one worker, so heavy jobs make progress while small ones keep arriving
+            int share = Math.max(1, Math.round((float) parallelism * laneWeights.get(lane) / totalWeight));
+            laneParallelism.put(lane, Math.max(1, Config.getInt("worker." + lane.getLabel() + "Parallelism", share)));
+            String labels = "lane=\"" + lane.getLabel() + "\"";
+            queueWaitStages.put(lane, Metrics.global().stage("worker", "queue_wait", labels));
+            jobStages.put(lane, Metrics.global().stage("worker", "job", labels));
         }
 
         try {
@@ -66,10 +158,15 @@ public class ImageProcessingServer {
             debug("Failed to create input and output folders");
             throw e;
         }
+    }
 
+    // Start from empty queues; only done by the standalone worker, which is the sole consumer of the inbox
+    private void purgeQueues() {
         try{
-            sqs.purgeQueue(purgeQueueRequest -> purgeQueueRequest.queueUrl(inboxQueueUrl));
-            sqs.purgeQueue(purgeQueueRequest -> purgeQueueRequest.queueUrl(outboxQueueUrl));
+            for (Lane lane : lanes) {
+                queue.purge(lane.queue());
+            }
+            queue.purge(outboxQueueUrl);
             debug("Cleared inbox and outbox queues");
         } catch (Exception e) {
             debug("Failed to clear inbox and outbox queues");
@@ -77,155 +174,700 @@ public class ImageProcessingServer {
         }
     }
 
+    // Process jobs in the configured mode until close() is called
+    public void run() {
+        runner = Thread.currentThread();
+        if ("sequential".equalsIgnoreCase(mode)) {
+            processImages();
+        } else {
+            processImagesConcurrently();
+        }
+    }
+
+    // Run in the background of another application, e.g. next to the servlet with the in-memory transport
+    public Thread start() {
+        Thread worker = ThreadUtils.daemonThreadFactory("image-processing-server").newThread(this::run);
+        worker.start();
+        return worker;
+    }
+
+    // Sequential mode: one message at a time on the calling thread, taking turns between the lanes by weight
     private void processImages() {
-        while (true) {
-            List<Message> messages = sqs.receiveMessage(ReceiveMessageRequest.builder()
-                    .queueUrl(inboxQueueUrl)
-                    .maxNumberOfMessages(1)
-                    .waitTimeSeconds(10)
-                    .build()).messages();
+        int[] credits = new int[lanes.size()];
+        // A long poll on an empty lane would hold up the others
+        int waitSeconds = lanes.size() > 1 ? 1 : 10;
+        while (running) {
+            Lane lane = nextLane(credits);
+            List<QueueMessage> messages;
+            try {
+                messages = queue.receive(lane.queue(), 1, waitSeconds, visibilityTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+                debug("Failed to receive messages from inbox queue");
+                continue;
+            }
 
             if (messages.isEmpty()) {
-                debug("No messages received from inbox queue");
+                debug("No messages received from " + lane.getLabel() + " inbox queue");
                 continue;
             }
 
-            debug("Received " + messages.size() + " messages from inbox queue");
+            debug("Received " + messages.size() + " messages from " + lane.getLabel() + " inbox queue");
 
-            for (Message message : messages) {
-                String key = message.body();
-                String outputKey = "processed-" + key;
-                debug("Received Image: " + key);
+            for (QueueMessage message : messages) {
+                processMessage(lane, message);
+            }
+        }
+    }
 
-                File inputFile = new File(inputFolder + key);
-                File outputFile = new File(outputFolder + key);
-                deleteFile(inputFile.getAbsolutePath());
-                deleteFile(outputFile.getAbsolutePath());
+    // Smooth weighted round robin: with weights 3 and 1 the lanes are polled as fast, fast, heavy, fast, ...
+    private Lane nextLane(int[] credits) {
+        int totalWeight = 0;
+        int best = 0;
+        for (int i = 0; i < lanes.size(); i++) {
+            int weight = laneWeights.get(lanes.get(i));
+            credits[i] += weight;
+            totalWeight += weight;
+            if (credits[i] > credits[best]) {
+                best = i;
+            }
+        }
+        credits[best] -= totalWeight;
+        return lanes.get(best);
+    }
 
-                debug("Downloading image from S3");
-                try {
-                    // Download the image from S3
-                    s3.getObject(GetObjectRequest.builder()
-                                    .bucket(bucketName)
-                                    .key(key)
-                                    .build(),
-                            Paths.get(inputFile.getAbsolutePath()));
-                    debug("Downloaded image from S3");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to download image from S3");
-                    continue;
-                }
+    // Concurrent mode: every lane is long-polled by its own thread and processed by its own pool of workers,
+    // so a backlog of heavy jobs can never take the workers, or the receive calls, of the fast lane
+    private void processImagesConcurrently() {
+        List<Thread> pollers = new ArrayList<>();
+        for (Lane lane : lanes.subList(1, lanes.size())) {
+            Thread poller = ThreadUtils.daemonThreadFactory("inbox-poller-" + lane.getLabel()).newThread(() -> processLaneConcurrently(lane));
+            poller.start();
+            pollers.add(poller);
+        }
 
-                // For development only
-//                try{
-//                    ImageUtils.resizeImage(inputFile, outputFile, 512, 512);
-//                    debug("Processed image");
-//                } catch (Exception e) {
-//                    debug("Failed to process image");
-//                    e.printStackTrace();
-//                    continue;
-//                }
-
-                debug("Processing image");
-                try {
-                    ProcessBuilder builder = new ProcessBuilder(
-                            "convert",
-                            inputFile.getAbsolutePath(),
-                            "-resize", "512x512",
-                            "-background", "white",
-                            "-gravity", "center",
-                            "-extent", "512x512",
-                            outputFile.getAbsolutePath()
-                    );
-                    Process process = builder.start();
-
-                    // Wait for the process to complete with a timeout
-                    if (!process.waitFor(60, TimeUnit.SECONDS)) {
-                        // Timeout elapsed before termination, kill the process
-                        process.destroyForcibly();
-                        debug("Failed to process image: timeout");
-                        continue;
-                    }
+        processLaneConcurrently(lanes.get(0));
+
+        // close() interrupted this thread; stop the other lanes the same way
+        for (Thread poller : pollers) {
+            poller.interrupt();
+        }
+        for (Thread poller : pollers) {
+            try {
+                poller.join(TimeUnit.SECONDS.toMillis(visibilityTimeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                    // Check if the process terminated unsuccessfully
-                    if (process.exitValue() != 0) {
-                        debug("Failed to process image: " + process.exitValue());
-                        continue;
+    // Receive in batches and hand each message to a bounded pool of workers.
+    // Only as many messages are requested as there are free workers, so nothing sits invisible in a local queue.
+    private void processLaneConcurrently(Lane lane) {
+        String inboxQueueUrl = lane.queue();
+        int workers = laneParallelism.get(lane);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, ThreadUtils.daemonThreadFactory("image-worker-" + lane.getLabel()));
+        Semaphore freeWorkers = new Semaphore(workers);
+        debug("Processing " + lane.getLabel() + " images with " + workers + " workers");
+
+        while (running) {
+            int batchSize;
+            try {
+                freeWorkers.acquire();
+                batchSize = 1 + freeWorkers.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (batchSize > MAX_BATCH_SIZE) {
+                freeWorkers.release(batchSize - MAX_BATCH_SIZE);
+                batchSize = MAX_BATCH_SIZE;
+            }
+
+            List<QueueMessage> messages;
+            try {
+                messages = queue.receive(inboxQueueUrl, batchSize, 10, visibilityTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+                debug("Failed to receive messages from inbox queue");
+                freeWorkers.release(batchSize);
+                continue;
+            }
+            freeWorkers.release(batchSize - messages.size());
+
+            if (messages.isEmpty()) {
+                debug("No messages received from " + lane.getLabel() + " inbox queue");
+                continue;
+            }
+
+            debug("Received " + messages.size() + " messages from " + lane.getLabel() + " inbox queue");
+
+            for (QueueMessage message : messages) {
+                executor.execute(() -> {
+                    ScheduledFuture<?> heartbeat = startVisibilityHeartbeat(inboxQueueUrl, message);
+                    try {
+                        processMessage(lane, message);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        debug("Failed to process message: " + message.getMessageId());
+                    } finally {
+                        heartbeat.cancel(false);
+                        freeWorkers.release();
                     }
+                });
+            }
+        }
 
-                    debug("Processed image");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to process image");
-                    continue;
-                }
+        // close() interrupts only to cut the receive short; let the jobs already received finish
+        Thread.interrupted();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(visibilityTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Keep extending the visibility timeout of an in-flight message so that slow jobs are not delivered twice
+    private ScheduledFuture<?> startVisibilityHeartbeat(String inboxQueueUrl, QueueMessage message) {
+        long interval = Math.max(1, visibilityTimeout / 2);
+        return heartbeatScheduler.scheduleAtFixedRate(() -> {
+            queue.changeVisibility(inboxQueueUrl, message.getReceiptHandle(), visibilityTimeout).whenComplete((ignored, error) ->
+                    debug((error == null ? "Extended" : "Failed to extend") + " visibility timeout of message: " + message.getMessageId()));
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void processMessage(Lane lane, QueueMessage message) {
+        long start = System.nanoTime();
+        jobsInFlight.incrementAndGet();
+        try {
+            recordQueueWait(lane, message);
+            boolean success = processMessage(lane.queue(), message, message.getBody());
+            jobStages.get(lane).record(start, success);
+        } finally {
+            jobsInFlight.decrementAndGet();
+        }
+    }
+
+    private boolean processMessage(String inboxQueueUrl, QueueMessage message, String key) {
+        debug("Received Image: " + key);
+
+        // SQS delivers at least once: a message comes back if its visibility timeout runs out, or if a worker
+        // stops between uploading the result and deleting the message. Don't process the same key twice.
+        if (completedKeys.contains(key)) {
+            duplicatesCompleted.increment();
+            debug("Image has already been processed, deleting the repeated message");
+            return deleteInboxMessage(inboxQueueUrl, message);
+        }
+        if (!keysInFlight.add(key)) {
+            // Left alone, the message comes back once the job in progress is done and is deleted as completed then
+            duplicatesInFlight.increment();
+            debug("Image is already being processed, leaving the repeated message");
+            return true;
+        }
+        try {
+            // Only a message received before can have left results behind, so first deliveries skip the lookup
+            if (message.getReceiveCount() != 1 && isStored(key)) {
+                duplicatesStored.increment();
+                debug("Processed image is already in storage, skipping processing");
+                return finishJob(inboxQueueUrl, message, key, outputSizes);
+            }
 
-                debug("Uploading processed image to S3");
-                try {
-                    // Upload the processed image back to S3
-                    s3.putObject(PutObjectRequest.builder()
-                                    .bucket(bucketName)
-                                    .key(outputKey)
-                                    .build(),
-                            RequestBody.fromFile(Paths.get(outputFile.getAbsolutePath())));
-                    debug("Uploaded processed image to S3");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to upload processed image to S3");
-                    continue;
+            // Encoded output of every size, by edge length
+            SortedMap<Integer, byte[]> outputs = new TreeMap<>();
+            Outcome outcome = Outcome.USE_DISK;
+            if (streaming && engine == Engine.JAVA) {
+                outcome = processInMemory(key, outputs);
+            } else if (engine == Engine.IMAGEMAGICK && magickPool() != null) {
+                outcome = processWithMagickPool(key, outputs);
+            }
+            if (outcome == Outcome.USE_DISK) {
+                outputs.clear();
+                outcome = processOnDisk(key, outputs);
+            }
+            if (outcome != Outcome.DONE || !uploadOutputs(key, outputs)) {
+                return false;
+            }
+            return finishJob(inboxQueueUrl, message, key, new ArrayList<>(outputs.keySet()));
+        } finally {
+            keysInFlight.remove(key);
+        }
+    }
+
+    // Whether every output size of the key is already in storage, left there by an earlier delivery of the message
+    private boolean isStored(String key) {
+        try {
+            for (int size : outputSizes) {
+                if (!store.exists(ProcessedImage.variantKey(key, size))) {
+                    return false;
                 }
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Failed to look up processed image in storage, processing it again");
+            return false;
+        }
+    }
+
+    // Announce the result, then clean up the inbox message and the raw image. After a redelivery the result may
+    // be announced twice; the client recognises the key and drops the second message.
+    private boolean finishJob(String inboxQueueUrl, QueueMessage message, String key, List<Integer> sizes) {
+        debug("Sending message to outbox queue");
+        long start = System.nanoTime();
+        try {
+            // Send one message to the outbox queue for all sizes
+            queue.send(outboxQueueUrl, ProcessedImage.resultMessage(key, sizes), sendDelaySeconds).join();
+            outboxStage.success(start);
+            debug("Sent message to outbox queue");
+        } catch (Exception e) {
+            outboxStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to send message to outbox queue");
+            return false;
+        }
+        completedKeys.add(key);
+
+        if (!deleteInboxMessage(inboxQueueUrl, message)) {
+            return false;
+        }
+
+        debug("Deleting image from storage");
+        try {
+            // Delete the raw image from storage
+            store.delete(key);
+            debug("Deleted image from storage");
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Failed to delete image from storage");
+        }
+        return true;
+    }
 
-                debug("Sending message to outbox queue");
-                try {
-                    // Send a message to the outbox queue
-                    sqs.sendMessage(SendMessageRequest.builder()
-                            .queueUrl(outboxQueueUrl)
-                            .messageBody(outputKey)
-                            .delaySeconds(1)
-                            .build());
-                    debug("Sent message to outbox queue");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to send message to outbox queue");
-                    continue;
+    private boolean deleteInboxMessage(String inboxQueueUrl, QueueMessage message) {
+        debug("Deleting message from inbox queue");
+        long start = System.nanoTime();
+        try {
+            // Delete the message from the inbox queue
+            queue.delete(inboxQueueUrl, message.getReceiptHandle()).join();
+            inboxDeleteStage.success(start);
+            debug("Deleted message from inbox queue");
+            return true;
+        } catch (Exception e) {
+            inboxDeleteStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to delete message from inbox queue");
+            return false;
+        }
+    }
+
+    // Time between the client sending the job and a worker receiving it
+    private void recordQueueWait(Lane lane, QueueMessage message) {
+        if (message.getSentTimestamp() > 0) {
+            long waitMillis = System.currentTimeMillis() - message.getSentTimestamp();
+            queueWaitStages.get(lane).recordDuration(TimeUnit.MILLISECONDS.toNanos(waitMillis), true);
+        }
+    }
+
+    // Decode straight from the object stream and upload from an in-memory buffer, without touching the disk.
+    // Objects above the streaming threshold and formats ImageIO cannot read are left to the disk path.
+    private Outcome processInMemory(String key, SortedMap<Integer, byte[]> outputs) {
+        debug("Streaming image from storage");
+        long start = System.nanoTime();
+        BufferedImage image;
+        try (StoredObject objectStream = store.get(key)) {
+            long contentLength = objectStream.getContentLength();
+            if (contentLength < 0 || contentLength > streamingMaxBytes) {
+                // Stop the transfer instead of draining the rest of a large object on close
+                objectStream.abort();
+                debug("Image is too large to stream (" + contentLength + " bytes), using disk");
+                return Outcome.USE_DISK;
+            }
+            try (ImageInputStream input = new MemoryCacheImageInputStream(objectStream)) {
+                ImageReader frames = MultiFrameResizer.multiFrameReader(input, ImageUtils.getExtension(key));
+                if (frames != null) {
+                    streamDecodeStage.success(start);
+                    return processFrames(frames, ImageUtils.getExtension(key), outputs);
                 }
+                image = readImage(input);
+            }
+        } catch (Exception e) {
+            streamDecodeStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to stream image from storage");
+            return Outcome.FAILED;
+        }
+        if (image == null) {
+            debug("Image format is not supported by ImageIO, using disk");
+            return Outcome.USE_DISK;
+        }
+        streamDecodeStage.success(start);
+
+        debug("Processing image");
+        start = System.nanoTime();
+        try {
+            BufferedImage resizedImage = fitAndLetterbox(image, largestSize);
+            encodeOutputs(resizedImage, ImageUtils.getExtension(key), outputs);
+            processStage.success(start);
+            debug("Processed image");
+        } catch (Exception e) {
+            processStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to process image");
+            return Outcome.FAILED;
+        }
+        return Outcome.DONE;
+    }
 
-                debug("Deleting message from inbox queue");
-                try {
-                    // Delete the message from the inbox queue
-                    sqs.deleteMessage(DeleteMessageRequest.builder()
-                            .queueUrl(inboxQueueUrl)
-                            .receiptHandle(message.receiptHandle())
-                            .build());
-                    debug("Deleted message from inbox queue");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to delete message from inbox queue");
-                    continue;
+    // Encode every output size missing from outputs, each downsampled from the next larger one instead of from
+    // the source. The outputs are letterboxed squares, so every step is a plain resize of the previous one.
+    private void encodeOutputs(BufferedImage largestImage, String format, SortedMap<Integer, byte[]> outputs) throws IOException {
+        BufferedImage current = largestImage;
+        ReusableByteArrayOutputStream buffer = outputBuffers.get();
+        try {
+            for (int i = outputSizes.size() - 1; i >= 0; i--) {
+                int size = outputSizes.get(i);
+                if (current.getWidth() != size || current.getHeight() != size) {
+                    current = fitAndLetterbox(current, size);
+                }
+                if (!outputs.containsKey(size)) {
+                    buffer.reset();
+                    writeImage(current, format, buffer);
+                    outputs.put(size, buffer.toByteArray());
                 }
+            }
+        } finally {
+            buffer.recycle(MAX_RETAINED_BUFFER_BYTES);
+        }
+    }
 
-                debug("Deleting image from S3 and local files");
-                try {
-                    // Delete the image from the S3 bucket
-                    s3.deleteObject(deleteObjectRequest -> deleteObjectRequest.bucket(bucketName).key(key));
-                    debug("Deleted image from S3");
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to delete image from S3");
-                    continue;
+    // Through a pooled ImageMagick process over pipes, without touching the disk. Objects above the streaming
+    // threshold are left to the disk path, which then runs convert.
+    private Outcome processWithMagickPool(String key, SortedMap<Integer, byte[]> outputs) {
+        debug("Downloading image from storage");
+        long start = System.nanoTime();
+        byte[] content;
+        try (StoredObject objectStream = store.get(key)) {
+            long contentLength = objectStream.getContentLength();
+            if (contentLength < 0 || contentLength > streamingMaxBytes) {
+                objectStream.abort();
+                debug("Image is too large to stream (" + contentLength + " bytes), using disk");
+                return Outcome.USE_DISK;
+            }
+            content = objectStream.readAllBytes();
+            downloadStage.success(start);
+        } catch (Exception e) {
+            downloadStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to download image from storage");
+            return Outcome.FAILED;
+        }
+
+        String format = ImageUtils.getExtension(key);
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(content))) {
+            ImageReader frames = MultiFrameResizer.multiFrameReader(input, format);
+            if (frames != null) {
+                return processFrames(frames, format, outputs);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Failed to count the frames of the image, processing it as a single image");
+        }
+
+        debug("Processing image");
+        start = System.nanoTime();
+        byte[] largest;
+        try {
+            largest = magickPool().resizeImage(content, format, format, largestSize, largestSize);
+        } catch (IOException | TimeoutException e) {
+            // An error, a timeout or a dead process: the image still gets a convert of its own
+            magickPoolFallbacks.increment();
+            e.printStackTrace();
+            debug("ImageMagick pool failed to process image, running convert");
+            largest = convertWithImageMagick(key, content);
+        } catch (Exception e) {
+            processStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to process image");
+            return Outcome.FAILED;
+        }
+        boolean processed = largest != null && readOutputs(key, largest, outputs);
+        processStage.record(start, processed);
+        return processed ? Outcome.DONE : Outcome.FAILED;
+    }
+
+    // Started on first use; null if imagemagick.poolSize is 0 or the processes failed their first health check.
+    // Off by default until ImageMagickPoolTest has passed against the ImageMagick 7 the workers run.
+    private synchronized ImageMagickPool magickPool() {
+        if (!magickPoolStarted) {
+            magickPoolStarted = true;
+            int size = Config.getInt("imagemagick.poolSize", 0);
+            if (size > 0) {
+                magickPool = ImageMagickPool.start(Config.getString("imagemagick.command", "magick"), size,
+                        Config.getInt("imagemagick.maxJobsPerProcess", 200),
+                        TimeUnit.SECONDS.toMillis(Config.getLong("imagemagick.timeoutSeconds", 60)),
+                        TimeUnit.SECONDS.toMillis(Config.getLong("imagemagick.healthCheckSeconds", 30)));
+            }
+        }
+        return magickPool;
+    }
+
+    // Every frame of an animated GIF or a multi-page TIFF, each in all output sizes
+    private Outcome processFrames(ImageReader reader, String format, SortedMap<Integer, byte[]> outputs) {
+        debug("Processing frames");
+        multiFrameJobs.increment();
+        long start = System.nanoTime();
+        try {
+            outputs.putAll(frameResizer.resize(reader, format, outputSizes, frameParallelism));
+            processStage.success(start);
+            debug("Processed frames");
+            return Outcome.DONE;
+        } catch (Exception e) {
+            processStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to process frames");
+            return Outcome.FAILED;
+        }
+    }
+
+    // With pooled rasters the images below belong to the calling thread and are overwritten by its next call
+    private BufferedImage readImage(InputStream inputStream) throws IOException {
+        if (pooledRasters) {
+            return PooledResizer.current().readImage(inputStream, largestSize, largestSize);
+        }
+        return ImageUtils.readImage(inputStream, largestSize, largestSize);
+    }
+
+    private BufferedImage readImage(ImageInputStream input) throws IOException {
+        if (pooledRasters) {
+            return PooledResizer.current().readImage(input, largestSize, largestSize);
+        }
+        return ImageUtils.readImage(input, largestSize, largestSize);
+    }
+
+    private BufferedImage fitAndLetterbox(BufferedImage image, int size) {
+        if (pooledRasters) {
+            return PooledResizer.current().fitAndLetterbox(image, size, size, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+        }
+        return ImageUtils.fitAndLetterbox(image, size, size, ImageUtils.DEFAULT_BACKGROUND, resampleFilter);
+    }
+
+    private void writeImage(BufferedImage image, String format, OutputStream outputStream) throws IOException {
+        if (isParallelPng(format)) {
+            ParallelPngEncoder.shared().write(image, outputStream);
+        } else if (pooledRasters) {
+            PooledResizer.current().writeImage(image, format, outputStream);
+        } else {
+            ImageUtils.writeImage(image, format, outputStream);
+        }
+    }
+
+    private boolean isParallelPng(String format) {
+        return parallelPng && format.equalsIgnoreCase("png");
+    }
+
+    private void resizeImage(File inputFile, File outputFile) throws IOException {
+        String format = ImageUtils.getExtension(outputFile.getName());
+        if (!pooledRasters && !isParallelPng(format)) {
+            ImageUtils.resizeImage(inputFile, outputFile, largestSize, largestSize, resampleFilter);
+            return;
+        }
+        BufferedImage image = pooledRasters
+                ? PooledResizer.current().readImage(inputFile, largestSize, largestSize)
+                : ImageUtils.readImage(inputFile, largestSize, largestSize);
+        if (image == null) {
+            throw new IOException("The file " + inputFile + " could not be opened, it is not an image or the format is not supported.");
+        }
+        BufferedImage resizedImage = fitAndLetterbox(image, largestSize);
+        if (isParallelPng(format)) {
+            try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                ParallelPngEncoder.shared().write(resizedImage, outputStream);
+            }
+        } else {
+            PooledResizer.current().writeImage(resizedImage, format, outputFile);
+        }
+    }
+
+    // Upload all sizes at once and wait for the slowest
+    private boolean uploadOutputs(String key, SortedMap<Integer, byte[]> outputs) {
+        debug("Uploading " + outputs.size() + " processed images to storage");
+        long start = System.nanoTime();
+        try {
+            List<CompletableFuture<Void>> uploads = new ArrayList<>();
+            outputs.forEach((size, content) -> uploads.add(store.putAsync(ProcessedImage.variantKey(key, size), content)));
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+            uploadStage.success(start);
+            debug("Uploaded processed images to storage");
+            return true;
+        } catch (Exception e) {
+            uploadStage.failure(start);
+            e.printStackTrace();
+            debug("Failed to upload processed images to storage");
+            return false;
+        }
+    }
+
+    private Outcome processOnDisk(String key, SortedMap<Integer, byte[]> outputs) {
+        File inputFile = new File(inputFolder + key);
+        File outputFile = new File(outputFolder + key);
+        deleteFile(inputFile.getAbsolutePath());
+        deleteFile(outputFile.getAbsolutePath());
+
+        try {
+            debug("Downloading image from storage");
+            long start = System.nanoTime();
+            try {
+                // Download the image from storage
+                store.download(key, Paths.get(inputFile.getAbsolutePath()));
+                downloadStage.success(start);
+                debug("Downloaded image from storage");
+            } catch (Exception e) {
+                downloadStage.failure(start);
+                e.printStackTrace();
+                debug("Failed to download image from storage");
+                return Outcome.FAILED;
+            }
+
+            // Multi-frame inputs go through the JVM whatever the engine
+            String format = ImageUtils.getExtension(key);
+            try (ImageInputStream input = new FileImageInputStream(inputFile)) {
+                ImageReader frames = MultiFrameResizer.multiFrameReader(input, format);
+                if (frames != null) {
+                    return processFrames(frames, format, outputs);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+                debug("Failed to count the frames of the image, processing it as a single image");
+            }
 
-                debug("Deleting local files");
-                try {
-                    // Delete the local files
-                    deleteFile(inputFile.getAbsolutePath());
-                    deleteFile(outputFile.getAbsolutePath());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    debug("Failed to delete local files");
+            debug("Processing image");
+            start = System.nanoTime();
+            boolean processed = processImage(inputFile, outputFile) && readOutputs(key, outputFile, outputs);
+            processStage.record(start, processed);
+            return processed ? Outcome.DONE : Outcome.FAILED;
+        } finally {
+            debug("Deleting local files");
+            try {
+                // Delete the local files
+                deleteFile(inputFile.getAbsolutePath());
+                deleteFile(outputFile.getAbsolutePath());
+            } catch (Exception e) {
+                e.printStackTrace();
+                debug("Failed to delete local files");
+            }
+        }
+    }
+
+    // The largest output as written by processImage, plus the smaller sizes cascaded from it
+    private boolean readOutputs(String key, File outputFile, SortedMap<Integer, byte[]> outputs) {
+        try {
+            return readOutputs(key, Files.readAllBytes(outputFile.toPath()), outputs);
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Failed to read processed image");
+            return false;
+        }
+    }
+
+    private boolean readOutputs(String key, byte[] largest, SortedMap<Integer, byte[]> outputs) {
+        try {
+            outputs.put(largestSize, largest);
+            if (outputSizes.size() > 1) {
+                BufferedImage largestImage = readImage(new ByteArrayInputStream(largest));
+                if (largestImage == null) {
+                    debug("Cannot decode the processed image, only producing size " + largestSize);
+                    return true;
                 }
+                encodeOutputs(largestImage, ImageUtils.getExtension(key), outputs);
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Failed to read processed image");
+            return false;
+        }
+    }
+
+    // Resize with the configured engine; the JVM engine falls back to ImageMagick for inputs ImageIO cannot handle
+    private boolean processImage(File inputFile, File outputFile) {
+        if (engine == Engine.JAVA) {
+            try {
+                resizeImage(inputFile, outputFile);
+                debug("Processed image");
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace();
+                debug("Failed to process image in JVM, falling back to ImageMagick");
+            }
+        }
+        return convertWithImageMagick(inputFile, outputFile);
+    }
+
+    private boolean convertWithImageMagick(File inputFile, File outputFile) {
+        ImageMagickPool pool = magickPool();
+        if (pool != null && inputFile.length() <= streamingMaxBytes) {
+            try {
+                String format = ImageUtils.getExtension(outputFile.getName());
+                Files.write(outputFile.toPath(), pool.resizeImage(Files.readAllBytes(inputFile.toPath()), format, format, largestSize, largestSize));
+                debug("Processed image");
+                return true;
+            } catch (IOException | TimeoutException e) {
+                magickPoolFallbacks.increment();
+                e.printStackTrace();
+                debug("ImageMagick pool failed to process image, running convert");
+            } catch (Exception e) {
+                e.printStackTrace();
+                debug("Failed to process image");
+                return false;
+            }
+        }
+        return runConvert(inputFile, outputFile);
+    }
+
+    // Through local files, for an image the pool failed on; null if convert fails as well
+    private byte[] convertWithImageMagick(String key, byte[] content) {
+        File inputFile = new File(inputFolder + key);
+        File outputFile = new File(outputFolder + key);
+        try {
+            Files.write(inputFile.toPath(), content);
+            return runConvert(inputFile, outputFile) ? Files.readAllBytes(outputFile.toPath()) : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            debug("Failed to process image");
+            return null;
+        } finally {
+            deleteFile(inputFile.getAbsolutePath());
+            deleteFile(outputFile.getAbsolutePath());
+        }
+    }
+
+    // One convert process for this image alone
+    private boolean runConvert(File inputFile, File outputFile) {
+        try {
+            int exitValue = ImageMagick.resizeImage(inputFile, outputFile, largestSize, largestSize, 60);
+            if (exitValue == ImageMagick.TIMEOUT) {
+                debug("Failed to process image: timeout");
+                return false;
             }
+
+            // Check if the process terminated unsuccessfully
+            if (exitValue != 0) {
+                debug("Failed to process image: " + exitValue);
+                return false;
+            }
+
+            debug("Processed image");
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Failed to process image");
+            return false;
         }
     }
 
@@ -247,8 +889,88 @@ public class ImageProcessingServer {
         System.out.println("ImageProcessingServer: " + message);
     }
 
+    // Stop taking new jobs and wait for the ones in progress, then release the transport
+    @Override
+    public void close() {
+        running = false;
+        Thread worker = runner;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(visibilityTimeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        heartbeatScheduler.shutdownNow();
+        frameExecutor.shutdownNow();
+        synchronized (this) {
+            if (magickPool != null) {
+                magickPool.close();
+            }
+        }
+        queue.close();
+        store.close();
+    }
+
+    // Push synthetic images through the in-memory path, so that the first real jobs don't run in the interpreter
+    public void warmUp(Warmup warmup) {
+        if (engine == Engine.IMAGEMAGICK) {
+            warmup.phase("imagemagick", this::magickPool);
+        }
+        warmup.phaseInThread("resize", () -> {
+            try {
+                Map<String, byte[]> samples = Warmup.sampleImages();
+                for (int i = 0; i < Warmup.iterations(); i++) {
+                    for (Map.Entry<String, byte[]> sample : samples.entrySet()) {
+                        processSample(sample.getValue(), sample.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private SortedMap<Integer, byte[]> processSample(byte[] content, String format) throws IOException {
+        SortedMap<Integer, byte[]> outputs = new TreeMap<>();
+        BufferedImage image = readImage(new ByteArrayInputStream(content));
+        encodeOutputs(fitAndLetterbox(image, largestSize), format, outputs);
+        return outputs;
+    }
+
+    // With --warmup-only the worker warms up without touching the network and exits, which is what the
+    // cdsArchive task runs to record the classes a worker loads
     public static void main(String[] args) {
+        boolean warmupOnly = args != null && Arrays.asList(args).contains("--warmup-only");
+        Warmup warmup = new Warmup("worker");
+
+        int metricsPort = Config.getInt("worker.metricsPort", 9090);
+        if (metricsPort > 0 && !warmupOnly) {
+            try {
+                MetricsHttpServer.start(metricsPort, Metrics.global());
+                debug("Serving metrics on port " + metricsPort);
+            } catch (Exception e) {
+                debug("Failed to start metrics endpoint on port " + metricsPort);
+                e.printStackTrace();
+            }
+        }
+
         ImageProcessingServer server = new ImageProcessingServer();
-        server.processImages();
+        if (warmupOnly || Warmup.enabled()) {
+            warmup.awsClients(!warmupOnly);
+            warmup.imageIo();
+            server.warmUp(warmup);
+        }
+        warmup.report();
+        if (warmupOnly) {
+            server.close();
+            AwsClients.closeShared();
+            // Netty's threads would keep the JVM up; the class list is written on exit
+            System.exit(0);
+        }
+
+        server.purgeQueues();
+        server.run();
     }
 }
\ No newline at end of file
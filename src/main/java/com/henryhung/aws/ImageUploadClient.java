@@ -1,57 +1,94 @@
 package com.henryhung.aws;
 
-import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.*;
-
+import java.awt.Dimension;
 import java.io.*;
 import java.nio.file.Files;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
-
-public class ImageUploadClient {
-
-    private final String bucketName = "bucket-comp3358-3035782750";
-    private final String inboxQueueUrl = "inbox-queue-comp3358-3035782750";
-    private final String outboxQueueUrl = "outbox-queue-comp3358-3035782750";
-
-    private final Region region;
-
-    private final S3Client s3;
-    private final SqsClient sqs;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.henryhung.transport.Lane;
+import com.henryhung.transport.MessageQueue;
+import com.henryhung.transport.ObjectStore;
+import com.henryhung.transport.QueueMessage;
+import com.henryhung.transport.Transports;
+import com.henryhung.utils.Config;
+import com.henryhung.utils.ImageUtils;
+import com.henryhung.utils.Metrics;
+import com.henryhung.utils.RecentKeys;
+import com.henryhung.utils.ThreadUtils;
+
+public class ImageUploadClient implements AutoCloseable {
+
+    // Enough of a stream to find the dimensions in the header, even behind a large EXIF block
+    private static final int HEADER_BYTES = 256 * 1024;
+
+    private final String outboxQueueUrl = Transports.outboxQueue();
+    private final int sendDelaySeconds = Transports.sendDelaySeconds();
+
+    private final ObjectStore store;
+    private final MessageQueue queue;
+
+    private final long resultTimeoutSeconds = Config.getLong("client.resultTimeoutSeconds", 300);
+    // Processed results stay in storage this long after they arrive, rather than being deleted once read
+    private final long resultTtlMillis = TimeUnit.SECONDS.toMillis(Config.getLong("results.ttlSeconds", 900));
+    private final int unclaimedVisibilitySeconds = Config.getInt("client.unclaimedVisibilitySeconds", 2);
+    private final int maxUnclaimedReceives = Config.getInt("client.maxUnclaimedReceives", 60);
+    // Uploads above either threshold, or in a format only ImageMagick can read, go to the heavy lane
+    private final long heavyBytes = Config.getLong("lanes.heavyBytes", 8L * 1024 * 1024);
+    private final long heavyPixels = Config.getLong("lanes.heavyPixels", 24_000_000L);
+
+    private final ConcurrentHashMap<String, CompletableFuture<ProcessedImage>> pendingResults = new ConcurrentHashMap<>();
+    // Job API: results of these keys are left in storage instead of downloaded
+    private final Set<String> storedResults = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Job> jobsByContent = new ConcurrentHashMap<>();
+    // Keys whose result has been delivered: a worker may announce a result twice after an inbox redelivery
+    private final RecentKeys deliveredKeys = new RecentKeys(Config.getInt("client.deliveredKeys", 10000));
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(ThreadUtils.daemonThreadFactory("result-expiry"));
+    private final Object dispatcherSignal = new Object();
+    private final Metrics.Stage uploadStage = Metrics.global().stage("client", "upload");
+    private final Metrics.Stage inboxSendStage = Metrics.global().stage("client", "inbox_send");
+    // From registering for a result until it is delivered, i.e. the queue and worker round trip
+    private final Metrics.Stage resultWaitStage = Metrics.global().stage("client", "result_wait");
+    private final Metrics.Stage downloadStage = Metrics.global().stage("client", "download");
+    private final Map<Lane, LongAdder> laneJobs = new EnumMap<>(Lane.class);
+    private final LongAdder duplicateResults = Metrics.global().counter("image_duplicate_results_total", "Outbox messages dropped because their result had already been delivered", "");
+
+    private final Thread outboxDispatcher;
+    private volatile boolean running = true;
+
+    // Work against the transport selected by the transport setting
     public ImageUploadClient() {
-        region = Region.AP_SOUTHEAST_1;
+        this(Transports.objectStore(), Transports.messageQueue());
+    }
 
-        try {
-            s3 = S3Client.builder()
-                    .region(region)
-                    .credentialsProvider(ProfileCredentialsProvider.create())
-                    .build();
-            debug("S3 client created");
-        } catch (Exception e) {
-            debug("Failed to create S3 client");
-            throw e;
-        }
+    public ImageUploadClient(ObjectStore store, MessageQueue queue) {
+        this.store = store;
+        this.queue = queue;
 
-        try {
-            sqs = SqsClient.builder()
-                    .region(region)
-                    .credentialsProvider(ProfileCredentialsProvider.create())
-                    .build();
-            debug("SQS client created");
-        } catch (Exception e) {
-            debug("Failed to create SQS client");
-            throw e;
+        Metrics.global().gauge("image_jobs_in_flight", "Jobs currently being processed", "component=\"client\"", pendingResults::size);
+        Metrics.global().gauge("image_jobs_tracked", "Job API jobs running or finished and not yet expired", "", jobs::size);
+        for (Lane lane : Lane.values()) {
+            laneJobs.put(lane, Metrics.global().counter("image_lane_jobs_total", "Jobs classified into each lane by the upload client", "lane=\"" + lane.getLabel() + "\""));
         }
+
+        outboxDispatcher = ThreadUtils.daemonThreadFactory("outbox-dispatcher").newThread(this::dispatchOutbox);
+        outboxDispatcher.start();
     }
 
-    // Upload image to S3 and send message to SQS inbox queue from local file
+    // Upload image and send message to the inbox queue from local file
     public String uploadImage(String fileName, String directory) {
         InputStream fileContent = fileToInputStream(new File(directory + fileName));
         if (fileContent == null) {
@@ -61,38 +98,211 @@ public class ImageUploadClient {
         return uploadImage(fileName, fileContent);
     }
 
-    // Upload image to S3 and send message to SQS inbox queue via InputStream
+    // Upload image and send message to the inbox queue via InputStream
     public String uploadImage(String fileName, InputStream fileContent) {
+        String key = UUID.randomUUID() + "." + this.getExtension(fileName);
+        // Peek at the header to pick a lane, then upload the whole stream from the start
+        BufferedInputStream buffered = new BufferedInputStream(fileContent, HEADER_BYTES);
+        Lane lane;
+        try {
+            lane = classify(buffered, -1);
+        } catch (IOException e) {
+            debug("Failed to read image file.");
+            return null;
+        }
+        return uploadImage(key, lane, buffered) ? key : null;
+    }
+
+    // Upload image and return a future completed with the processed image once it arrives in the outbox queue.
+    // The future is registered before the inbox message is sent, so the result can never arrive unclaimed.
+    public CompletableFuture<ProcessedImage> uploadAndProcessAsync(String fileName, InputStream fileContent) {
+        return uploadAndProcessAsync(fileName, fileContent, -1);
+    }
 
+    // The stream is uploaded on the calling thread, which owns it, through the store's pooled part buffers; it is
+    // never held in the heap whole. Its size, -1 if unknown, helps pick the lane. The inbox send doesn't hold the caller.
+    public CompletableFuture<ProcessedImage> uploadAndProcessAsync(String fileName, InputStream fileContent, long size) {
         String key = UUID.randomUUID() + "." + this.getExtension(fileName);
+        CompletableFuture<ProcessedImage> result = awaitResult(key);
+        uploadImageAsync(key, fileContent, size).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(new IOException("Failed to upload image " + fileName, error));
+            }
+        });
+        return result;
+    }
+
+    // Neither the upload nor the inbox send holds the calling thread
+    public CompletableFuture<ProcessedImage> uploadAndProcessAsync(String fileName, byte[] content) {
+        String key = UUID.randomUUID() + "." + this.getExtension(fileName);
+        CompletableFuture<ProcessedImage> result = awaitResult(key);
+        uploadImageAsync(key, content).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(new IOException("Failed to upload image " + fileName, error));
+            }
+        });
+        return result;
+    }
 
+    // Job API: upload and queue an image without waiting for the result. The job's result carries only the sizes
+    // produced, which stay in storage until the job expires. Uploads with the same contentKey (null for none) share
+    // the job that is already running or done, as long as it lasts, and are not uploaded again. Otherwise the stream
+    // is uploaded on the calling thread as in uploadAndProcessAsync; size is -1 if unknown.
+    public Job submitJob(String fileName, InputStream content, long size, String contentKey) {
+        Job job = new Job(UUID.randomUUID() + "." + this.getExtension(fileName), fileName);
+        if (contentKey != null) {
+            while (true) {
+                Job existing = jobsByContent.putIfAbsent(contentKey, job);
+                if (existing == null) {
+                    break;
+                }
+                if (existing.getState() != Job.State.FAILED) {
+                    debug("Sharing job " + existing.getId() + " for " + fileName);
+                    return existing;
+                }
+                if (jobsByContent.replace(contentKey, existing, job)) {
+                    break;
+                }
+            }
+        }
+
+        String key = job.getId();
+        jobs.put(key, job);
+        storedResults.add(key);
+        CompletableFuture<ProcessedImage> result = awaitResult(key);
+        result.whenComplete((processedImage, error) -> {
+            if (error != null) {
+                storedResults.remove(key);
+            }
+            job.finish(processedImage, error, resultTtlMillis);
+            expiry.schedule(() -> {
+                jobs.remove(key, job);
+                if (contentKey != null) {
+                    jobsByContent.remove(contentKey, job);
+                }
+            }, resultTtlMillis, TimeUnit.MILLISECONDS);
+        });
+        uploadImageAsync(key, content, size).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(new IOException("Failed to upload image " + fileName, error));
+            } else {
+                job.queued();
+            }
+        });
+        return job;
+    }
+
+    // Job API: a job that is done from the start, with results the caller already has, e.g. from a cache. The job
+    // holds them in memory instead of storage, and they expire with it.
+    public Job completedJob(String fileName, SortedMap<Integer, byte[]> variants) {
+        Job job = new Job(UUID.randomUUID() + "." + this.getExtension(fileName), fileName);
+        String key = job.getId();
+        job.finish(new ProcessedImage(key, variants), null, resultTtlMillis);
+        jobs.put(key, job);
+        expiry.schedule(() -> jobs.remove(key, job), resultTtlMillis, TimeUnit.MILLISECONDS);
+        return job;
+    }
+
+    // A job submitted to this client, or null if there is none or it has expired
+    public Job getJob(String id) {
+        return jobs.get(id);
+    }
+
+    // Where the job API's results are kept
+    public ObjectStore getStore() {
+        return store;
+    }
+
+    private CompletableFuture<Void> uploadImageAsync(String key, byte[] content) {
+        Lane lane = classify(content, content.length);
+        long uploadStart = System.nanoTime();
+        return store.putAsync(key, content)
+                .whenComplete((ignored, error) -> {
+                    uploadStage.record(uploadStart, error == null);
+                    debug(error == null ? "Uploaded image to storage" : "Failed to upload image to storage");
+                })
+                .thenCompose(ignored -> sendToInbox(key, lane));
+    }
+
+    // Only the header is kept in memory, to pick the lane; the rest streams straight through to storage
+    private CompletableFuture<Void> uploadImageAsync(String key, InputStream content, long size) {
+        BufferedInputStream buffered = new BufferedInputStream(content, HEADER_BYTES);
+        long uploadStart = System.nanoTime();
+        Lane lane;
         try {
-            // Upload image to S3
-            s3.putObject(PutObjectRequest.builder()
-                            .bucket(bucketName)
-                            .key(key)
-                            .build(),
-                    RequestBody.fromInputStream(fileContent, fileContent.available()));
-            debug("Uploaded image to S3");
+            lane = classify(buffered, size);
+            store.put(key, buffered, size);
         } catch (Exception e) {
-            debug("Failed to upload image to S3");
-            return null;
+            uploadStage.failure(uploadStart);
+            debug("Failed to upload image to storage");
+            return CompletableFuture.failedFuture(e);
         }
+        uploadStage.success(uploadStart);
+        debug("Uploaded image to storage");
+        return sendToInbox(key, lane);
+    }
 
+    private CompletableFuture<Void> sendToInbox(String key, Lane lane) {
+        long sendStart = System.nanoTime();
+        return queue.send(lane.queue(), key, sendDelaySeconds)
+                .whenComplete((messageId, error) -> {
+                    inboxSendStage.record(sendStart, error == null);
+                    if (error == null) {
+                        laneJobs.get(lane).increment();
+                    }
+                    debug(error == null ? "Sent message to " + lane.getLabel() + " inbox queue" : "Failed to send message to inbox queue");
+                })
+                .thenApply(messageId -> null);
+    }
+
+    private boolean uploadImage(String key, Lane lane, InputStream fileContent) {
+        long start = System.nanoTime();
         try {
-            // Send message to SQS inbox queue
-            sqs.sendMessage(SendMessageRequest.builder()
-                    .queueUrl(inboxQueueUrl)
-                    .messageBody(key)
-                    .delaySeconds(1)
-                    .build());
-            debug("Sent message to inbox queue");
+            // Upload image to storage; the length is unknown, available() only counts what is buffered
+            store.put(key, fileContent, -1);
+            uploadStage.success(start);
+            debug("Uploaded image to storage");
         } catch (Exception e) {
+            uploadStage.failure(start);
+            debug("Failed to upload image to storage");
+            return false;
+        }
+
+        start = System.nanoTime();
+        try {
+            // Send message to inbox queue
+            queue.send(lane.queue(), key, sendDelaySeconds).join();
+            inboxSendStage.success(start);
+            laneJobs.get(lane).increment();
+            debug("Sent message to " + lane.getLabel() + " inbox queue");
+        } catch (Exception e) {
+            inboxSendStage.failure(start);
             debug("Failed to send message to inbox queue");
-            return null;
+            return false;
         }
 
-        return key;
+        return true;
+    }
+
+    // Peek at the header of a stream without consuming it; size is -1 if unknown
+    private Lane classify(BufferedInputStream content, long size) throws IOException {
+        content.mark(HEADER_BYTES);
+        byte[] header = content.readNBytes(HEADER_BYTES);
+        content.reset();
+        return classify(header, size >= 0 ? size : header.length < HEADER_BYTES ? header.length : -1);
+    }
+
+    // Size of the upload (-1 if only the header is known) and the dimensions in its header decide the lane
+    private Lane classify(byte[] header, long size) {
+        if (size > heavyBytes) {
+            return Lane.HEAVY;
+        }
+        Dimension dimensions = ImageUtils.readDimensions(header, header.length);
+        if (dimensions == null) {
+            // Either a format only ImageMagick reads, or a stream whose header did not fit in HEADER_BYTES
+            return Lane.HEAVY;
+        }
+        return (long) dimensions.width * dimensions.height > heavyPixels ? Lane.HEAVY : Lane.FAST;
     }
 
     public String downloadImage(String fileName, String directory, String key) {
@@ -102,76 +312,192 @@ public class ImageUploadClient {
             debug("Failed to create output folder.");
             return null;
         }
-        saveInputStreamToFile(downloadImage(key), outputFile);
+        InputStream inputStream = downloadImage(key);
+        if (inputStream == null) {
+            return null;
+        }
+        saveInputStreamToFile(inputStream, outputFile);
         return outputFile.getAbsolutePath();
     }
 
-    public synchronized InputStream downloadImage(String key) {
-        int maxRetries = 30;
-        int attempt = 1;
+    // Blocking variant of awaitResult; returns null if the image is not processed in time
+    public InputStream downloadImage(String key) {
+        try {
+            return awaitResult(key).get().getInputStream(); // Return the stream to the caller (caller must close it)
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            debug("Interrupted while waiting for processed image.");
+        } catch (ExecutionException e) {
+            debug("Failed to process the image: " + e.getCause());
+        }
+        return null;
+    }
+
+    // Register interest in the result for key; the outbox dispatcher completes the future when it arrives
+    public CompletableFuture<ProcessedImage> awaitResult(String key) {
+        CompletableFuture<ProcessedImage> result = pendingResults.computeIfAbsent(key, k -> {
+            long start = System.nanoTime();
+            CompletableFuture<ProcessedImage> future = new CompletableFuture<>();
+            future.orTimeout(resultTimeoutSeconds, TimeUnit.SECONDS)
+                    .whenComplete((image, error) -> {
+                        pendingResults.remove(k, future);
+                        resultWaitStage.record(start, error == null);
+                    });
+            return future;
+        });
+        synchronized (dispatcherSignal) {
+            dispatcherSignal.notifyAll();
+        }
+        return result;
+    }
 
-        while (attempt <= maxRetries) {
+    // Single consumer of the outbox queue, routing each result to the future waiting for exactly that key
+    private void dispatchOutbox() {
+        while (running) {
             try {
-                List<Message> messages = sqs.receiveMessage(ReceiveMessageRequest.builder()
-                        .queueUrl(outboxQueueUrl)
-                        .maxNumberOfMessages(10)
-                        .waitTimeSeconds(10)
-                        .visibilityTimeout(10)
-                        .build()).messages();
+                synchronized (dispatcherSignal) {
+                    // Don't poll the outbox while nobody is waiting for a result
+                    while (running && pendingResults.isEmpty()) {
+                        dispatcherSignal.wait();
+                    }
+                }
+                if (!running) {
+                    break;
+                }
+
+                List<QueueMessage> messages = queue.receive(outboxQueueUrl, 10, 10, 30);
 
                 if (messages.isEmpty()) {
                     debug("No messages received from outbox queue");
-                    return null;
+                    continue;
                 }
 
                 debug("Received " + messages.size() + " messages from outbox queue");
 
-                for (Message message : messages) {
-                    if (message.body().contains(key)) {
-
-                        InputStream inputStream = null;
-
-                        try {
-                            inputStream = s3.getObjectAsBytes(GetObjectRequest.builder()
-                                    .bucket(bucketName)
-                                    .key("processed-" + key)
-                                    .build()).asInputStream();
-                            debug("Downloaded processed image.");
-                        } catch (Exception e) {
-                            debug("Failed to download processed image.");
-                            break;
-                        }
-
-                        try {
-                            // Clean up outbox queue
-                            sqs.deleteMessage(DeleteMessageRequest.builder()
-                                    .queueUrl(outboxQueueUrl)
-                                    .receiptHandle(message.receiptHandle())
-                                    .build());
-                            debug("Deleted message from outbox queue.");
-                        } catch (Exception e) {
-                            debug("Failed to delete message from outbox queue.");
-                        }
-
-                        try {
-                            // Clean up S3
-                            s3.deleteObject(deleteObjectRequest -> deleteObjectRequest.bucket(bucketName).key("processed-" + key));
-                            debug("Deleted processed image from S3.");
-                        } catch (Exception e) {
-                            debug("Failed to delete processed image from S3.");
-                        }
-
-                        return inputStream; // Return the stream to the caller (caller must close it)
+                for (QueueMessage message : messages) {
+                    String key = ProcessedImage.resultKey(message.getBody());
+                    CompletableFuture<ProcessedImage> result = pendingResults.remove(key);
+                    if (result != null) {
+                        deliveredKeys.add(key);
+                        completeResult(key, message, result);
+                    } else if (deliveredKeys.contains(key)) {
+                        dropDuplicate(message);
+                    } else {
+                        releaseUnclaimed(message);
                     }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             } catch (Exception e) {
-                debug("Failed during download process: " + e.getMessage());
-            } finally {
-                attempt++;
+                debug("Failed during dispatch of outbox queue: " + e.getMessage());
             }
         }
-        debug("Failed to process the image after " + maxRetries + " attempts.");
-        return null;
+        debug("Outbox dispatcher stopped.");
+    }
+
+    // Runs on the dispatcher thread, so nothing in here may block. Every size of the result is fetched at once.
+    private void completeResult(String key, QueueMessage message, CompletableFuture<ProcessedImage> result) {
+        long start = System.nanoTime();
+        List<Integer> sizes;
+        try {
+            sizes = ProcessedImage.resultSizes(message.getBody());
+        } catch (NumberFormatException e) {
+            sizes = List.of();
+        }
+        if (sizes.isEmpty()) {
+            debug("Malformed result message: " + message.getBody());
+            result.completeExceptionally(new IOException("Malformed result message: " + message.getBody()));
+            return;
+        }
+
+        if (storedResults.remove(key)) {
+            // Readers fetch these from storage themselves
+            deleteOutboxMessage(message);
+            expireResults(key, sizes);
+            result.complete(new ProcessedImage(key, sizes));
+            return;
+        }
+
+        SortedMap<Integer, CompletableFuture<byte[]>> downloads = new TreeMap<>();
+        for (int size : sizes) {
+            downloads.put(size, store.getBytesAsync(ProcessedImage.variantKey(key, size)));
+        }
+        CompletableFuture.allOf(downloads.values().toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            if (error != null) {
+                downloadStage.failure(start);
+                debug("Failed to download processed image.");
+                result.completeExceptionally(error);
+                return;
+            }
+            downloadStage.success(start);
+            debug("Downloaded processed image in " + downloads.size() + " sizes.");
+
+            // Clean up the outbox queue without holding back the result; storage is cleaned up when the result expires
+            deleteOutboxMessage(message);
+            SortedMap<Integer, byte[]> variants = new TreeMap<>();
+            downloads.forEach((size, download) -> variants.put(size, download.join()));
+            expireResults(key, List.copyOf(variants.keySet()));
+
+            result.complete(new ProcessedImage(key, variants));
+        });
+    }
+
+    private void deleteOutboxMessage(QueueMessage message) {
+        queue.delete(outboxQueueUrl, message.getReceiptHandle()).whenComplete((deleted, deleteError) ->
+                debug(deleteError == null ? "Deleted message from outbox queue." : "Failed to delete message from outbox queue."));
+    }
+
+    // Delete every size of a result once results.ttlSeconds have passed. Nothing is scheduled across restarts:
+    // on S3 a lifecycle rule on the processed- prefix removes whatever is left behind (see doc/setup.md).
+    private void expireResults(String key, List<Integer> sizes) {
+        expiry.schedule(() -> {
+            for (int size : sizes) {
+                store.deleteAsync(ProcessedImage.variantKey(key, size)).whenComplete((deleted, deleteError) ->
+                        debug(deleteError == null ? "Deleted expired processed image from storage." : "Failed to delete expired processed image from storage."));
+            }
+        }, resultTtlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // A repeated result for a key that has been delivered already; the first message is the one that counts
+    private void dropDuplicate(QueueMessage message) {
+        duplicateResults.increment();
+        queue.delete(outboxQueueUrl, message.getReceiptHandle()).whenComplete((ignored, error) ->
+                debug((error == null ? "Deleted" : "Failed to delete") + " duplicate message from outbox queue: " + message.getBody()));
+    }
+
+    // A result nobody here is waiting for may belong to another client: make it visible again quickly,
+    // and drop it once it has gone unclaimed for too long so orphans do not circulate until retention expires
+    private void releaseUnclaimed(QueueMessage message) {
+        try {
+            if (message.getReceiveCount() > maxUnclaimedReceives) {
+                // Don't block the dispatcher on the batch
+                queue.delete(outboxQueueUrl, message.getReceiptHandle()).whenComplete((ignored, error) ->
+                        debug((error == null ? "Deleted" : "Failed to delete") + " unclaimed message from outbox queue: " + message.getBody()));
+                return;
+            }
+            queue.changeVisibility(outboxQueueUrl, message.getReceiptHandle(), unclaimedVisibilitySeconds).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    debug("Failed to release unclaimed message: " + error.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            debug("Failed to release unclaimed message: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        synchronized (dispatcherSignal) {
+            dispatcherSignal.notifyAll();
+        }
+        outboxDispatcher.interrupt();
+        expiry.shutdownNow();
+        pendingResults.values().forEach(result -> result.completeExceptionally(new IllegalStateException("Client closed")));
+        pendingResults.clear();
+        queue.close();
+        store.close();
     }
 
     private boolean createFolders(String directoryName) {
@@ -237,5 +563,7 @@ public class ImageUploadClient {
 
         String filePath = client.downloadImage(fileName, outputFolder, key);
         debug("Downloaded processed image to: " + filePath);
+
+        client.close();
     }
 }
\ No newline at end of file
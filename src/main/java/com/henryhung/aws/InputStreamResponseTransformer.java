@@ -0,0 +1,162 @@
+package com.henryhung.aws;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.henryhung.transport.StoredObject;
+
+// Hands an S3 object body to a blocking reader as it arrives, like the sync client's ResponseInputStream.
+// Only a few chunks are requested ahead of the reader, so a slow decoder holds back the download
+// instead of the whole object piling up in memory.
+class InputStreamResponseTransformer implements AsyncResponseTransformer<GetObjectResponse, StoredObject> {
+
+    private static final int CHUNKS_AHEAD = 8;
+
+    private volatile CompletableFuture<StoredObject> result;
+    private volatile GetObjectResponse response;
+    private volatile BodyInputStream body;
+
+    @Override
+    public CompletableFuture<StoredObject> prepare() {
+        result = new CompletableFuture<>();
+        return result;
+    }
+
+    @Override
+    public void onResponse(GetObjectResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    public void onStream(SdkPublisher<ByteBuffer> publisher) {
+        body = new BodyInputStream();
+        publisher.subscribe(body);
+        Long contentLength = response.contentLength();
+        result.complete(new StoredObject(body, contentLength == null ? -1 : contentLength, body::abort));
+    }
+
+    @Override
+    public void exceptionOccurred(Throwable error) {
+        if (!result.completeExceptionally(error) && body != null) {
+            // The reader already has the stream; fail its next read
+            body.onError(error);
+        }
+    }
+
+    private static class BodyInputStream extends InputStream implements Subscriber<ByteBuffer> {
+        private static final Object END = new Object();
+
+        private final LinkedBlockingQueue<Object> chunks = new LinkedBlockingQueue<>();
+        private volatile Subscription subscription;
+        private volatile boolean cancelled;
+        private ByteBuffer current;
+        private boolean finished;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if (cancelled) {
+                subscription.cancel();
+            } else {
+                subscription.request(CHUNKS_AHEAD);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer chunk) {
+            chunks.add(chunk);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            chunks.add(error);
+        }
+
+        @Override
+        public void onComplete() {
+            chunks.add(END);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(length, current.remaining());
+            current.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        // Make sure current has bytes left, waiting for the next chunk if necessary; false at the end of the body
+        private boolean nextChunk() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (finished) {
+                    return false;
+                }
+                if (cancelled) {
+                    throw new IOException("Stream closed");
+                }
+                Object next;
+                try {
+                    next = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the object body");
+                }
+                if (next == END) {
+                    finished = true;
+                    return false;
+                }
+                if (next instanceof Throwable) {
+                    finished = true;
+                    throw new IOException("Failed to read the object body", (Throwable) next);
+                }
+                current = (ByteBuffer) next;
+                subscription.request(1);
+            }
+            return true;
+        }
+
+        // Stop the transfer; the connection is dropped instead of draining the rest of the body
+        private void abort() {
+            cancelled = true;
+            Subscription subscribed = subscription;
+            if (subscribed != null) {
+                subscribed.cancel();
+            }
+            chunks.clear();
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                abort();
+            }
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.henryhung.aws;
+
+import java.util.concurrent.CompletableFuture;
+
+// An image submitted through the job API (see ImageUploadClient.submitJob). Its results stay in storage, where
+// readers fetch them directly, until the job expires; the record itself is dropped at the same time.
+// A job answered from a cache (ImageUploadClient.completedJob) holds its results itself instead.
+public class Job {
+
+    public enum State {
+        // The upload to storage is in progress
+        UPLOADING,
+        // In an inbox queue or with a worker
+        QUEUED,
+        DONE,
+        FAILED;
+
+        public boolean isFinished() {
+            return this == DONE || this == FAILED;
+        }
+    }
+
+    private final String id;
+    private final String fileName;
+    private final long submittedMillis = System.currentTimeMillis();
+    private final CompletableFuture<ProcessedImage> result = new CompletableFuture<>();
+    private volatile State state = State.UPLOADING;
+    private volatile long finishedMillis;
+    private volatile long expiresAtMillis = Long.MAX_VALUE;
+
+    Job(String id, String fileName) {
+        this.id = id;
+        this.fileName = fileName;
+    }
+
+    // Also the storage key of the upload
+    public String getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    // Completed with the sizes left in storage, or with the reason the job failed
+    public CompletableFuture<ProcessedImage> getResult() {
+        return result;
+    }
+
+    // The finished result, or null while the job is running or if it failed
+    public ProcessedImage getProcessedImage() {
+        return state == State.DONE ? result.join() : null;
+    }
+
+    // Time spent so far, or until the job finished
+    public long getElapsedMillis() {
+        return (state.isFinished() ? finishedMillis : System.currentTimeMillis()) - submittedMillis;
+    }
+
+    // When the record and the results go away; Long.MAX_VALUE while the job is running
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    void queued() {
+        if (state == State.UPLOADING) {
+            state = State.QUEUED;
+        }
+    }
+
+    void finish(ProcessedImage processedImage, Throwable error, long ttlMillis) {
+        finishedMillis = System.currentTimeMillis();
+        expiresAtMillis = finishedMillis + ttlMillis;
+        state = error == null ? State.DONE : State.FAILED;
+        if (error == null) {
+            result.complete(processedImage);
+        } else {
+            result.completeExceptionally(error);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.henryhung.aws;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import com.henryhung.utils.Config;
+
+// A fixed number of part-sized buffers for multipart uploads. Buffers are allocated on first use and then
+// reused; a caller blocks while all of them are in use, so the heap held by uploads stays flat however many
+// uploads run at once.
+public class PartBufferPool {
+
+    // S3 rejects parts smaller than 5 MB, except for the last one
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static PartBufferPool shared;
+
+    private final int partSize;
+    private final int buffers;
+    private final Semaphore available;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    public PartBufferPool(int partSize, int buffers) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes: " + partSize);
+        }
+        this.partSize = partSize;
+        this.buffers = Math.max(1, buffers);
+        this.available = new Semaphore(this.buffers);
+    }
+
+    // One pool per JVM, sized by s3.partSizeBytes and s3.partBufferPoolBytes
+    public static synchronized PartBufferPool shared() {
+        if (shared == null) {
+            int partSize = Math.max(MIN_PART_SIZE, Config.getInt("s3.partSizeBytes", 8 * 1024 * 1024));
+            long poolBytes = Config.getLong("s3.partBufferPoolBytes", 64L * 1024 * 1024);
+            shared = new PartBufferPool(partSize, (int) Math.max(1, poolBytes / partSize));
+        }
+        return shared;
+    }
+
+    public byte[] acquire() throws InterruptedException {
+        available.acquire();
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    public void release(byte[] buffer) {
+        free.add(buffer);
+        available.release();
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public int getBuffers() {
+        return buffers;
+    }
+
+    public int getAvailable() {
+        return available.availablePermits();
+    }
+}
@@ -0,0 +1,102 @@
+package com.henryhung.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Result of a processing job: the key of the uploaded image and the processed content (caller must close the stream).
+// A job can produce several sizes of the same output; the stream holds the largest, getVariant any of them.
+// A result left in storage for the job API carries only its sizes; resultKey names the stored objects.
+public class ProcessedImage {
+
+    private static final String PROCESSED_PREFIX = "processed-";
+
+    private final String key;
+    private final InputStream inputStream;
+    private final SortedMap<Integer, byte[]> variants;
+    private final List<Integer> sizes;
+
+    public ProcessedImage(String key, InputStream inputStream) {
+        this.key = key;
+        this.inputStream = inputStream;
+        this.variants = Collections.emptySortedMap();
+        this.sizes = List.of();
+    }
+
+    public ProcessedImage(String key, SortedMap<Integer, byte[]> variants) {
+        this.key = key;
+        this.inputStream = new ByteArrayInputStream(variants.get(variants.lastKey()));
+        this.variants = Collections.unmodifiableSortedMap(new TreeMap<>(variants));
+        this.sizes = List.copyOf(variants.keySet());
+    }
+
+    // A result that is still in storage, not downloaded
+    public ProcessedImage(String key, List<Integer> sizes) {
+        this.key = key;
+        this.inputStream = InputStream.nullInputStream();
+        this.variants = Collections.emptySortedMap();
+        List<Integer> sorted = new ArrayList<>(sizes);
+        Collections.sort(sorted);
+        this.sizes = Collections.unmodifiableList(sorted);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    // Output edge lengths in pixels, smallest first
+    public List<Integer> getSizes() {
+        return new ArrayList<>(sizes);
+    }
+
+    // The encoded output of the given size, or null if the job did not produce it or it was left in storage
+    public byte[] getVariant(int size) {
+        return variants.get(size);
+    }
+
+    // Storage key of one output size, for results left in storage
+    public String resultKey(int size) {
+        return variantKey(key, size);
+    }
+
+    // Storage key of one output size of an uploaded image
+    static String variantKey(String key, int size) {
+        return PROCESSED_PREFIX + size + "-" + key;
+    }
+
+    // Outbox message announcing every size of one job at once, e.g. processed-<key>;64,128,256,512
+    static String resultMessage(String key, List<Integer> sizes) {
+        StringBuilder message = new StringBuilder(PROCESSED_PREFIX).append(key).append(';');
+        for (int i = 0; i < sizes.size(); i++) {
+            message.append(i == 0 ? "" : ",").append(sizes.get(i));
+        }
+        return message.toString();
+    }
+
+    static String resultKey(String message) {
+        int end = message.indexOf(';');
+        String processedKey = end < 0 ? message : message.substring(0, end);
+        return processedKey.startsWith(PROCESSED_PREFIX) ? processedKey.substring(PROCESSED_PREFIX.length()) : processedKey;
+    }
+
+    static List<Integer> resultSizes(String message) {
+        List<Integer> sizes = new ArrayList<>();
+        int start = message.indexOf(';');
+        if (start >= 0) {
+            for (String size : message.substring(start + 1).split(",")) {
+                if (!size.isEmpty()) {
+                    sizes.add(Integer.parseInt(size.trim()));
+                }
+            }
+        }
+        return sizes;
+    }
+}
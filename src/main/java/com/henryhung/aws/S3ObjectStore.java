@@ -0,0 +1,251 @@
+package com.henryhung.aws;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import com.henryhung.transport.ObjectStore;
+import com.henryhung.transport.StoredObject;
+import com.henryhung.utils.Config;
+
+// A bucket accessed through the shared async client; the blocking methods wait on the async calls.
+// Objects larger than one part (s3.partSizeBytes) are uploaded as multipart uploads and downloaded
+// as ranged GETs, with up to s3.maxPartsInFlight parts of each object transferring at once.
+// Given a presigner, it hands out presigned GET URLs so that readers fetch objects from S3 directly.
+public class S3ObjectStore implements ObjectStore {
+
+    private final S3AsyncClient s3;
+    private final S3Presigner presigner;
+    private final String bucketName;
+    private final S3ParallelTransfer transfer;
+    private final int partSize;
+
+    public S3ObjectStore(S3AsyncClient s3, String bucketName) {
+        this(s3, null, bucketName);
+    }
+
+    public S3ObjectStore(S3AsyncClient s3, S3Presigner presigner, String bucketName) {
+        this(s3, presigner, bucketName, PartBufferPool.shared(), Config.getInt("s3.maxPartsInFlight", 4));
+    }
+
+    public S3ObjectStore(S3AsyncClient s3, S3Presigner presigner, String bucketName, PartBufferPool partBuffers, int maxPartsInFlight) {
+        this.s3 = s3;
+        this.presigner = presigner;
+        this.bucketName = bucketName;
+        this.transfer = new S3ParallelTransfer(s3, bucketName, partBuffers, maxPartsInFlight);
+        this.partSize = partBuffers.getPartSize();
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength) throws IOException {
+        if (contentLength < 0 || contentLength > partSize) {
+            // Unknown or large: stream it through pooled part buffers instead of reading it all into the heap
+            try {
+                transfer.upload(key, content);
+            } catch (RuntimeException e) {
+                throw rethrow(key, e);
+            }
+            return;
+        }
+        byte[] bytes = content.readNBytes((int) contentLength);
+        if (bytes.length != contentLength) {
+            throw new IOException("Expected " + contentLength + " bytes for " + key + " but read " + bytes.length);
+        }
+        await(key, putAsync(key, bytes));
+    }
+
+    @Override
+    public void put(String key, Path file) throws IOException {
+        if (Files.size(file) > partSize) {
+            try (InputStream content = Files.newInputStream(file)) {
+                put(key, content, -1);
+            }
+            return;
+        }
+        await(key, s3.putObject(putRequest(key), AsyncRequestBody.fromFile(file)));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] content) {
+        if (content.length > partSize) {
+            return transfer.uploadAsync(key, content);
+        }
+        return s3.putObject(putRequest(key), new ByteBufferRequestBody(content, 0, content.length)).thenApply(response -> null);
+    }
+
+    @Override
+    public StoredObject get(String key) throws IOException {
+        return await(key, s3.getObject(getRequest(key), new InputStreamResponseTransformer()));
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws IOException {
+        return await(key, getBytesAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String key) {
+        ArraySink sink = new ArraySink();
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        transfer.download(key, sink).whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(translate(key, error));
+            } else {
+                result.complete(sink.content);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void download(String key, Path destination) throws IOException {
+        try (FileChannel channel = FileChannel.open(destination,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            await(key, transfer.download(key, new FileSink(channel)));
+        }
+    }
+
+    @Override
+    public boolean exists(String key) throws IOException {
+        try {
+            await(key, s3.headObject(headRequest -> headRequest.bucket(bucketName).key(key)));
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        await(key, deleteAsync(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        return s3.deleteObject(deleteObjectRequest -> deleteObjectRequest.bucket(bucketName).key(key)).thenApply(response -> null);
+    }
+
+    @Override
+    public URL presignGet(String key, String contentType, Duration validity) {
+        if (presigner == null) {
+            return null;
+        }
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .responseContentType(contentType)
+                .build();
+        return presigner.presignGetObject(presignRequest -> presignRequest.signatureDuration(validity).getObjectRequest(request)).url();
+    }
+
+    // The client belongs to AwsClients and outlives this store
+    @Override
+    public void close() {
+    }
+
+    private PutObjectRequest putRequest(String key) {
+        return PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+    }
+
+    private GetObjectRequest getRequest(String key) {
+        return GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build();
+    }
+
+    private <T> T await(String key, CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accessing s3://" + bucketName + "/" + key);
+        } catch (ExecutionException e) {
+            throw rethrow(key, e.getCause());
+        }
+    }
+
+    private IOException rethrow(String key, Throwable error) {
+        Throwable cause = translate(key, error);
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    // Report a missing object the same way for every store, and unwrap the SDK's exception
+    private Throwable translate(String key, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        // HEAD responses have no body, so a missing object may come back as a bare 404
+        if (cause instanceof NoSuchKeyException || cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 404) {
+            FileNotFoundException notFound = new FileNotFoundException("No such object: s3://" + bucketName + "/" + key);
+            notFound.initCause(cause);
+            return notFound;
+        }
+        return cause;
+    }
+
+    // Collects a ranged download into one array sized from the first response
+    private static class ArraySink implements S3ParallelTransfer.RangeSink {
+        private volatile byte[] content;
+
+        @Override
+        public void open(long totalSize) throws IOException {
+            if (totalSize > Integer.MAX_VALUE - 8) {
+                throw new IOException("Object too large to hold in memory: " + totalSize + " bytes");
+            }
+            content = new byte[(int) totalSize];
+        }
+
+        @Override
+        public void write(long position, ByteBuffer chunk) {
+            chunk.get(content, (int) position, chunk.remaining());
+        }
+    }
+
+    // Writes each range at its own offset in the file, so ranges can finish in any order
+    private static class FileSink implements S3ParallelTransfer.RangeSink {
+        private final FileChannel channel;
+
+        private FileSink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void open(long totalSize) {
+        }
+
+        @Override
+        public void write(long position, ByteBuffer chunk) throws IOException {
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+        }
+    }
+}
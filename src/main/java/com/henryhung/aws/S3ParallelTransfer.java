@@ -0,0 +1,407 @@
+package com.henryhung.aws;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Moves objects larger than one part as several concurrent requests: multipart uploads and ranged GETs.
+// Stream uploads fill buffers from a PartBufferPool; downloads write each range straight into its sink.
+class S3ParallelTransfer {
+
+    private final S3AsyncClient s3;
+    private final String bucketName;
+    private final PartBufferPool partBuffers;
+    private final int partSize;
+    private final int maxPartsInFlight;
+
+    S3ParallelTransfer(S3AsyncClient s3, String bucketName, PartBufferPool partBuffers, int maxPartsInFlight) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.partBuffers = partBuffers;
+        this.partSize = partBuffers.getPartSize();
+        this.maxPartsInFlight = Math.max(1, maxPartsInFlight);
+    }
+
+    int getPartSize() {
+        return partSize;
+    }
+
+    // Upload a stream of any length. Up to maxPartsInFlight parts are on the wire while the next one is read;
+    // a stream that ends within the first part goes up as a single PutObject.
+    void upload(String key, InputStream content) throws IOException {
+        Semaphore partsInFlight = new Semaphore(maxPartsInFlight);
+        byte[] buffer = acquireBuffer(partsInFlight);
+        int length = fill(buffer, content, partsInFlight);
+        if (length < partSize) {
+            try {
+                await(s3.putObject(PutObjectRequest.builder()
+                                .bucket(bucketName)
+                                .key(key)
+                                .build(),
+                        new ByteBufferRequestBody(buffer, 0, length)));
+            } finally {
+                partBuffers.release(buffer);
+            }
+            return;
+        }
+
+        String uploadId;
+        try {
+            uploadId = await(s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build())).uploadId();
+        } catch (IOException | RuntimeException e) {
+            partBuffers.release(buffer);
+            throw e;
+        }
+
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        try {
+            int partNumber = 1;
+            while (true) {
+                byte[] partBuffer = buffer;
+                CompletableFuture<CompletedPart> part = uploadPart(key, uploadId, partNumber++, partBuffer, 0, length);
+                part.whenComplete((completed, error) -> {
+                    partBuffers.release(partBuffer);
+                    partsInFlight.release();
+                });
+                parts.add(part);
+                if (length < partSize || part.isCompletedExceptionally()) {
+                    break;
+                }
+                buffer = acquireBuffer(partsInFlight);
+                length = fill(buffer, content, partsInFlight);
+                if (length == 0) {
+                    partBuffers.release(buffer);
+                    partsInFlight.release();
+                    break;
+                }
+            }
+            completeUpload(key, uploadId, await(allParts(parts)));
+        } catch (IOException | RuntimeException e) {
+            abortUpload(key, uploadId, parts);
+            throw e;
+        }
+    }
+
+    // Upload content that is already in memory; every part is a view of the array, so nothing is copied.
+    // Like the stream upload, at most maxPartsInFlight parts are on the wire; each part that settles starts the next.
+    CompletableFuture<Void> uploadAsync(String key, byte[] content) {
+        return s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()).thenCompose(created -> {
+            String uploadId = created.uploadId();
+            List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+            for (int offset = 0; offset < content.length; offset += partSize) {
+                parts.add(new CompletableFuture<>());
+            }
+            startParts(key, uploadId, content, parts, new Semaphore(maxPartsInFlight), new AtomicInteger());
+            return allParts(parts)
+                    .thenCompose(completed -> s3.completeMultipartUpload(completeRequest(key, uploadId, completed)))
+                    .<Void>thenApply(response -> null)
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            abortUpload(key, uploadId, parts);
+                        }
+                    });
+        });
+    }
+
+    // Start parts in order while permits are free, without blocking. Once a part fails, the parts not started yet
+    // fail with it instead of being sent.
+    private void startParts(String key, String uploadId, byte[] content, List<CompletableFuture<CompletedPart>> parts,
+                            Semaphore partsInFlight, AtomicInteger nextPart) {
+        while (partsInFlight.tryAcquire()) {
+            int index = nextPart.getAndIncrement();
+            if (index >= parts.size()) {
+                partsInFlight.release();
+                return;
+            }
+            int offset = index * partSize;
+            uploadPart(key, uploadId, index + 1, content, offset, Math.min(partSize, content.length - offset)).whenComplete((completed, error) -> {
+                partsInFlight.release();
+                if (error == null) {
+                    parts.get(index).complete(completed);
+                    startParts(key, uploadId, content, parts, partsInFlight, nextPart);
+                    return;
+                }
+                parts.get(index).completeExceptionally(error);
+                for (int skipped = nextPart.getAndSet(parts.size()); skipped < parts.size(); skipped++) {
+                    parts.get(skipped).completeExceptionally(error);
+                }
+            });
+        }
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(String key, String uploadId, int partNumber, byte[] buffer, int offset, int length) {
+        return s3.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucketName)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength((long) length)
+                                .build(),
+                        new ByteBufferRequestBody(buffer, offset, length))
+                .thenApply(response -> CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(response.eTag())
+                        .build());
+    }
+
+    private CompletableFuture<List<CompletedPart>> allParts(List<CompletableFuture<CompletedPart>> parts) {
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<CompletedPart> completed = new ArrayList<>();
+            parts.forEach(part -> completed.add(part.join()));
+            completed.sort(Comparator.comparing(CompletedPart::partNumber));
+            return completed;
+        });
+    }
+
+    private void completeUpload(String key, String uploadId, List<CompletedPart> parts) throws IOException {
+        await(s3.completeMultipartUpload(completeRequest(key, uploadId, parts)));
+    }
+
+    private CompleteMultipartUploadRequest completeRequest(String key, String uploadId, List<CompletedPart> parts) {
+        return CompleteMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build();
+    }
+
+    // Abort once the parts already sent have settled, otherwise a late part could be stored after the abort
+    private void abortUpload(String key, String uploadId, List<CompletableFuture<CompletedPart>> parts) {
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .build()))
+                .thenCompose(abort -> abort)
+                .whenComplete((ignored, error) ->
+                        debug((error == null ? "Aborted" : "Failed to abort") + " multipart upload of " + key));
+    }
+
+    private byte[] acquireBuffer(Semaphore partsInFlight) throws IOException {
+        try {
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part to finish uploading");
+        }
+        try {
+            return partBuffers.acquire();
+        } catch (InterruptedException e) {
+            partsInFlight.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part buffer");
+        }
+    }
+
+    private int fill(byte[] buffer, InputStream content, Semaphore partsInFlight) throws IOException {
+        try {
+            return content.readNBytes(buffer, 0, partSize);
+        } catch (IOException e) {
+            partBuffers.release(buffer);
+            partsInFlight.release();
+            throw e;
+        }
+    }
+
+    // Download into sink with concurrent ranged GETs. The first range also reports the object size;
+    // the rest are pinned to its ETag so that a concurrent overwrite fails the download instead of mixing versions.
+    CompletableFuture<Void> download(String key, RangeSink sink) {
+        RangeTransformer first = new RangeTransformer(sink, 0, true);
+        return s3.getObject(rangeRequest(key, 0, partSize - 1, null), first)
+                .handle((response, error) -> {
+                    if (error == null) {
+                        return response;
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    // S3 refuses any range of an empty object
+                    if (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 416) {
+                        try {
+                            sink.open(0);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                        return null;
+                    }
+                    throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                })
+                .thenCompose(response -> {
+                    long totalSize = first.totalSize;
+                    if (response == null || totalSize <= partSize) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    AtomicLong nextOffset = new AtomicLong(partSize);
+                    List<CompletableFuture<Void>> workers = new ArrayList<>();
+                    for (int i = 0; i < maxPartsInFlight; i++) {
+                        workers.add(downloadRemaining(key, sink, response.eTag(), totalSize, nextOffset));
+                    }
+                    return CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0]));
+                });
+    }
+
+    // Keep fetching the next unclaimed range until the object is complete
+    private CompletableFuture<Void> downloadRemaining(String key, RangeSink sink, String eTag, long totalSize, AtomicLong nextOffset) {
+        long offset = nextOffset.getAndAdd(partSize);
+        if (offset >= totalSize) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long last = Math.min(totalSize, offset + partSize) - 1;
+        return s3.getObject(rangeRequest(key, offset, last, eTag), new RangeTransformer(sink, offset, false))
+                .thenCompose(response -> downloadRemaining(key, sink, eTag, totalSize, nextOffset));
+    }
+
+    private GetObjectRequest rangeRequest(String key, long first, long last, String eTag) {
+        return GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .range("bytes=" + first + "-" + last)
+                .ifMatch(eTag)
+                .build();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during S3 transfer");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void debug(String message) {
+        System.out.println("S3ParallelTransfer: " + message);
+    }
+
+    // Destination of a ranged download; ranges arrive concurrently and out of order
+    interface RangeSink {
+        // Called once, with the object size, before the first write
+        void open(long totalSize) throws IOException;
+
+        void write(long position, ByteBuffer chunk) throws IOException;
+    }
+
+    // Writes the body of one ranged GET into the sink at the range's offset, one chunk at a time
+    private static class RangeTransformer implements AsyncResponseTransformer<GetObjectResponse, GetObjectResponse>, Subscriber<ByteBuffer> {
+        private final RangeSink sink;
+        private final boolean first;
+        private long position;
+        private volatile long totalSize = -1;
+        private volatile CompletableFuture<GetObjectResponse> result;
+        private volatile GetObjectResponse response;
+        private Subscription subscription;
+
+        private RangeTransformer(RangeSink sink, long offset, boolean first) {
+            this.sink = sink;
+            this.position = offset;
+            this.first = first;
+        }
+
+        @Override
+        public CompletableFuture<GetObjectResponse> prepare() {
+            result = new CompletableFuture<>();
+            return result;
+        }
+
+        @Override
+        public void onResponse(GetObjectResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void onStream(SdkPublisher<ByteBuffer> publisher) {
+            if (first) {
+                try {
+                    totalSize = totalSize(response);
+                    sink.open(totalSize);
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+            }
+            publisher.subscribe(this);
+        }
+
+        @Override
+        public void exceptionOccurred(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer chunk) {
+            try {
+                long chunkPosition = position;
+                position += chunk.remaining();
+                sink.write(chunkPosition, chunk);
+            } catch (IOException | RuntimeException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(response);
+        }
+
+        // From "bytes 0-8388607/104857600"; without a Content-Range the whole object was returned
+        private static long totalSize(GetObjectResponse response) {
+            String contentRange = response.contentRange();
+            if (contentRange == null) {
+                return response.contentLength();
+            }
+            return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+        }
+    }
+}
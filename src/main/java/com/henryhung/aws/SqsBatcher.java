@@ -0,0 +1,228 @@
+package com.henryhung.aws;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.henryhung.utils.ThreadUtils;
+
+// Coalesces individual SendMessage/DeleteMessage calls into SendMessageBatch/DeleteMessageBatch requests.
+// A batch is sent when it reaches 10 entries or when the first entry has waited for the linger window.
+// Every call gets its own future, failed exceptionally if its entry fails inside an otherwise successful batch.
+public class SqsBatcher implements AutoCloseable {
+
+    // SQS accepts at most 10 entries per batch request
+    private static final int MAX_BATCH_SIZE = 10;
+
+    private final SqsAsyncClient sqs;
+    private final long lingerMillis;
+
+    private final Map<String, List<PendingSend>> pendingSends = new HashMap<>();
+    private final Map<String, List<PendingDelete>> pendingDeletes = new HashMap<>();
+
+    private final ScheduledExecutorService lingerScheduler = Executors.newSingleThreadScheduledExecutor(ThreadUtils.daemonThreadFactory("sqs-batch-linger"));
+    // Batch requests on the wire, so close() can wait for them
+    private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+
+    public SqsBatcher(SqsAsyncClient sqs, long lingerMillis) {
+        this.sqs = sqs;
+        this.lingerMillis = lingerMillis;
+    }
+
+    // Completed with the message id once the batch containing this message has been sent
+    public CompletableFuture<String> sendMessage(String queueUrl, String messageBody, int delaySeconds) {
+        PendingSend send = new PendingSend(messageBody, delaySeconds);
+        List<PendingSend> full = null;
+        synchronized (this) {
+            List<PendingSend> batch = pendingSends.computeIfAbsent(queueUrl, k -> new ArrayList<>());
+            batch.add(send);
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                full = pendingSends.remove(queueUrl);
+            } else if (batch.size() == 1) {
+                lingerScheduler.schedule(() -> flushSends(queueUrl), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            sendBatch(queueUrl, full);
+        }
+        return send.result;
+    }
+
+    public CompletableFuture<Void> deleteMessage(String queueUrl, String receiptHandle) {
+        PendingDelete delete = new PendingDelete(receiptHandle);
+        List<PendingDelete> full = null;
+        synchronized (this) {
+            List<PendingDelete> batch = pendingDeletes.computeIfAbsent(queueUrl, k -> new ArrayList<>());
+            batch.add(delete);
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                full = pendingDeletes.remove(queueUrl);
+            } else if (batch.size() == 1) {
+                lingerScheduler.schedule(() -> flushDeletes(queueUrl), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            deleteBatch(queueUrl, full);
+        }
+        return delete.result;
+    }
+
+    private void flushSends(String queueUrl) {
+        List<PendingSend> entries;
+        synchronized (this) {
+            entries = pendingSends.remove(queueUrl);
+        }
+        // Already sent because the batch filled up before the linger window ended
+        if (entries != null) {
+            sendBatch(queueUrl, entries);
+        }
+    }
+
+    private void flushDeletes(String queueUrl) {
+        List<PendingDelete> entries;
+        synchronized (this) {
+            entries = pendingDeletes.remove(queueUrl);
+        }
+        if (entries != null) {
+            deleteBatch(queueUrl, entries);
+        }
+    }
+
+    private void sendBatch(String queueUrl, List<PendingSend> entries) {
+        List<SendMessageBatchRequestEntry> requestEntries = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            requestEntries.add(SendMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .messageBody(entries.get(i).messageBody)
+                    .delaySeconds(entries.get(i).delaySeconds)
+                    .build());
+        }
+
+        track(sqs.sendMessageBatch(SendMessageBatchRequest.builder()
+                .queueUrl(queueUrl)
+                .entries(requestEntries)
+                .build()).whenComplete((response, error) -> {
+            if (error != null) {
+                debug("Failed to send batch of " + entries.size() + " messages: " + error.getMessage());
+                entries.forEach(entry -> entry.result.completeExceptionally(error));
+                return;
+            }
+            for (SendMessageBatchResultEntry success : response.successful()) {
+                entries.get(Integer.parseInt(success.id())).result.complete(success.messageId());
+            }
+            for (BatchResultErrorEntry failure : response.failed()) {
+                entries.get(Integer.parseInt(failure.id())).result.completeExceptionally(new BatchEntryException(failure));
+            }
+            debug("Sent batch of " + entries.size() + " messages (" + response.failed().size() + " failed)");
+        }));
+    }
+
+    private void deleteBatch(String queueUrl, List<PendingDelete> entries) {
+        List<DeleteMessageBatchRequestEntry> requestEntries = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            requestEntries.add(DeleteMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .receiptHandle(entries.get(i).receiptHandle)
+                    .build());
+        }
+
+        track(sqs.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                .queueUrl(queueUrl)
+                .entries(requestEntries)
+                .build()).whenComplete((response, error) -> {
+            if (error != null) {
+                debug("Failed to delete batch of " + entries.size() + " messages: " + error.getMessage());
+                entries.forEach(entry -> entry.result.completeExceptionally(error));
+                return;
+            }
+            for (DeleteMessageBatchResultEntry success : response.successful()) {
+                entries.get(Integer.parseInt(success.id())).result.complete(null);
+            }
+            for (BatchResultErrorEntry failure : response.failed()) {
+                entries.get(Integer.parseInt(failure.id())).result.completeExceptionally(new BatchEntryException(failure));
+            }
+            debug("Deleted batch of " + entries.size() + " messages (" + response.failed().size() + " failed)");
+        }));
+    }
+
+    private void track(CompletableFuture<?> request) {
+        inFlight.add(request);
+        request.whenComplete((ignored, error) -> inFlight.remove(request));
+    }
+
+    // Send whatever is still waiting, then stop
+    @Override
+    public void close() {
+        List<String> sendQueues;
+        List<String> deleteQueues;
+        synchronized (this) {
+            sendQueues = new ArrayList<>(pendingSends.keySet());
+            deleteQueues = new ArrayList<>(pendingDeletes.keySet());
+        }
+        sendQueues.forEach(this::flushSends);
+        deleteQueues.forEach(this::flushDeletes);
+        lingerScheduler.shutdownNow();
+        try {
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            debug("Not every batch completed before closing: " + e.getMessage());
+        }
+    }
+
+    private static void debug(String message) {
+        System.out.println("SqsBatcher: " + message);
+    }
+
+    private static class PendingSend {
+        private final String messageBody;
+        private final int delaySeconds;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        private PendingSend(String messageBody, int delaySeconds) {
+            this.messageBody = messageBody;
+            this.delaySeconds = delaySeconds;
+        }
+    }
+
+    private static class PendingDelete {
+        private final String receiptHandle;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private PendingDelete(String receiptHandle) {
+            this.receiptHandle = receiptHandle;
+        }
+    }
+
+    // The failure of a single entry in a batch request
+    public static class BatchEntryException extends RuntimeException {
+        private final String code;
+
+        private BatchEntryException(BatchResultErrorEntry failure) {
+            super(failure.code() + ": " + failure.message());
+            this.code = failure.code();
+        }
+
+        public String getCode() {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.henryhung.aws;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import com.henryhung.transport.MessageQueue;
+import com.henryhung.transport.QueueMessage;
+
+// SQS queues addressed by URL over the shared async client; sends and deletes go through an SqsBatcher
+public class SqsMessageQueue implements MessageQueue {
+
+    private final SqsAsyncClient sqs;
+    private final SqsBatcher sqsBatcher;
+
+    public SqsMessageQueue(SqsAsyncClient sqs, long batchLingerMillis) {
+        this.sqs = sqs;
+        this.sqsBatcher = new SqsBatcher(sqs, batchLingerMillis);
+    }
+
+    @Override
+    public CompletableFuture<String> send(String queue, String body, int delaySeconds) {
+        return sqsBatcher.sendMessage(queue, body, delaySeconds);
+    }
+
+    @Override
+    public List<QueueMessage> receive(String queue, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws InterruptedException {
+        List<Message> messages;
+        try {
+            messages = sqs.receiveMessage(ReceiveMessageRequest.builder()
+                    .queueUrl(queue)
+                    .maxNumberOfMessages(maxMessages)
+                    .waitTimeSeconds(waitSeconds)
+                    .visibilityTimeout(visibilityTimeoutSeconds)
+                    .attributeNames(QueueAttributeName.ALL)
+                    .build()).get().messages();
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+
+        List<QueueMessage> received = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            received.add(new QueueMessage(message.messageId(), message.body(), message.receiptHandle(),
+                    (int) parseOrZero(message.attributes().get(MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT)),
+                    parseOrZero(message.attributes().get(MessageSystemAttributeName.SENT_TIMESTAMP))));
+        }
+        return received;
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String queue, String receiptHandle) {
+        return sqsBatcher.deleteMessage(queue, receiptHandle);
+    }
+
+    @Override
+    public CompletableFuture<Void> changeVisibility(String queue, String receiptHandle, int visibilityTimeoutSeconds) {
+        return sqs.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+                .queueUrl(queue)
+                .receiptHandle(receiptHandle)
+                .visibilityTimeout(visibilityTimeoutSeconds)
+                .build()).thenApply(response -> null);
+    }
+
+    @Override
+    public void purge(String queue) {
+        sqs.purgeQueue(purgeQueueRequest -> purgeQueueRequest.queueUrl(queue)).join();
+    }
+
+    // Flush pending batches; the client belongs to AwsClients and outlives this queue
+    @Override
+    public void close() {
+        sqsBatcher.close();
+    }
+
+    private static long parseOrZero(String value) {
+        return value == null ? 0 : Long.parseLong(value);
+    }
+}
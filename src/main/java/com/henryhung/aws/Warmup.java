@@ -0,0 +1,167 @@
+package com.henryhung.aws;
+
+import com.henryhung.transport.Transports;
+import com.henryhung.utils.Config;
+import com.henryhung.utils.ImageUtils;
+import com.henryhung.utils.Metrics;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Brings a new JVM up to speed before it takes work, and reports how long each phase of startup took:
+//  - jvm: process start to the first phase; an AppCDS archive shortens it (see cdsArchive in build.gradle.kts)
+//  - aws_clients: the shared S3 and SQS clients, plus one cheap request each unless told otherwise, so that
+//    credentials, request signing and the first TLS connections are done before the first job
+//  - imageio: the ImageIO plugin registry and a reader and writer of every format
+//  - whatever the caller adds, e.g. synthetic jobs through the worker's resize path
+// A failing phase is logged and never stops startup.
+public class Warmup {
+
+    private static final String[] FORMATS = {"jpg", "png", "gif", "bmp"};
+
+    private final String component;
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+    public Warmup(String component) {
+        this.component = component;
+        phaseNanos.put("jvm", TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime()));
+    }
+
+    public static boolean enabled() {
+        return Config.getBoolean("warmup.enabled", true);
+    }
+
+    // Rounds of synthetic images through the resize path; the hot loops are compiled during the first, the rest
+    // let the profile settle
+    public static int iterations() {
+        return Math.max(0, Config.getInt("warmup.iterations", 5));
+    }
+
+    public void phase(String name, Runnable action) {
+        long start = System.nanoTime();
+        try {
+            action.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            debug("Warm-up phase " + name + " failed, continuing");
+        }
+        phaseNanos.put(name, System.nanoTime() - start);
+    }
+
+    // The same, on a thread of its own, so that thread-local buffers filled while warming up go away with it
+    public void phaseInThread(String name, Runnable action) {
+        phase(name, () -> {
+            Thread thread = new Thread(action, "warmup-" + name);
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    public void awsClients(boolean network) {
+        if (Transports.isInMemory()) {
+            return;
+        }
+        phase("aws_clients", () -> {
+            AwsClients clients = AwsClients.shared();
+            if (!network || !Config.getBoolean("warmup.network", true)) {
+                return;
+            }
+            // Read-only requests that touch the bucket and the outbox without changing them
+            CompletableFuture<?> bucket = clients.s3().headBucket(request -> request.bucket(Transports.bucketName()));
+            CompletableFuture<?> queue = clients.sqs().getQueueAttributes(request -> request.queueUrl(Transports.outboxQueue()));
+            CompletableFuture.allOf(bucket, queue).orTimeout(Config.getLong("warmup.networkTimeoutSeconds", 10), TimeUnit.SECONDS).join();
+        });
+    }
+
+    public void imageIo() {
+        phase("imageio", () -> {
+            for (String format : FORMATS) {
+                Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+                if (readers.hasNext()) {
+                    readers.next().dispose();
+                }
+                Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+                if (writers.hasNext()) {
+                    writers.next().dispose();
+                }
+            }
+        });
+    }
+
+    // A photo-sized image with gradients and edges, encoded as JPEG and as PNG, keyed by format
+    public static Map<String, byte[]> sampleImages() throws IOException {
+        BufferedImage image = new BufferedImage(2400, 1600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), 2400, 1600, new Color(240, 200, 120)));
+            g2d.fillRect(0, 0, 2400, 1600);
+            g2d.setStroke(new BasicStroke(6));
+            Random random = new Random(42);
+            for (int i = 0; i < 200; i++) {
+                g2d.setColor(new Color(random.nextInt(0xffffff)));
+                g2d.drawOval(random.nextInt(2400), random.nextInt(1600), 20 + random.nextInt(300), 20 + random.nextInt(300));
+            }
+        } finally {
+            g2d.dispose();
+        }
+
+        Map<String, byte[]> samples = new LinkedHashMap<>();
+        for (String format : new String[]{"jpg", "png"}) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ImageUtils.writeImage(image, format, output);
+            samples.put(format, output.toByteArray());
+        }
+        return samples;
+    }
+
+    // Log one line with every phase and publish them as startup_phase_seconds
+    public void report() {
+        long totalNanos = 0;
+        StringBuilder phases = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            totalNanos += phase.getValue();
+            phases.append(phases.length() == 0 ? "" : ", ").append(phase.getKey()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(phase.getValue())).append(" ms");
+            double seconds = phase.getValue() / 1e9;
+            Metrics.global().gauge("startup_phase_seconds", "Time spent in each phase of startup", "component=\"" + component + "\",phase=\"" + phase.getKey() + "\"", () -> seconds);
+        }
+        debug("Started " + component + " in " + TimeUnit.NANOSECONDS.toMillis(totalNanos) + " ms: " + phases + " (class data sharing: " + classDataSharing() + ")");
+    }
+
+    // The archive in use, "default" for the JDK's own, or "off"
+    private static String classDataSharing() {
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (!Boolean.parseBoolean(hotSpot.getVMOption("UseSharedSpaces").getValue())) {
+                return "off";
+            }
+            String archive = hotSpot.getVMOption("SharedArchiveFile").getValue();
+            return archive.isEmpty() ? "default" : archive;
+        } catch (RuntimeException e) {
+            return "unknown";
+        }
+    }
+
+    private static void debug(String message) {
+        System.out.println("Warmup: " + message);
+    }
+}
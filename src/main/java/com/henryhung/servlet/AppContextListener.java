@@ -1,18 +1,64 @@
 package com.henryhung.servlet;
 
+import com.henryhung.aws.AwsClients;
+import com.henryhung.aws.ImageProcessingServer;
+import com.henryhung.aws.ImageUploadClient;
+import com.henryhung.aws.Warmup;
+import com.henryhung.transport.Transports;
+import com.henryhung.utils.Config;
+
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.ServletRegistration;
 import javax.servlet.annotation.WebListener;
 
 @WebListener
 public class AppContextListener implements ServletContextListener {
+
+    // One client per application: a single outbox dispatcher and connection pool for every servlet
+    public static final String UPLOAD_CLIENT = ImageUploadClient.class.getName();
+
+    private static final String EMBEDDED_WORKER = ImageProcessingServer.class.getName();
+
     @Override
     public void contextInitialized(ServletContextEvent sce) {
-        Initializer.main(null);
+        ServletRegistration.Dynamic processImage = sce.getServletContext().addServlet(ImageProcessorServlet.class.getSimpleName(), ImageProcessorServlet.class);
+        processImage.addMapping(ImageProcessorServlet.PATH);
+        processImage.setAsyncSupported(true);
+        processImage.setMultipartConfig(ImageProcessorServlet.multipartConfig());
+
+        Warmup warmup = Initializer.warmUp();
+
+        sce.getServletContext().setAttribute(UPLOAD_CLIENT, new ImageUploadClient());
+
+        // With the in-memory transport nobody else can see the queue, so the worker has to run in this process
+        if (Config.getBoolean("worker.embedded", Transports.isInMemory())) {
+            ImageProcessingServer worker = new ImageProcessingServer();
+            if (Warmup.enabled()) {
+                worker.warmUp(warmup);
+            }
+            worker.start();
+            sce.getServletContext().setAttribute(EMBEDDED_WORKER, worker);
+            System.out.println("AppContextListener: Started embedded image processing worker (transport=" + Transports.transport() + ")");
+        }
+        warmup.report();
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        // Cleanup code
+        ImageUploadClient uploadClient = (ImageUploadClient) sce.getServletContext().getAttribute(UPLOAD_CLIENT);
+        if (uploadClient != null) {
+            sce.getServletContext().removeAttribute(UPLOAD_CLIENT);
+            uploadClient.close();
+        }
+
+        ImageProcessingServer worker = (ImageProcessingServer) sce.getServletContext().getAttribute(EMBEDDED_WORKER);
+        if (worker != null) {
+            sce.getServletContext().removeAttribute(EMBEDDED_WORKER);
+            worker.close();
+        }
+
+        // Last, once nothing is sending through them any more
+        AwsClients.closeShared();
     }
 }
@@ -1,10 +1,19 @@
 package com.henryhung.servlet;
 
 import com.henryhung.aws.ImageUploadClient;
+import com.henryhung.aws.Job;
+import com.henryhung.aws.ProcessedImage;
+import com.henryhung.utils.ConcurrencyLimiter;
+import com.henryhung.utils.Config;
+import com.henryhung.utils.ImageUtils;
+import com.henryhung.utils.Metrics;
+import com.henryhung.utils.ResultCache;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
-import javax.servlet.annotation.MultipartConfig;
-import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,12 +21,75 @@ import javax.servlet.http.Part;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
-@WebServlet("/processImage")
-@MultipartConfig(fileSizeThreshold=1024*1024*5, maxFileSize=1024*1024*10, maxRequestSize=1024*1024*20) // 100MB
+// Registered by AppContextListener instead of annotated, so that the upload limits come from settings
 public class ImageProcessorServlet extends HttpServlet {
 
-    private ImageUploadClient uploadClient = new ImageUploadClient();
+    static final String PATH = "/processImage";
+
+    // Parts above this are buffered on disk by the container rather than in the heap
+    private static final int MULTIPART_FILE_SIZE_THRESHOLD = 5 * 1024 * 1024;
+
+    // Everything that affects the worker's output besides the image bytes and the size; the output format follows the extension
+    private static final String PROCESSING_PARAMETERS = ";background=white;gravity=center;format=";
+
+    // Too Many Requests; servlet 4.0 has no constant for it
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    // Job ids carry the upload's extension and appear in URLs and JSON
+    private static final Pattern JOB_EXTENSION = Pattern.compile("[a-z0-9]{1,10}");
+
+    // Shared by every servlet in the application, see AppContextListener
+    private ImageUploadClient uploadClient;
+
+    private final ResultCache resultCache = ResultCache.fromConfig();
+    // Uploads whose job results are being fetched into the cache, by content key, so a shared job is fetched once
+    private final Set<String> cacheFills = ConcurrentHashMap.newKeySet();
+
+    private final Metrics.Stage requestStage = Metrics.global().stage("servlet", "request");
+    private final AtomicLong requestsInFlight = Metrics.global().gauge("image_requests_in_flight", "Requests to /processImage being handled, and jobs until they finish", "");
+
+    private final long processTimeoutMillis = TimeUnit.SECONDS.toMillis(Config.getLong("servlet.processTimeoutSeconds", 300));
+
+    // Sizes the worker produces for every image (the same output.sizes setting); the size parameter picks one
+    private final List<Integer> outputSizes = ImageUtils.parseSizes(Config.getString("output.sizes", "512"));
+
+    // Rejects uploads with 429 once the backend is saturated, see servlet.limiter.* in doc/setup.md
+    private final ConcurrencyLimiter limiter = ConcurrencyLimiter.fromConfig("servlet.limiter");
+
+    @Override
+    public void init() throws ServletException {
+        uploadClient = (ImageUploadClient) getServletContext().getAttribute(AppContextListener.UPLOAD_CLIENT);
+        if (uploadClient == null) {
+            throw new ServletException("The shared ImageUploadClient has not been created");
+        }
+
+        Metrics metrics = Metrics.global();
+        metrics.counter("image_result_cache_hits_total", "Result cache hits", "", resultCache::getHits);
+        metrics.counter("image_result_cache_misses_total", "Result cache misses", "", resultCache::getMisses);
+        metrics.counter("image_result_cache_evictions_total", "Result cache evictions", "", resultCache::getEvictions);
+        metrics.counter("image_result_cache_saved_bytes_total", "Bytes of processed results served from the cache", "", resultCache::getBytesSaved);
+        metrics.gauge("image_result_cache_memory_bytes", "Bytes held by the in-memory tier of the result cache", "", resultCache::getMemoryBytes);
+        metrics.gauge("image_result_cache_disk_bytes", "Bytes held by the on-disk tier of the result cache", "", resultCache::getDiskBytes);
+        metrics.gauge("image_concurrency_limit", "Current adaptive limit on concurrent /processImage requests", "", limiter::getLimit);
+        metrics.gauge("image_concurrency_limiter_latency_seconds", "Recent end-to-end latency seen by the concurrency limiter", "", limiter::getShortRttSeconds);
+        metrics.counter("image_requests_rejected_total", "Requests to /processImage rejected with 429 by the concurrency limiter", "", limiter::getRejections);
+        metrics.counter("image_requests_dropped_total", "Requests to /processImage that timed out and lowered the concurrency limit", "", limiter::getDrops);
+    }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -29,6 +101,15 @@ public class ImageProcessorServlet extends HttpServlet {
         } else {
             resp.getWriter().write("The uploadClient is functional.");
         }
+        resp.getWriter().write("Result cache: " + resultCache.getStats());
+        resp.getWriter().write("Concurrency limit: " + limiter.getInFlight() + "/" + limiter.getLimit() + " in flight, " + limiter.getRejections() + " rejected.");
+    }
+
+    // Uploads up to servlet.maxUploadBytes, with room for the other fields of the form on top
+    static MultipartConfigElement multipartConfig() {
+        long maxUploadBytes = Config.getLong("servlet.maxUploadBytes", 100L * 1024 * 1024);
+        long maxRequestBytes = Config.getLong("servlet.maxRequestBytes", maxUploadBytes + 1024 * 1024);
+        return new MultipartConfigElement("", maxUploadBytes, maxRequestBytes, MULTIPART_FILE_SIZE_THRESHOLD);
     }
 
     @Override
@@ -36,53 +117,341 @@ public class ImageProcessorServlet extends HttpServlet {
         debug("Received a POST request");
         // allow cross-origin requests
         setAccessControlHeaders(resp);
+
+        // Shed load before reading the upload, so a rejection costs next to nothing
+        ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            long retryAfter = limiter.getRetryAfterSeconds();
+            debug("Rejected request, " + limiter.getInFlight() + " of " + limiter.getLimit() + " in flight");
+            resp.setStatus(SC_TOO_MANY_REQUESTS);
+            resp.setHeader("Retry-After", String.valueOf(retryAfter));
+            resp.getWriter().write("Too many images are being processed, retry in " + retryAfter + " seconds.");
+            return;
+        }
+        long start = System.nanoTime();
+        requestsInFlight.incrementAndGet();
+        try {
+            processUpload(req, resp, start, permit);
+        } catch (Exception e) {
+            // A permit that is never given back is lost to the limiter for good; enough of them and every request gets 429.
+            // Nothing happens here if the request has already been finished or handed to a callback that finishes it.
+            finishRequest(start, permit, false);
+            throw e;
+        }
+    }
+
+    // Everything between taking the permit and handing the request to the job or the async callback
+    private void processUpload(HttpServletRequest req, HttpServletResponse resp, long start, ConcurrencyLimiter.Permit permit)
+            throws ServletException, IOException {
         Part filePart;
         try {
             filePart = req.getPart("image");
         } catch (Exception e) {
+            finishRequest(start, permit, false);
             resp.getWriter().write("Failed to get image part.");
             return;
         }
         if (filePart == null) {
+            finishRequest(start, permit, false);
             resp.getWriter().write("Image part is missing.");
             return;
         }
 
         String fileName = filePart.getSubmittedFileName();
         debug("Received image file: " + fileName);
+        // A plain form field rather than a file has no file name
+        if (fileName == null || fileName.isEmpty()) {
+            finishRequest(start, permit, false);
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().write("The image part is not a file.");
+            return;
+        }
 
-        // Upload the image using ImageUploadClient
-        String key;
-        try (InputStream fileContent = filePart.getInputStream()) {
-            key = uploadClient.uploadImage(fileName, fileContent);
-            if (key == null) {
-                resp.getWriter().write("Failed to upload image to S3.");
-                debug("Failed to upload image to S3.");
+        // Edge length of the square output to return, the largest one by default
+        int size = outputSizes.get(outputSizes.size() - 1);
+        String sizeParameter = req.getParameter("size");
+        if (sizeParameter != null && !sizeParameter.isEmpty()) {
+            try {
+                size = Integer.parseInt(sizeParameter.trim());
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (!outputSizes.contains(size)) {
+                finishRequest(start, permit, false);
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().write("Unsupported size " + sizeParameter + ", available sizes: " + outputSizes);
                 return;
             }
         }
+        int requestedSize = size;
+
+        // By default the upload becomes a job and the answer is its id; wait=true answers with the image instead
+        boolean job = !"true".equalsIgnoreCase(req.getParameter("wait"));
+        if (job && !JOB_EXTENSION.matcher(ImageUtils.getExtension(fileName)).matches()) {
+            finishRequest(start, permit, false);
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            resp.getWriter().write("Unsupported file name " + fileName);
+            return;
+        }
+
+        // Hash the upload as it streams past rather than reading it into the heap. The container holds the part
+        // in memory only up to the threshold and on disk beyond it, so it can be read again for the upload itself,
+        // which a cache hit never gets to.
+        MessageDigest contentDigest = ResultCache.contentDigest();
+        try (InputStream fileContent = new DigestInputStream(filePart.getInputStream(), contentDigest)) {
+            fileContent.transferTo(OutputStream.nullOutputStream());
+        }
+
+        if (job) {
+            submitJob(req, resp, fileName, filePart, contentDigest, sizeParameter != null && !sizeParameter.isEmpty() ? requestedSize : -1, start, permit);
+            return;
+        }
+
+        // Serve repeated uploads straight from the cache
+        String cacheKey = ResultCache.cacheKey(contentDigest, processingParameters(requestedSize, fileName));
+        byte[] cachedImage = resultCache.get(cacheKey);
+        if (cachedImage != null) {
+            debug("Serving processed image from cache: " + cacheKey);
+            // A cache hit says nothing about how loaded the backend is
+            finishUnsampled(start, permit, true);
+            writeProcessedImage(cachedImage, "processed-" + cacheKey.substring(0, 16) + "." + ImageUtils.getExtension(fileName), fileName, resp);
+            return;
+        }
+
+        // Upload the image using ImageUploadClient; it streams the part to storage before it returns
+        CompletableFuture<ProcessedImage> result;
+        try (InputStream fileContent = filePart.getInputStream()) {
+            result = uploadClient.uploadAndProcessAsync(fileName, fileContent, filePart.getSize());
+        }
+        if (result.isCompletedExceptionally()) {
+            finishRequest(start, permit, false);
+            resp.getWriter().write("Failed to upload image to S3.");
+            debug("Failed to upload image to S3.");
+            return;
+        }
+
+        // The job is queued: release the container thread and answer from the callback when the result arrives
+        AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(processTimeoutMillis);
+        AtomicBoolean finished = new AtomicBoolean(false);
 
-        // Download the processed image as InputStream
-        try (InputStream processedImageStream = uploadClient.downloadImage(key)) {
-            if (processedImageStream == null) {
-                resp.getWriter().write("Failed to download processed image from S3.");
-                debug("Failed to download processed image from S3.");
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (finished.compareAndSet(false, true)) {
+                    dropRequest(start, permit);
+                    result.cancel(false);
+                    debug("Timed out waiting for processed image.");
+                    HttpServletResponse response = (HttpServletResponse) event.getAsyncContext().getResponse();
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    response.getWriter().write("Timed out waiting for processed image.");
+                    event.getAsyncContext().complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // e.g. the client disconnected; nothing left to answer
+                if (finished.compareAndSet(false, true)) {
+                    finishRequest(start, permit, false);
+                }
+                result.cancel(false);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        result.whenComplete((processedImage, error) -> {
+            if (!finished.compareAndSet(false, true)) {
+                closeQuietly(processedImage);
                 return;
             }
+            // Write from a container thread rather than the client's result pool
+            asyncContext.start(() -> {
+                boolean success = false;
+                try {
+                    HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+                    if (error != null) {
+                        debug("Failed to download processed image from S3: " + error);
+                        if (error instanceof TimeoutException) {
+                            dropRequest(start, permit);
+                        }
+                        response.setStatus(error instanceof TimeoutException
+                                ? HttpServletResponse.SC_GATEWAY_TIMEOUT
+                                : HttpServletResponse.SC_BAD_GATEWAY);
+                        response.getWriter().write("Failed to download processed image from S3.");
+                        return;
+                    }
+                    closeQuietly(processedImage);
+                    // Every size came out of the same job; cache them all for later requests of other sizes
+                    List<Integer> sizes = processedImage.getSizes();
+                    List<String> parameters = new ArrayList<>();
+                    for (int processedSize : sizes) {
+                        parameters.add(processingParameters(processedSize, fileName));
+                    }
+                    List<String> cacheKeys = ResultCache.cacheKeys(contentDigest, parameters);
+                    for (int i = 0; i < sizes.size(); i++) {
+                        resultCache.put(cacheKeys.get(i), processedImage.getVariant(sizes.get(i)));
+                    }
+                    debug("Result cache: " + resultCache.getStats());
+
+                    byte[] processedContent = processedImage.getVariant(requestedSize);
+                    if (processedContent == null) {
+                        debug("The worker did not produce size " + requestedSize + ", only " + sizes);
+                        response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+                        response.getWriter().write("The processed image is not available in size " + requestedSize + ".");
+                        return;
+                    }
+                    writeProcessedImage(processedContent, processedImage.getKey(), fileName, response);
+                    success = true;
+                } catch (IOException e) {
+                    debug("Failed to write processed image: " + e.getMessage());
+                } finally {
+                    finishRequest(start, permit, success);
+                    asyncContext.complete();
+                }
+            });
+        });
+    }
 
-            // Set the response content type and headers
-            resp.setContentType(getServletContext().getMimeType(fileName));
-            resp.setHeader("Content-Disposition", "attachment; filename=\"" + key + "\"");
+    // Answer 202 Accepted with the job's id and status URL, see JobServlet. The permit is held until the job
+    // finishes, so the limiter still sees how long the backend takes and how many jobs it has.
+    private void submitJob(HttpServletRequest req, HttpServletResponse resp, String fileName, Part filePart, MessageDigest contentDigest,
+                           int size, long start, ConcurrencyLimiter.Permit permit) throws IOException {
+        List<String> parameters = new ArrayList<>();
+        for (int outputSize : outputSizes) {
+            parameters.add(processingParameters(outputSize, fileName));
+        }
+        List<String> cacheKeys = ResultCache.cacheKeys(contentDigest, parameters);
 
-            // Write the processed image content to the response output stream
-            try (OutputStream out = resp.getOutputStream()) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = processedImageStream.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+        // Served from the cache, the job is done before it is answered and its results never leave this instance
+        Job job = cachedJob(fileName, cacheKeys);
+        if (job != null) {
+            debug("Serving job " + job.getId() + " for " + fileName + " from cache");
+            // A cache hit says nothing about how loaded the backend is
+            finishUnsampled(start, permit, true);
+        } else {
+            // A repeated upload gets the job that is already running or done, while its results last
+            String contentKey = ResultCache.cacheKey(contentDigest, "sizes=" + outputSizes + PROCESSING_PARAMETERS + ImageUtils.getExtension(fileName));
+            try (InputStream fileContent = filePart.getInputStream()) {
+                job = uploadClient.submitJob(fileName, fileContent, filePart.getSize(), contentKey);
+            }
+            if (job.getState().isFinished()) {
+                finishUnsampled(start, permit, job.getState() == Job.State.DONE);
+            } else {
+                job.getResult().whenComplete((processedImage, error) -> {
+                    if (error instanceof TimeoutException) {
+                        dropRequest(start, permit);
+                    } else {
+                        finishRequest(start, permit, error == null);
+                    }
+                });
+                if (cacheFills.add(contentKey)) {
+                    job.getResult().whenComplete((processedImage, error) -> {
+                        if (processedImage != null) {
+                            cacheJobResults(processedImage, cacheKeys);
+                        }
+                        cacheFills.remove(contentKey);
+                    });
                 }
-                out.flush();
             }
+            debug("Submitted job " + job.getId() + " for " + fileName);
+        }
+
+        String statusPath = JobServlet.statusPath(req, job.getId());
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        resp.setHeader("Location", size < 0 ? statusPath : statusPath + "?size=" + size);
+        resp.setHeader("Access-Control-Expose-Headers", "Location");
+        resp.setContentType("application/json");
+        resp.getWriter().write(JobServlet.statusJson(job, statusPath));
+    }
+
+    // A finished job holding every output size from the cache, or null unless all of them are cached
+    private Job cachedJob(String fileName, List<String> cacheKeys) {
+        SortedMap<Integer, byte[]> variants = new TreeMap<>();
+        for (int i = 0; i < outputSizes.size(); i++) {
+            byte[] cachedImage = resultCache.get(cacheKeys.get(i));
+            if (cachedImage == null) {
+                return null;
+            }
+            variants.put(outputSizes.get(i), cachedImage);
+        }
+        return uploadClient.completedJob(fileName, variants);
+    }
+
+    // Job results stay in storage, so fetch them once more to have them at hand for later uploads of the same
+    // image. Off the request path; a result that can't be fetched is simply not cached.
+    private void cacheJobResults(ProcessedImage processedImage, List<String> cacheKeys) {
+        for (int i = 0; i < outputSizes.size(); i++) {
+            int outputSize = outputSizes.get(i);
+            if (!processedImage.getSizes().contains(outputSize)) {
+                continue;
+            }
+            String cacheKey = cacheKeys.get(i);
+            uploadClient.getStore().getBytesAsync(processedImage.resultKey(outputSize)).whenComplete((content, error) -> {
+                if (error != null) {
+                    debug("Failed to fetch job result for the cache: " + error.getMessage());
+                    return;
+                }
+                resultCache.put(cacheKey, content);
+            });
+        }
+    }
+
+    private static String processingParameters(int size, String fileName) {
+        return "resize=" + size + "x" + size + PROCESSING_PARAMETERS + ImageUtils.getExtension(fileName);
+    }
+
+    private void writeProcessedImage(byte[] processedContent, String key, String fileName, HttpServletResponse resp) throws IOException {
+        // Set the response content type and headers
+        resp.setContentType(getServletContext().getMimeType(fileName));
+        resp.setContentLength(processedContent.length);
+        resp.setHeader("Content-Disposition", "attachment; filename=\"" + key + "\"");
+
+        // Write the processed image content to the response output stream
+        try (OutputStream out = resp.getOutputStream()) {
+            out.write(processedContent);
+            out.flush();
+        }
+    }
+
+    // Successful requests feed their latency to the limiter; failures only give back the permit
+    private void finishRequest(long start, ConcurrencyLimiter.Permit permit, boolean success) {
+        recordRequest(start, success, success ? permit.success() : permit.ignore());
+    }
+
+    // Answered without the backend, e.g. from the cache, so its latency says nothing about the limit
+    private void finishUnsampled(long start, ConcurrencyLimiter.Permit permit, boolean success) {
+        recordRequest(start, success, permit.ignore());
+    }
+
+    // Timed out, which lowers the limit
+    private void dropRequest(long start, ConcurrencyLimiter.Permit permit) {
+        recordRequest(start, false, permit.dropped());
+    }
+
+    // Counted once per request, by whichever path gives back the permit first
+    private void recordRequest(long start, boolean success, boolean released) {
+        if (released) {
+            requestsInFlight.decrementAndGet();
+            requestStage.record(start, success);
+        }
+    }
+
+    private void closeQuietly(ProcessedImage processedImage) {
+        if (processedImage == null) {
+            return;
+        }
+        try {
+            processedImage.getInputStream().close();
+        } catch (IOException e) {
+            // Nothing to do, the response has already been completed
         }
     }
 
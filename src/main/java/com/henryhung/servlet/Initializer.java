@@ -1,12 +1,41 @@
 package com.henryhung.servlet;
 
-import javax.servlet.ServletContextEvent;
-import javax.servlet.ServletContextListener;
-import javax.servlet.annotation.WebListener;
+import com.henryhung.aws.Warmup;
+import com.henryhung.utils.ImageUtils;
+import com.henryhung.utils.ResultCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
 
 public class Initializer {
     public static void main(String[] args) {
+        warmUp().report();
+    }
+
+    // Warm up the clients, ImageIO and what the servlet does with every upload (cache key, size check);
+    // the caller may add phases before reporting
+    public static Warmup warmUp() {
         System.out.println("Running initialization tasks...");
+        Warmup warmup = new Warmup("webapp");
+        if (!Warmup.enabled()) {
+            return warmup;
+        }
+        warmup.awsClients(true);
+        warmup.imageIo();
+        warmup.phase("upload_path", () -> {
+            try {
+                Map<String, byte[]> samples = Warmup.sampleImages();
+                for (int i = 0; i < Warmup.iterations(); i++) {
+                    for (Map.Entry<String, byte[]> sample : samples.entrySet()) {
+                        ResultCache.cacheKey(sample.getValue(), sample.getKey());
+                        ImageUtils.readDimensions(sample.getValue(), sample.getValue().length);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return warmup;
     }
 }
-
@@ -0,0 +1,307 @@
+package com.henryhung.servlet;
+
+import com.henryhung.aws.ImageUploadClient;
+import com.henryhung.aws.Job;
+import com.henryhung.aws.ProcessedImage;
+import com.henryhung.transport.ObjectStore;
+import com.henryhung.utils.Config;
+import com.henryhung.utils.Metrics;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Status and results of jobs submitted to /processImage:
+//  - GET /jobs/<id> answers 202 with the job's progress as JSON while it runs, and 303 See Other once it is done:
+//    to a presigned URL on S3, so the result never passes through Tomcat, or else to /jobs/<id>/result.
+//    With wait=<seconds> it holds the request until the job finishes or the time is up.
+//  - GET /jobs/<id>/result sends the result itself: from a local file with sendfile, or from the heap.
+// Both take size=<edge length>, the largest size by default. Jobs are known only to the instance that took them.
+@WebServlet(value = "/jobs/*", asyncSupported = true)
+public class JobServlet extends HttpServlet {
+
+    // Request attributes of Tomcat's sendfile support, see the NIO connector's useSendfile
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final String RESULT_PATH = "/result";
+
+    private ImageUploadClient uploadClient;
+
+    private final long maxWaitMillis = TimeUnit.SECONDS.toMillis(Config.getLong("servlet.jobs.maxWaitSeconds", 30));
+    private final long presignMillis = TimeUnit.SECONDS.toMillis(Config.getLong("servlet.jobs.presignSeconds", 300));
+
+    private final LongAdder presignedRedirects = Metrics.global().counter("image_job_results_total", "Job results handed out, by how they were delivered", "delivery=\"presigned\"");
+    private final LongAdder sendfileResults = Metrics.global().counter("image_job_results_total", "Job results handed out, by how they were delivered", "delivery=\"sendfile\"");
+    private final LongAdder copiedResults = Metrics.global().counter("image_job_results_total", "Job results handed out, by how they were delivered", "delivery=\"copy\"");
+
+    @Override
+    public void init() throws ServletException {
+        uploadClient = (ImageUploadClient) getServletContext().getAttribute(AppContextListener.UPLOAD_CLIENT);
+        if (uploadClient == null) {
+            throw new ServletException("The shared ImageUploadClient has not been created");
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        setAccessControlHeaders(resp);
+        String path = req.getPathInfo() == null ? "" : req.getPathInfo();
+        boolean result = path.endsWith(RESULT_PATH);
+        String id = path.substring(path.startsWith("/") ? 1 : 0, result ? path.length() - RESULT_PATH.length() : path.length());
+        Job job = id.isEmpty() ? null : uploadClient.getJob(id);
+        if (job == null) {
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            resp.getWriter().write("No such job, or it has expired: " + id);
+            return;
+        }
+
+        if (result) {
+            writeResult(req, resp, job);
+            return;
+        }
+
+        long waitMillis = 0;
+        String waitParameter = req.getParameter("wait");
+        if (waitParameter != null && !waitParameter.isEmpty()) {
+            try {
+                waitMillis = Math.min(maxWaitMillis, TimeUnit.SECONDS.toMillis(Long.parseLong(waitParameter.trim())));
+            } catch (NumberFormatException e) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                resp.getWriter().write("Invalid wait " + waitParameter);
+                return;
+            }
+        }
+        if (waitMillis <= 0 || job.getState().isFinished()) {
+            writeStatus(req, resp, job);
+            return;
+        }
+
+        // Long poll: release the container thread and answer once the job finishes or the wait is over
+        AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(waitMillis);
+        AtomicBoolean finished = new AtomicBoolean(false);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (finished.compareAndSet(false, true)) {
+                    writeStatus(req, (HttpServletResponse) event.getAsyncContext().getResponse(), job);
+                    event.getAsyncContext().complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                finished.set(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        job.getResult().whenComplete((processedImage, error) -> {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            asyncContext.start(() -> {
+                try {
+                    writeStatus(req, (HttpServletResponse) asyncContext.getResponse(), job);
+                } catch (IOException e) {
+                    debug("Failed to write job status: " + e.getMessage());
+                } finally {
+                    asyncContext.complete();
+                }
+            });
+        });
+    }
+
+    private void writeStatus(HttpServletRequest req, HttpServletResponse resp, Job job) throws IOException {
+        String statusPath = statusPath(req, job.getId());
+        switch (job.getState()) {
+            case DONE:
+                ProcessedImage processedImage = job.getProcessedImage();
+                int size = requestedSize(req, resp, processedImage);
+                if (size < 0) {
+                    return;
+                }
+                // Results held by the job itself, see ImageUploadClient.completedJob, are not in storage
+                URL presigned = processedImage.getVariant(size) != null ? null : presign(job, processedImage.resultKey(size));
+                if (presigned != null) {
+                    presignedRedirects.increment();
+                }
+                resp.setStatus(HttpServletResponse.SC_SEE_OTHER);
+                resp.setHeader("Location", presigned != null ? presigned.toString() : req.getContextPath() + "/jobs/" + job.getId() + RESULT_PATH + "?size=" + size);
+                resp.setHeader("Cache-Control", "no-store");
+                return;
+            case FAILED:
+                boolean timedOut = false;
+                try {
+                    job.getResult().join();
+                } catch (RuntimeException e) {
+                    timedOut = e.getCause() instanceof TimeoutException;
+                }
+                resp.setStatus(timedOut ? HttpServletResponse.SC_GATEWAY_TIMEOUT : HttpServletResponse.SC_BAD_GATEWAY);
+                break;
+            default:
+                resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+                resp.setHeader("Retry-After", "1");
+                break;
+        }
+        resp.setHeader("Cache-Control", "no-store");
+        resp.setContentType("application/json");
+        resp.getWriter().write(statusJson(job, statusPath));
+    }
+
+    private void writeResult(HttpServletRequest req, HttpServletResponse resp, Job job) throws IOException {
+        ProcessedImage processedImage = job.getProcessedImage();
+        if (processedImage == null) {
+            resp.setStatus(HttpServletResponse.SC_CONFLICT);
+            resp.setContentType("application/json");
+            resp.getWriter().write(statusJson(job, statusPath(req, job.getId())));
+            return;
+        }
+        int size = requestedSize(req, resp, processedImage);
+        if (size < 0) {
+            return;
+        }
+        String contentType = getServletContext().getMimeType(job.getFileName());
+        byte[] held = processedImage.getVariant(size);
+        if (held != null) {
+            resp.setContentType(contentType);
+            resp.setHeader("Cache-Control", "private, max-age=" + Math.max(0, TimeUnit.MILLISECONDS.toSeconds(job.getExpiresAtMillis() - System.currentTimeMillis())));
+            resp.setContentLength(held.length);
+            try (OutputStream out = resp.getOutputStream()) {
+                out.write(held);
+            }
+            copiedResults.increment();
+            return;
+        }
+
+        String key = processedImage.resultKey(size);
+        ObjectStore store = uploadClient.getStore();
+
+        URL presigned = presign(job, key);
+        if (presigned != null) {
+            presignedRedirects.increment();
+            resp.sendRedirect(presigned.toString());
+            return;
+        }
+
+        resp.setContentType(contentType);
+        resp.setHeader("Cache-Control", "private, max-age=" + Math.max(0, TimeUnit.MILLISECONDS.toSeconds(job.getExpiresAtMillis() - System.currentTimeMillis())));
+        Path file = store.localFile(key);
+        if (file != null) {
+            long length = Files.size(file);
+            resp.setContentLengthLong(length);
+            if (Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+                // Tomcat sends the file straight from the page cache to the socket once the servlet returns
+                req.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+                req.setAttribute(SENDFILE_START, 0L);
+                req.setAttribute(SENDFILE_END, length);
+                sendfileResults.increment();
+                return;
+            }
+            try (OutputStream out = resp.getOutputStream()) {
+                Files.copy(file, out);
+            }
+            copiedResults.increment();
+            return;
+        }
+
+        byte[] content;
+        try {
+            content = store.getBytes(key);
+        } catch (FileNotFoundException e) {
+            resp.reset();
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            resp.getWriter().write("The result has expired.");
+            return;
+        }
+        resp.setContentLength(content.length);
+        try (OutputStream out = resp.getOutputStream()) {
+            out.write(content);
+        }
+        copiedResults.increment();
+    }
+
+    // The size parameter if the job produced it, the largest size without one, or -1 after answering 400
+    private int requestedSize(HttpServletRequest req, HttpServletResponse resp, ProcessedImage processedImage) throws IOException {
+        List<Integer> sizes = processedImage.getSizes();
+        String sizeParameter = req.getParameter("size");
+        if (sizeParameter == null || sizeParameter.isEmpty()) {
+            return sizes.get(sizes.size() - 1);
+        }
+        try {
+            int size = Integer.parseInt(sizeParameter.trim());
+            if (sizes.contains(size)) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        resp.getWriter().write("Unsupported size " + sizeParameter + ", available sizes: " + sizes);
+        return -1;
+    }
+
+    // Valid no longer than the job itself, so a link never outlives the object it points to
+    private URL presign(Job job, String key) {
+        long remainingMillis = Math.min(presignMillis, job.getExpiresAtMillis() - System.currentTimeMillis());
+        if (remainingMillis < 1000) {
+            return null;
+        }
+        return uploadClient.getStore().presignGet(key, getServletContext().getMimeType(job.getFileName()), Duration.ofMillis(remainingMillis));
+    }
+
+    static String statusPath(HttpServletRequest req, String id) {
+        return req.getContextPath() + "/jobs/" + id;
+    }
+
+    // Job ids are a UUID and an alphanumeric extension, see ImageProcessorServlet, so they need no escaping
+    static String statusJson(Job job, String statusPath) {
+        StringBuilder json = new StringBuilder("{\"id\":\"").append(job.getId())
+                .append("\",\"state\":\"").append(job.getState().name().toLowerCase())
+                .append("\",\"elapsedMillis\":").append(job.getElapsedMillis())
+                .append(",\"status\":\"").append(statusPath).append('"');
+        ProcessedImage processedImage = job.getProcessedImage();
+        if (processedImage != null) {
+            json.append(",\"sizes\":").append(processedImage.getSizes().toString().replace(" ", ""))
+                    .append(",\"expiresInSeconds\":").append(Math.max(0, TimeUnit.MILLISECONDS.toSeconds(job.getExpiresAtMillis() - System.currentTimeMillis())));
+        }
+        return json.append('}').toString();
+    }
+
+    private void debug(String message) {
+        System.out.println("JobServlet: " + message);
+    }
+
+    private void setAccessControlHeaders(HttpServletResponse resp) {
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        resp.setHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS, PUT, DELETE, HEAD");
+        resp.setHeader("Access-Control-Allow-Headers", "Content-Type");
+        resp.setHeader("Access-Control-Expose-Headers", "Location");
+    }
+}
@@ -0,0 +1,152 @@
+package com.henryhung.transport;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+// Objects as files in one directory, for running the client and the worker in one process without S3 but with
+// results on disk, where the web app can send them with sendfile. Each object is written to a temporary file and
+// renamed into place, so readers never see a partial one.
+public class FileObjectStore implements ObjectStore {
+
+    private final Path directory;
+
+    public FileObjectStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength) throws IOException {
+        Path temporary = temporaryFile(key);
+        try {
+            long written = Files.copy(content, temporary, StandardCopyOption.REPLACE_EXISTING);
+            if (contentLength >= 0 && written != contentLength) {
+                throw new IOException("Expected " + contentLength + " bytes for " + key + " but read " + written);
+            }
+            Files.move(temporary, path(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public void put(String key, Path file) throws IOException {
+        Path temporary = temporaryFile(key);
+        try {
+            Files.copy(file, temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, path(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] content) {
+        try {
+            Path temporary = temporaryFile(key);
+            try {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    out.write(content);
+                }
+                Files.move(temporary, path(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public StoredObject get(String key) throws IOException {
+        Path file = path(key);
+        try {
+            return new StoredObject(Files.newInputStream(file), Files.size(file));
+        } catch (NoSuchFileException e) {
+            throw notFound(key);
+        }
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws IOException {
+        try {
+            return Files.readAllBytes(path(key));
+        } catch (NoSuchFileException e) {
+            throw notFound(key);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String key) {
+        try {
+            return CompletableFuture.completedFuture(getBytes(key));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void download(String key, Path destination) throws IOException {
+        try {
+            Files.copy(path(key), destination, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            throw notFound(key);
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.isRegularFile(path(key));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(path(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        try {
+            delete(key);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public Path localFile(String key) {
+        Path file = path(key);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    @Override
+    public void close() {
+        // Shared by everything in the process, like the in-memory store
+    }
+
+    // Keys are single file names; anything that could leave the directory is refused
+    private Path path(String key) {
+        if (key.isEmpty() || key.startsWith(".") || key.indexOf('/') >= 0 || key.indexOf('\\') >= 0) {
+            throw new IllegalArgumentException("Invalid object key: " + key);
+        }
+        return directory.resolve(key);
+    }
+
+    private Path temporaryFile(String key) throws IOException {
+        Files.createDirectories(directory);
+        return directory.resolve("." + path(key).getFileName() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    private FileNotFoundException notFound(String key) {
+        return new FileNotFoundException("No such object: " + path(key));
+    }
+}
@@ -0,0 +1,139 @@
+package com.henryhung.transport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Queues held on the heap with the SQS delivery semantics the pipeline relies on: delivery delays,
+// visibility timeouts with redelivery, receive counts and long polling. Queues are created on first use.
+public class InMemoryMessageQueue implements MessageQueue {
+
+    private final ConcurrentHashMap<String, Queue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong receipts = new AtomicLong();
+
+    @Override
+    public CompletableFuture<String> send(String queue, String body, int delaySeconds) {
+        Entry entry = new Entry(UUID.randomUUID().toString(), body, System.currentTimeMillis());
+        entry.visibleAt = entry.sentTimestamp + TimeUnit.SECONDS.toMillis(delaySeconds);
+        Queue target = queue(queue);
+        synchronized (target) {
+            target.entries.put(entry.messageId, entry);
+            target.notifyAll();
+        }
+        return CompletableFuture.completedFuture(entry.messageId);
+    }
+
+    @Override
+    public List<QueueMessage> receive(String queue, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws InterruptedException {
+        Queue source = queue(queue);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+        List<QueueMessage> received = new ArrayList<>();
+        synchronized (source) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long nextVisibleAt = Long.MAX_VALUE;
+                for (Entry entry : source.entries.values()) {
+                    if (entry.visibleAt > now) {
+                        nextVisibleAt = Math.min(nextVisibleAt, entry.visibleAt);
+                        continue;
+                    }
+                    entry.visibleAt = now + TimeUnit.SECONDS.toMillis(visibilityTimeoutSeconds);
+                    entry.receiveCount++;
+                    // A new handle per receive, so a consumer whose visibility expired can't delete the redelivered message
+                    entry.receiptHandle = entry.messageId + "#" + receipts.incrementAndGet();
+                    received.add(new QueueMessage(entry.messageId, entry.body, entry.receiptHandle, entry.receiveCount, entry.sentTimestamp));
+                    if (received.size() >= maxMessages) {
+                        break;
+                    }
+                }
+                if (!received.isEmpty() || now >= deadline) {
+                    return received;
+                }
+                // Sleep until a message arrives or the next delayed/invisible message becomes visible
+                source.wait(Math.max(1, Math.min(deadline, nextVisibleAt) - now));
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String queue, String receiptHandle) {
+        Queue target = queue(queue);
+        synchronized (target) {
+            Entry entry = target.entries.get(messageId(receiptHandle));
+            if (entry == null || !receiptHandle.equals(entry.receiptHandle)) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Receipt handle is no longer valid: " + receiptHandle));
+            }
+            target.entries.remove(entry.messageId);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> changeVisibility(String queue, String receiptHandle, int visibilityTimeoutSeconds) {
+        Queue target = queue(queue);
+        synchronized (target) {
+            Entry entry = target.entries.get(messageId(receiptHandle));
+            if (entry == null || !receiptHandle.equals(entry.receiptHandle)) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Receipt handle is no longer valid: " + receiptHandle));
+            }
+            entry.visibleAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeoutSeconds);
+            target.notifyAll();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void purge(String queue) {
+        Queue target = queue(queue);
+        synchronized (target) {
+            target.entries.clear();
+        }
+    }
+
+    // Messages in the queue, visible or not
+    public int size(String queue) {
+        Queue target = queue(queue);
+        synchronized (target) {
+            return target.entries.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        // Shared by everything in the process; pending messages live as long as the process
+    }
+
+    private Queue queue(String name) {
+        return queues.computeIfAbsent(name, k -> new Queue());
+    }
+
+    private static String messageId(String receiptHandle) {
+        int separator = receiptHandle.lastIndexOf('#');
+        return separator < 0 ? receiptHandle : receiptHandle.substring(0, separator);
+    }
+
+    private static class Queue {
+        // Insertion-ordered, so messages are delivered roughly first in, first out
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    }
+
+    private static class Entry {
+        private final String messageId;
+        private final String body;
+        private final long sentTimestamp;
+        private long visibleAt;
+        private int receiveCount;
+        private String receiptHandle;
+
+        private Entry(String messageId, String body, long sentTimestamp) {
+            this.messageId = messageId;
+            this.body = body;
+            this.sentTimestamp = sentTimestamp;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.henryhung.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Objects held on the heap, for running the client and the worker in one process without S3
+public class InMemoryObjectStore implements ObjectStore {
+
+    private final ConcurrentHashMap<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String key, InputStream content, long contentLength) throws IOException {
+        byte[] bytes = content.readAllBytes();
+        if (contentLength >= 0 && bytes.length != contentLength) {
+            throw new IOException("Expected " + contentLength + " bytes for " + key + " but read " + bytes.length);
+        }
+        objects.put(key, bytes);
+    }
+
+    @Override
+    public void put(String key, Path file) throws IOException {
+        objects.put(key, Files.readAllBytes(file));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String key, byte[] content) {
+        objects.put(key, content);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public StoredObject get(String key) throws IOException {
+        byte[] bytes = getBytes(key);
+        return new StoredObject(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws IOException {
+        byte[] bytes = objects.get(key);
+        if (bytes == null) {
+            throw new FileNotFoundException("No such object: " + key);
+        }
+        return bytes;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String key) {
+        try {
+            return CompletableFuture.completedFuture(getBytes(key));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void download(String key, Path destination) throws IOException {
+        Files.write(destination, getBytes(key));
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return objects.containsKey(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        objects.remove(key);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        objects.remove(key);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    @Override
+    public void close() {
+        // Shared by everything in the process; the objects live as long as the process
+    }
+}
@@ -0,0 +1,32 @@
+package com.henryhung.transport;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Inbox queues that jobs are routed to by their expected cost, so that a huge image never sits in front of
+// the thumbnails queued behind it. Each lane is polled and processed with its own budget of workers.
+public enum Lane {
+    FAST("fast"),
+    HEAVY("heavy");
+
+    private final String label;
+
+    Lane(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    // With lanes disabled every lane maps to the single inbox queue
+    public String queue() {
+        return Transports.inboxQueue(this);
+    }
+
+    // The lanes a worker has to poll
+    public static List<Lane> enabled() {
+        return Transports.lanesEnabled() ? Arrays.asList(values()) : Collections.singletonList(FAST);
+    }
+}
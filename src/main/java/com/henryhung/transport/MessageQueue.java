@@ -0,0 +1,24 @@
+package com.henryhung.transport;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// At-least-once message queue with visibility timeouts (SQS in production).
+// Sends and deletes are asynchronous so implementations can batch them.
+public interface MessageQueue extends AutoCloseable {
+
+    // Completed with the message id once the message is stored
+    CompletableFuture<String> send(String queue, String body, int delaySeconds);
+
+    // Long-polls for up to waitSeconds; received messages stay invisible to other consumers for visibilityTimeoutSeconds
+    List<QueueMessage> receive(String queue, int maxMessages, int waitSeconds, int visibilityTimeoutSeconds) throws InterruptedException;
+
+    CompletableFuture<Void> delete(String queue, String receiptHandle);
+
+    CompletableFuture<Void> changeVisibility(String queue, String receiptHandle, int visibilityTimeoutSeconds);
+
+    void purge(String queue);
+
+    @Override
+    void close();
+}
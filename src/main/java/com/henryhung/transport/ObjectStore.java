@@ -0,0 +1,50 @@
+package com.henryhung.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+// Key/value storage for raw and processed images (S3 in production).
+// The async variants don't hold a thread while the transfer is in progress.
+public interface ObjectStore extends AutoCloseable {
+
+    void put(String key, InputStream content, long contentLength) throws IOException;
+
+    void put(String key, Path file) throws IOException;
+
+    CompletableFuture<Void> putAsync(String key, byte[] content);
+
+    // Open the object for streaming; the caller must close it
+    StoredObject get(String key) throws IOException;
+
+    byte[] getBytes(String key) throws IOException;
+
+    // Fails with a FileNotFoundException if there is no such object
+    CompletableFuture<byte[]> getBytesAsync(String key);
+
+    void download(String key, Path destination) throws IOException;
+
+    // Whether the object is there, without fetching its content
+    boolean exists(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    CompletableFuture<Void> deleteAsync(String key);
+
+    // A link that fetches the object straight from storage until validity runs out, served with the given content
+    // type, or null if this store can't hand out links. Signed locally, without a request to storage.
+    default URL presignGet(String key, String contentType, Duration validity) {
+        return null;
+    }
+
+    // The file holding the object, for stores on the local disk, or null
+    default Path localFile(String key) {
+        return null;
+    }
+
+    @Override
+    void close();
+}
@@ -0,0 +1,40 @@
+package com.henryhung.transport;
+
+public class QueueMessage {
+
+    private final String messageId;
+    private final String body;
+    private final String receiptHandle;
+    private final int receiveCount;
+    private final long sentTimestamp;
+
+    public QueueMessage(String messageId, String body, String receiptHandle, int receiveCount, long sentTimestamp) {
+        this.messageId = messageId;
+        this.body = body;
+        this.receiptHandle = receiptHandle;
+        this.receiveCount = receiveCount;
+        this.sentTimestamp = sentTimestamp;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public String getReceiptHandle() {
+        return receiptHandle;
+    }
+
+    // How many times the message has been received, including this time; 0 if unknown
+    public int getReceiveCount() {
+        return receiveCount;
+    }
+
+    // Epoch milliseconds at which the message was sent; 0 if unknown
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+}
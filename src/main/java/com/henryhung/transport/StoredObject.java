@@ -0,0 +1,33 @@
+package com.henryhung.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// An open object from an ObjectStore: its content stream and length
+public class StoredObject extends FilterInputStream {
+
+    private final long contentLength;
+    private final Runnable abort;
+
+    public StoredObject(InputStream content, long contentLength, Runnable abort) {
+        super(content);
+        this.contentLength = contentLength;
+        this.abort = abort;
+    }
+
+    public StoredObject(InputStream content, long contentLength) {
+        this(content, contentLength, () -> {
+        });
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    // Give up on the rest of the content without transferring it, then close
+    public void abort() throws IOException {
+        abort.run();
+        close();
+    }
+}
@@ -0,0 +1,88 @@
+package com.henryhung.transport;
+
+import com.henryhung.aws.AwsClients;
+import com.henryhung.aws.S3ObjectStore;
+import com.henryhung.aws.SqsMessageQueue;
+import com.henryhung.utils.Config;
+
+import java.nio.file.Paths;
+
+// Chooses where images and job messages travel: S3 and SQS (transport=aws), the heap of this process
+// (transport=memory), or the heap for messages and files in a local directory for images (transport=local).
+// With either of the last two the client and the worker must run in the same JVM.
+public class Transports {
+
+    public static final String AWS = "aws";
+    public static final String MEMORY = "memory";
+    public static final String LOCAL = "local";
+
+    // Every client and worker in the process shares these, otherwise they could not see each other's jobs
+    private static final InMemoryObjectStore MEMORY_STORE = new InMemoryObjectStore();
+    private static final InMemoryMessageQueue MEMORY_QUEUE = new InMemoryMessageQueue();
+    private static FileObjectStore localStore;
+
+    public static String transport() {
+        return Config.getString("transport", AWS).toLowerCase();
+    }
+
+    // True for both transports whose queue lives in this process
+    public static boolean isInMemory() {
+        return MEMORY.equals(transport()) || LOCAL.equals(transport());
+    }
+
+    public static String bucketName() {
+        return Config.getString("aws.bucket", "bucket-comp3358-3035782750");
+    }
+
+    public static String inboxQueue() {
+        return Config.getString("queue.inbox", "inbox-queue-comp3358-3035782750");
+    }
+
+    // Large images go to their own queue, see Lane
+    public static boolean lanesEnabled() {
+        return Config.getBoolean("lanes.enabled", true);
+    }
+
+    public static String inboxQueue(Lane lane) {
+        if (lane == Lane.FAST || !lanesEnabled()) {
+            return inboxQueue();
+        }
+        return Config.getString("queue.inboxHeavy", inboxQueue() + "-heavy");
+    }
+
+    public static String outboxQueue() {
+        return Config.getString("queue.outbox", "outbox-queue-comp3358-3035782750");
+    }
+
+    // Delay of job and result messages; the original S3/SQS pipeline held messages back a second, nothing needs that on the heap
+    public static int sendDelaySeconds() {
+        return Config.getInt("queue.sendDelaySeconds", isInMemory() ? 0 : 1);
+    }
+
+    public static ObjectStore objectStore() {
+        if (LOCAL.equals(transport())) {
+            return localStore();
+        }
+        if (isInMemory()) {
+            return MEMORY_STORE;
+        }
+        AwsClients clients = AwsClients.shared();
+        return new S3ObjectStore(clients.s3(), clients.presigner(), bucketName());
+    }
+
+    private static synchronized FileObjectStore localStore() {
+        if (localStore == null) {
+            localStore = new FileObjectStore(Paths.get(Config.getString("local.storeDirectory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "image-store").toString())));
+        }
+        return localStore;
+    }
+
+    public static MessageQueue messageQueue() {
+        if (isInMemory()) {
+            return MEMORY_QUEUE;
+        }
+        // Sends and deletes of concurrent jobs share batch requests
+        return new SqsMessageQueue(AwsClients.shared().sqs(), Config.getLong("sqs.batchLingerMillis", 10));
+    }
+}
@@ -0,0 +1,201 @@
+package com.henryhung.utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Caps the number of requests in flight at a limit that follows the observed latency, so that an overloaded
+// backend sheds the excess as fast rejections instead of letting every request queue until it times out.
+//  - gradient: compares the recent latency with the lowest recently seen. While they are within tolerance
+//    the limit grows by about its square root, and it shrinks in proportion once requests start queueing.
+//  - aimd: grows by one per limit's worth of fast responses and shrinks by backoffRatio whenever a request
+//    is slower than timeoutMillis or is dropped.
+//  - fixed: a plain cap at initialLimit.
+public class ConcurrencyLimiter {
+
+    public enum Algorithm { GRADIENT, AIMD, FIXED }
+
+    // Samples averaged by the latency estimate, and samples per window of the baseline minimum
+    private static final int SHORT_WINDOW = 10;
+    private static final int BASELINE_WINDOW = 1000;
+
+    private final Algorithm algorithm;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long timeoutNanos;
+    private final double tolerance;
+    private final double smoothing;
+    private final long maxRetryAfterSeconds;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+
+    // Guarded by this; the limit is read without locking on the acquire path
+    private volatile double limit;
+    private volatile double shortRttNanos;
+    // The minimum over the previous and the current window, so that the baseline can rise when the work
+    // gets slower for good, but not just because requests are queueing
+    private double previousMinRttNanos = Double.MAX_VALUE;
+    private double currentMinRttNanos = Double.MAX_VALUE;
+    private int windowSamples;
+
+    public ConcurrencyLimiter(Algorithm algorithm, int initialLimit, int minLimit, int maxLimit,
+                              double backoffRatio, long timeoutNanos, double tolerance, double smoothing, long maxRetryAfterSeconds) {
+        this.algorithm = algorithm;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.backoffRatio = backoffRatio;
+        this.timeoutNanos = timeoutNanos;
+        this.tolerance = Math.max(1.0, tolerance);
+        this.smoothing = smoothing;
+        this.maxRetryAfterSeconds = Math.max(1, maxRetryAfterSeconds);
+    }
+
+    // Settings are <prefix>.algorithm, .initialLimit, .minLimit, .maxLimit, .backoffRatio, .timeoutMillis,
+    // .tolerance, .smoothing and .maxRetryAfterSeconds
+    public static ConcurrencyLimiter fromConfig(String prefix) {
+        Algorithm algorithm;
+        try {
+            algorithm = Algorithm.valueOf(Config.getString(prefix + ".algorithm", "gradient").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("ConcurrencyLimiter: Unknown " + prefix + ".algorithm, using gradient");
+            algorithm = Algorithm.GRADIENT;
+        }
+        return new ConcurrencyLimiter(
+                algorithm,
+                Config.getInt(prefix + ".initialLimit", 20),
+                Config.getInt(prefix + ".minLimit", 2),
+                Config.getInt(prefix + ".maxLimit", 200),
+                Config.getDouble(prefix + ".backoffRatio", 0.9),
+                Config.getLong(prefix + ".timeoutMillis", 30000) * 1_000_000L,
+                Config.getDouble(prefix + ".tolerance", 1.5),
+                Config.getDouble(prefix + ".smoothing", 0.2),
+                Config.getLong(prefix + ".maxRetryAfterSeconds", 30));
+    }
+
+    // A permit for one request, or null if the limit has been reached
+    public Permit tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejections.increment();
+                return null;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(current + 1);
+            }
+        }
+    }
+
+    // Roughly how long until a slot frees up: the recent latency of one request
+    public long getRetryAfterSeconds() {
+        long seconds = (long) Math.ceil(shortRttNanos / 1e9);
+        return Math.min(maxRetryAfterSeconds, Math.max(1, seconds));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    public double getShortRttSeconds() {
+        return shortRttNanos / 1e9;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    private synchronized void onSample(long rttNanos, int inFlightAtStart, boolean dropped) {
+        if (algorithm == Algorithm.FIXED) {
+            return;
+        }
+        if (dropped) {
+            drops.increment();
+            setLimit(limit * backoffRatio);
+            return;
+        }
+
+        shortRttNanos = shortRttNanos == 0 ? rttNanos : shortRttNanos + (rttNanos - shortRttNanos) * 2 / (SHORT_WINDOW + 1);
+        currentMinRttNanos = Math.min(currentMinRttNanos, shortRttNanos);
+        if (++windowSamples >= BASELINE_WINDOW) {
+            previousMinRttNanos = currentMinRttNanos;
+            currentMinRttNanos = shortRttNanos;
+            windowSamples = 0;
+        }
+
+        if (algorithm == Algorithm.AIMD) {
+            if (rttNanos > timeoutNanos) {
+                setLimit(limit * backoffRatio);
+            } else if (inFlightAtStart * 2 >= limit) {
+                setLimit(limit + 1 / limit);
+            }
+            return;
+        }
+
+        // Don't grow while the limit isn't being used, or it drifts up without ever being tested
+        if (inFlightAtStart < limit / 2) {
+            return;
+        }
+        double baselineRttNanos = Math.min(previousMinRttNanos, currentMinRttNanos);
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineRttNanos / shortRttNanos));
+        double target = limit * gradient + Math.sqrt(limit);
+        setLimit(limit * (1 - smoothing) + target * smoothing);
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    }
+
+    // Exactly one of success, dropped or ignore should be called; later calls are no-ops and return false,
+    // so callers can tell whether it was theirs that gave the permit back
+    public class Permit {
+        private final long start = System.nanoTime();
+        private final int inFlightAtStart;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        // Completed normally; its latency feeds the limit
+        public boolean success() {
+            return release(false, true);
+        }
+
+        // Timed out or was otherwise a sign of overload
+        public boolean dropped() {
+            return release(true, true);
+        }
+
+        // Says nothing about the backend's capacity, e.g. a bad request or a cache hit
+        public boolean ignore() {
+            return release(false, false);
+        }
+
+        private boolean release(boolean dropped, boolean sample) {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            inFlight.decrementAndGet();
+            if (sample) {
+                onSample(System.nanoTime() - start, inFlightAtStart, dropped);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.henryhung.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+public class ImageMagick {
+
+    public static final int TIMEOUT = -1;
+
+    private ImageMagick() {
+    }
+
+    // Same operation as ImageUtils.resizeImage in a `convert` subprocess.
+    // Returns the exit value of convert, or TIMEOUT if it had to be killed.
+    public static int resizeImage(File inputFile, File outputFile, int width, int height, long timeoutSeconds) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(
+                "convert",
+                // Let the JPEG decoder scale down while decoding, like the subsampled decode of the java engine
+                "-define", "jpeg:size=" + (2 * width) + "x" + (2 * height),
+                inputFile.getAbsolutePath(),
+                "-resize", width + "x" + height,
+                "-background", "white",
+                "-gravity", "center",
+                "-extent", width + "x" + height,
+                outputFile.getAbsolutePath()
+        );
+        // Nobody reads convert's output; don't let a full pipe stall it
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process = builder.start();
+
+        // Wait for the process to complete with a timeout
+        if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+            // Timeout elapsed before termination, kill the process
+            process.destroyForcibly();
+            return TIMEOUT;
+        }
+        return process.exitValue();
+    }
+}
@@ -0,0 +1,358 @@
+package com.henryhung.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Long-lived `magick -script -` processes (ImageMagick 7) that take one resize per line of script on stdin, so a
+// job costs no process start. Each process has a pair of named pipes: the input image is written into one while
+// ImageMagick reads it, and the result is read from the other until ImageMagick closes it, so no image touches
+// the disk. Errors show up on stderr right away, since it is unbuffered.
+// A process is replaced when it has died, after maxJobs jobs, and after any failed or timed-out job, whose
+// pipes are then in an unknown state. One that has sat idle for longer than healthCheckMillis first has to
+// resize a 1x1 image, which is also what start() asks of every process before the pool is used.
+public class ImageMagickPool implements AutoCloseable {
+
+    // Formats go into the script as they are
+    private static final Pattern FORMAT = Pattern.compile("[a-z0-9]{1,10}");
+    // 1x1 white PNG for health checks
+    private static final byte[] PROBE_IMAGE = Base64.getDecoder().decode(
+            "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAIAAACQd1PeAAAADElEQVR4nGP4//8/AAX+Av4N70a4AAAAAElFTkSuQmCC");
+
+    private final String command;
+    private final int maxJobs;
+    private final long timeoutMillis;
+    private final long healthCheckMillis;
+    private final Path directory;
+    private final BlockingQueue<Slot> idle = new LinkedBlockingQueue<>();
+    private final ExecutorService pipes = Executors.newCachedThreadPool(ThreadUtils.daemonThreadFactory("magick-pipe"));
+    private volatile boolean closed;
+
+    private final LongAdder processesStarted = Metrics.global().counter("imagemagick_processes_started_total", "ImageMagick script processes started by the pool", "");
+    private final LongAdder succeeded = Metrics.global().counter("imagemagick_pool_jobs_total", "Jobs run on pooled ImageMagick processes, by result", "result=\"success\"");
+    private final LongAdder failed = Metrics.global().counter("imagemagick_pool_jobs_total", "Jobs run on pooled ImageMagick processes, by result", "result=\"failure\"");
+    private final LongAdder timedOut = Metrics.global().counter("imagemagick_pool_jobs_total", "Jobs run on pooled ImageMagick processes, by result", "result=\"timeout\"");
+
+    private ImageMagickPool(String command, int size, int maxJobs, long timeoutMillis, long healthCheckMillis) throws IOException {
+        this.command = command;
+        this.maxJobs = Math.max(1, maxJobs);
+        this.timeoutMillis = timeoutMillis;
+        this.healthCheckMillis = healthCheckMillis;
+        this.directory = Files.createTempDirectory("magick-pool");
+        for (int i = 0; i < size; i++) {
+            idle.add(new Slot());
+        }
+    }
+
+    // A pool whose processes all passed a health check, or null if `command` is missing, is not ImageMagick 7 or
+    // cannot use named pipes here; callers then run `convert` per image as before
+    public static ImageMagickPool start(String command, int size, int maxJobs, long timeoutMillis, long healthCheckMillis) {
+        ImageMagickPool pool = null;
+        try {
+            pool = new ImageMagickPool(command, size, maxJobs, timeoutMillis, healthCheckMillis);
+            for (Slot slot : pool.idle) {
+                slot.process = pool.newProcess();
+                if (!slot.process.healthy()) {
+                    throw new IOException("Health check of " + command + " failed");
+                }
+            }
+            debug("Started " + size + " ImageMagick processes");
+            return pool;
+        } catch (Exception e) {
+            debug("Failed to start ImageMagick processes, running convert per image instead: " + e.getMessage());
+            if (pool != null) {
+                pool.close();
+            }
+            return null;
+        }
+    }
+
+    // Same operation as ImageMagick.resizeImage, on a pooled process: the image encoded in outputFormat
+    public byte[] resizeImage(byte[] content, String inputFormat, String outputFormat, int width, int height) throws IOException, InterruptedException, TimeoutException {
+        if (!FORMAT.matcher(inputFormat).matches() || !FORMAT.matcher(outputFormat).matches()) {
+            throw new IOException("Unsupported format for ImageMagick: " + inputFormat + " to " + outputFormat);
+        }
+        Slot slot = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (slot == null) {
+            throw new TimeoutException("No ImageMagick process became free within " + timeoutMillis + " ms");
+        }
+        try {
+            MagickProcess process = checkOut(slot);
+            String script = "-define jpeg:size=" + (2 * width) + "x" + (2 * height)
+                    + " -read " + process.input(inputFormat)
+                    + " -resize " + width + "x" + height
+                    + " -background white -gravity center"
+                    + " -extent " + width + "x" + height
+                    + " -write " + process.output(outputFormat)
+                    + " -delete 0--1";
+            try {
+                byte[] result = process.run(script, content);
+                succeeded.increment();
+                return result;
+            } catch (TimeoutException e) {
+                timedOut.increment();
+                slot.discard(false);
+                throw e;
+            } catch (IOException e) {
+                failed.increment();
+                slot.discard(false);
+                throw e;
+            }
+        } finally {
+            if (closed) {
+                slot.discard(true);
+            } else {
+                idle.add(slot);
+            }
+        }
+    }
+
+    // A live process for the slot: the current one unless it died, is due for recycling or fails its health check
+    private MagickProcess checkOut(Slot slot) throws IOException, InterruptedException {
+        MagickProcess process = slot.process;
+        if (process != null && (!process.isAlive() || process.jobs >= maxJobs)) {
+            slot.discard(true);
+            process = null;
+        }
+        if (process != null && System.currentTimeMillis() - process.lastUsedMillis > healthCheckMillis && !process.healthy()) {
+            debug("Health check failed, replacing ImageMagick process");
+            slot.discard(false);
+            process = null;
+        }
+        if (process == null) {
+            process = newProcess();
+            slot.process = process;
+        }
+        return process;
+    }
+
+    private MagickProcess newProcess() throws IOException {
+        MagickProcess process = new MagickProcess(Files.createTempDirectory(directory, "process"));
+        processesStarted.increment();
+        return process;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Slot slot;
+        while ((slot = idle.poll()) != null) {
+            slot.discard(true);
+        }
+        pipes.shutdownNow();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            debug("Failed to delete " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static void debug(String message) {
+        System.out.println("ImageMagickPool: " + message);
+    }
+
+    private static class Slot {
+        private MagickProcess process;
+
+        // Kill the process, or with graceful let it finish its script first
+        void discard(boolean graceful) {
+            if (process != null) {
+                process.destroy(graceful);
+                process = null;
+            }
+        }
+    }
+
+    private class MagickProcess {
+        private final Path directory;
+        private final File inputPipe;
+        private final File outputPipe;
+        private final Process process;
+        private final Writer script;
+        private final BlockingQueue<String> errors = new LinkedBlockingQueue<>();
+        private int jobs;
+        private long lastUsedMillis = System.currentTimeMillis();
+        private boolean destroyed;
+
+        MagickProcess(Path directory) throws IOException {
+            this.directory = directory;
+            this.inputPipe = directory.resolve("in").toFile();
+            this.outputPipe = directory.resolve("out").toFile();
+            try {
+                Process mkfifo = new ProcessBuilder("mkfifo", inputPipe.getAbsolutePath(), outputPipe.getAbsolutePath())
+                        .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                if (!mkfifo.waitFor(10, TimeUnit.SECONDS) || mkfifo.exitValue() != 0) {
+                    mkfifo.destroyForcibly();
+                    throw new IOException("mkfifo failed in " + directory);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while creating pipes", e);
+            }
+
+            process = new ProcessBuilder(command, "-script", "-")
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            script = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            pipes.execute(() -> {
+                try (BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = stderr.readLine()) != null) {
+                        if (line.contains("@ error/") || line.contains("@ fatal/")) {
+                            errors.add(line);
+                        } else {
+                            debug(line);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The process is gone
+                }
+            });
+        }
+
+        String input(String format) {
+            return "'" + format + ":" + inputPipe.getAbsolutePath() + "'";
+        }
+
+        String output(String format) {
+            return "'" + format + ":" + outputPipe.getAbsolutePath() + "'";
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        // Resize the 1x1 probe image, which goes through both pipes like a real job
+        boolean healthy() throws InterruptedException {
+            try {
+                run("-read " + input("png") + " -resize 1x1 -write " + output("png") + " -delete 0--1", PROBE_IMAGE);
+                return true;
+            } catch (IOException | TimeoutException e) {
+                debug("Health check failed: " + e.getMessage());
+                return false;
+            }
+        }
+
+        byte[] run(String line, byte[] content) throws IOException, InterruptedException, TimeoutException {
+            errors.clear();
+            script.write(line);
+            script.write('\n');
+            script.flush();
+
+            // Opening either pipe blocks until ImageMagick opens the other end
+            CompletableFuture<Void> written = CompletableFuture.runAsync(() -> {
+                try (OutputStream out = new FileOutputStream(inputPipe)) {
+                    out.write(content);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pipes);
+            CompletableFuture<byte[]> result = CompletableFuture.supplyAsync(() -> {
+                try (InputStream in = new FileInputStream(outputPipe)) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    in.transferTo(bytes);
+                    return bytes.toByteArray();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pipes);
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            try {
+                while (true) {
+                    String error = errors.poll();
+                    if (error != null) {
+                        throw new IOException("ImageMagick failed: " + error);
+                    }
+                    if (!process.isAlive()) {
+                        throw new IOException("ImageMagick exited with " + process.exitValue());
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("ImageMagick did not finish within " + timeoutMillis + " ms");
+                    }
+                    try {
+                        byte[] bytes = result.get(Math.min(remaining, 100), TimeUnit.MILLISECONDS);
+                        written.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                        if (bytes.length == 0) {
+                            throw new IOException("ImageMagick wrote no output");
+                        }
+                        jobs++;
+                        lastUsedMillis = System.currentTimeMillis();
+                        return bytes;
+                    } catch (TimeoutException e) {
+                        // Poll for errors again
+                    } catch (ExecutionException e) {
+                        throw new IOException("ImageMagick pipe failed", e.getCause());
+                    }
+                }
+            } finally {
+                if (!result.isDone() || !written.isDone()) {
+                    // The caller discards this process; until then don't leave the pipe threads blocked in open
+                    destroy(false);
+                }
+            }
+        }
+
+        // Stop ImageMagick, gracefully by ending its script, and release anything blocked on the pipes: opening a
+        // named pipe for reading and writing never blocks, and satisfies the other end
+        void destroy(boolean graceful) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            try {
+                script.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            try {
+                if (!graceful || !process.waitFor(1, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            for (File pipe : new File[]{inputPipe, outputPipe}) {
+                if (!pipe.exists()) {
+                    // mkfifo failed; "rw" would create a plain file
+                    continue;
+                }
+                try {
+                    new RandomAccessFile(pipe, "rw").close();
+                } catch (IOException e) {
+                    // Nobody is waiting on it
+                }
+                pipe.delete();
+            }
+            directory.toFile().delete();
+        }
+    }
+}
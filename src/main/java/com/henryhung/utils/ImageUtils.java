@@ -1,41 +1,290 @@
 package com.henryhung.utils;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
 
 public class ImageUtils {
 
+    public static final Color DEFAULT_BACKGROUND = Color.WHITE;
+    public static final ResampleFilter DEFAULT_FILTER = ResampleFilter.PROGRESSIVE_BICUBIC;
+    public static final float DEFAULT_JPEG_QUALITY = 0.92f;
+
+    private static final int SUBSAMPLING_MARGIN = 2;
+
+    public enum ResampleFilter {
+        NEAREST_NEIGHBOR(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, false),
+        BILINEAR(RenderingHints.VALUE_INTERPOLATION_BILINEAR, false),
+        BICUBIC(RenderingHints.VALUE_INTERPOLATION_BICUBIC, false),
+        // Halve the image step by step before the final scale, which avoids the aliasing
+        // a single bilinear/bicubic pass produces when shrinking by more than 2x
+        PROGRESSIVE_BILINEAR(RenderingHints.VALUE_INTERPOLATION_BILINEAR, true),
+        PROGRESSIVE_BICUBIC(RenderingHints.VALUE_INTERPOLATION_BICUBIC, true),
+        // Not Java2D: a separable convolution whose kernel is widened when shrinking, see SeparableResampler
+        TRIANGLE(null, false),
+        MITCHELL(null, false),
+        LANCZOS3(null, false);
+
+        private final Object interpolation;
+        private final boolean progressive;
+
+        ResampleFilter(Object interpolation, boolean progressive) {
+            this.interpolation = interpolation;
+            this.progressive = progressive;
+        }
+
+        public boolean isSeparable() {
+            return interpolation == null;
+        }
+
+        public static ResampleFilter fromName(String name) {
+            for (ResampleFilter filter : values()) {
+                if (filter.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                    return filter;
+                }
+            }
+            throw new IllegalArgumentException("Unknown resample filter: " + name);
+        }
+    }
+
     public static void resizeImage(File inputFile, File outputFile, int width, int height) throws IOException {
-        String fileName = inputFile.getName();
-        String fileExtension = fileName.substring(fileName.lastIndexOf(".") + 1);
+        resizeImage(inputFile, outputFile, width, height, DEFAULT_FILTER);
+    }
 
-        // Read the original image
-        BufferedImage originalImage = ImageIO.read(inputFile);
+    // Equivalent of `convert input -resize WxH -background white -gravity center -extent WxH output`
+    public static void resizeImage(File inputFile, File outputFile, int width, int height, ResampleFilter filter) throws IOException {
+        // Read the original image, subsampled to about twice the output size
+        BufferedImage originalImage = readImage(inputFile, width, height);
         if (originalImage == null) {
             throw new IOException("The file " + inputFile + " could not be opened, it is not an image or the format is not supported.");
         }
 
-        // Create a new buffered image with desired size
-        BufferedImage resizedImage = new BufferedImage(width, height, originalImage.getType());
-        Graphics2D g2d = resizedImage.createGraphics();
+        BufferedImage resizedImage = fitAndLetterbox(originalImage, width, height, DEFAULT_BACKGROUND, filter);
+
+        // Write the resized image to the output file
+        writeImage(resizedImage, getExtension(outputFile.getName()), outputFile);
+    }
+
+    // Decode from a stream at close to the resolution needed for a width x height output, or null if the format is not supported.
+    // The stream is cached in memory; ImageIO.read(InputStream) would spool it to a temp file by default.
+    public static BufferedImage readImage(InputStream inputStream, int width, int height) throws IOException {
+        try (ImageInputStream input = new MemoryCacheImageInputStream(inputStream)) {
+            return readSubsampled(input, width, height);
+        }
+    }
+
+    public static BufferedImage readImage(File file, int width, int height) throws IOException {
+        try (ImageInputStream input = new FileImageInputStream(file)) {
+            return readSubsampled(input, width, height);
+        }
+    }
+
+    // From a stream the caller owns and closes, e.g. after looking for more frames with MultiFrameResizer
+    public static BufferedImage readImage(ImageInputStream input, int width, int height) throws IOException {
+        return readSubsampled(input, width, height);
+    }
+
+    // Width and height from the header alone, or null if ImageIO cannot read the format or the header is cut off
+    public static Dimension readDimensions(byte[] content, int length) {
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(content, 0, length))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Read the dimensions from the header first, then let the reader skip source pixels while decoding so a
+    // 100 MP photo never exists in memory at full resolution. The decoded image stays at least
+    // SUBSAMPLING_MARGIN times the fitted output size, leaving the final resample real work to filter with.
+    private static BufferedImage readSubsampled(ImageInputStream input, int width, int height) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            int sourceWidth = reader.getWidth(0);
+            int sourceHeight = reader.getHeight(0);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = subsamplingFactor(sourceWidth, sourceHeight, width, height);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    public static int subsamplingFactor(int sourceWidth, int sourceHeight, int width, int height) {
+        double scale = Math.min((double) width / sourceWidth, (double) height / sourceHeight);
+        return Math.max(1, (int) Math.floor(1 / (scale * SUBSAMPLING_MARGIN)));
+    }
+
+    // Scale the image to fit inside width x height keeping its aspect ratio, then centre it on a canvas filled with the background
+    public static BufferedImage fitAndLetterbox(BufferedImage image, int width, int height, Color background, ResampleFilter filter) {
+        if (filter.isSeparable()) {
+            BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            PooledResizer.current().fitAndLetterbox(image, canvas, background, filter);
+            return canvas;
+        }
+
+        double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+        int scaledWidth = Math.max(1, Math.min(width, (int) Math.round(image.getWidth() * scale)));
+        int scaledHeight = Math.max(1, Math.min(height, (int) Math.round(image.getHeight() * scale)));
+
+        BufferedImage source = image;
+        if (filter.progressive) {
+            source = halveDown(image, scaledWidth, scaledHeight, filter.interpolation);
+        }
+
+        BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = canvas.createGraphics();
+        try {
+            g2d.setColor(background);
+            g2d.fillRect(0, 0, width, height);
+            applyQualityHints(g2d, filter.interpolation);
+            g2d.setComposite(AlphaComposite.SrcOver);
+            g2d.drawImage(source, (width - scaledWidth) / 2, (height - scaledHeight) / 2, scaledWidth, scaledHeight, null);
+        } finally {
+            g2d.dispose();
+        }
+        return canvas;
+    }
+
+    // Repeatedly halve the image while it is still more than twice the target size
+    private static BufferedImage halveDown(BufferedImage image, int targetWidth, int targetHeight, Object interpolation) {
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
 
-        // Apply quality rendering settings
-        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        while (currentWidth / 2 >= targetWidth && currentHeight / 2 >= targetHeight) {
+            currentWidth /= 2;
+            currentHeight /= 2;
+
+            int type = current.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            BufferedImage step = new BufferedImage(currentWidth, currentHeight, type);
+            Graphics2D g2d = step.createGraphics();
+            try {
+                applyQualityHints(g2d, interpolation);
+                g2d.setComposite(AlphaComposite.Src);
+                g2d.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            } finally {
+                g2d.dispose();
+            }
+            current = step;
+        }
+        return current;
+    }
+
+    private static void applyQualityHints(Graphics2D g2d, Object interpolation) {
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
         g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+    }
 
-        // Draw the resized image
-        g2d.drawImage(originalImage, 0, 0, width, height, null);
-        g2d.dispose();
+    public static void writeImage(BufferedImage image, String format, File outputFile) throws IOException {
+        if (outputFile.exists() && !outputFile.delete()) {
+            throw new IOException("Could not overwrite " + outputFile.getAbsolutePath());
+        }
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(outputFile)) {
+            if (output == null) {
+                throw new IOException("Could not open " + outputFile.getAbsolutePath() + " for writing");
+            }
+            writeImage(image, format, output);
+        }
+    }
 
-        // Write the resized image to the output file
-        if (!ImageIO.write(resizedImage, fileExtension, outputFile)) {
-            throw new IOException("No appropriate writer found for " + fileExtension);
+    public static void writeImage(BufferedImage image, String format, OutputStream outputStream) throws IOException {
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(outputStream)) {
+            writeImage(image, format, output);
+        }
+    }
+
+    private static void writeImage(BufferedImage image, String format, ImageOutputStream output) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No appropriate writer found for " + format);
+        }
+        ImageWriter writer = writers.next();
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), writeParam(writer, format));
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    static ImageWriteParam writeParam(ImageWriter writer, String format) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        // Match ImageMagick's default JPEG quality rather than ImageIO's 0.75
+        if (isJpeg(format) && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(DEFAULT_JPEG_QUALITY);
         }
-        System.out.println("Resized image saved to " + outputFile.getAbsolutePath());
+        return param;
+    }
+
+    // Output edge lengths from a list such as "64,128,256,512", smallest first
+    public static List<Integer> parseSizes(String sizes) {
+        TreeSet<Integer> parsed = new TreeSet<>();
+        for (String size : sizes.split(",")) {
+            if (size.trim().isEmpty()) {
+                continue;
+            }
+            int value = Integer.parseInt(size.trim());
+            if (value <= 0) {
+                throw new IllegalArgumentException("Output size must be positive: " + value);
+            }
+            parsed.add(value);
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("No output sizes in: " + sizes);
+        }
+        return new ArrayList<>(parsed);
+    }
+
+    public static String getExtension(String fileName) {
+        return fileName.substring(fileName.lastIndexOf(".") + 1).toLowerCase();
+    }
+
+    private static boolean isJpeg(String format) {
+        return format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg");
     }
-}
\ No newline at end of file
+}
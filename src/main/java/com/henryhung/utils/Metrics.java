@@ -0,0 +1,158 @@
+package com.henryhung.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Process-wide registry of counters, gauges and latency histograms, rendered in the Prometheus text format.
+// Metrics are looked up once and kept in fields, so the hot path only touches the metric itself.
+public class Metrics {
+
+    private static final Metrics GLOBAL = new Metrics();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    // Sorted so that the scrape output is stable
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    public LongAdder counter(String name, String help, String labels) {
+        return (LongAdder) family(name, help, "counter").metrics.computeIfAbsent(labels, k -> new LongAdder());
+    }
+
+    // A counter maintained elsewhere and read at scrape time
+    public void counter(String name, String help, String labels, Supplier<? extends Number> supplier) {
+        family(name, help, "counter").metrics.put(labels, supplier);
+    }
+
+    public AtomicLong gauge(String name, String help, String labels) {
+        return (AtomicLong) family(name, help, "gauge").metrics.computeIfAbsent(labels, k -> new AtomicLong());
+    }
+
+    // A gauge read from elsewhere at scrape time, e.g. the size of a cache
+    public void gauge(String name, String help, String labels, Supplier<? extends Number> supplier) {
+        family(name, help, "gauge").metrics.put(labels, supplier);
+    }
+
+    public LatencyHistogram histogram(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, help, "summary").metrics.computeIfAbsent(labels, k -> new LatencyHistogram());
+    }
+
+    // Duration histogram plus success and failure counters of one pipeline stage
+    public Stage stage(String component, String stage) {
+        return stage(component, stage, "");
+    }
+
+    // The same, split further by extra labels such as lane="fast"
+    public Stage stage(String component, String stage, String extraLabels) {
+        String labels = "component=\"" + component + "\",stage=\"" + stage + "\"" + (extraLabels.isEmpty() ? "" : "," + extraLabels);
+        return new Stage(
+                histogram("image_stage_duration_seconds", "Duration of each image pipeline stage", labels),
+                counter("image_stage_total", "Completed image pipeline stages by result", labels + ",result=\"success\""),
+                counter("image_stage_total", "Completed image pipeline stages by result", labels + ",result=\"failure\""));
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    public String scrape() {
+        StringBuilder output = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            output.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            output.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+                appendMetric(output, name, metric.getKey(), metric.getValue());
+            }
+        }
+        return output.toString();
+    }
+
+    private static void appendMetric(StringBuilder output, String name, String labels, Object metric) {
+        if (metric instanceof LatencyHistogram) {
+            LatencyHistogram histogram = (LatencyHistogram) metric;
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            for (double quantile : QUANTILES) {
+                appendSample(output, name, prefix + "quantile=\"" + quantile + "\"", seconds(histogram.getValueAtQuantile(quantile)));
+            }
+            appendSample(output, name, prefix + "quantile=\"1.0\"", seconds(histogram.getMax()));
+            appendSample(output, name + "_sum", labels, seconds(histogram.getSum()));
+            appendSample(output, name + "_count", labels, histogram.getCount());
+        } else if (metric instanceof Supplier) {
+            Object value = ((Supplier<?>) metric).get();
+            appendSample(output, name, labels, value instanceof Number ? ((Number) value).doubleValue() : Double.NaN);
+        } else {
+            appendSample(output, name, labels, ((Number) metric).doubleValue());
+        }
+    }
+
+    private static void appendSample(StringBuilder output, String name, String labels, double value) {
+        output.append(name);
+        if (!labels.isEmpty()) {
+            output.append('{').append(labels).append('}');
+        }
+        output.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            output.append((long) value);
+        } else {
+            output.append(value);
+        }
+        output.append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static class Stage {
+        private final LatencyHistogram duration;
+        private final LongAdder successes;
+        private final LongAdder failures;
+
+        private Stage(LatencyHistogram duration, LongAdder successes, LongAdder failures) {
+            this.duration = duration;
+            this.successes = successes;
+            this.failures = failures;
+        }
+
+        public void record(long startNanos, boolean success) {
+            recordDuration(System.nanoTime() - startNanos, success);
+        }
+
+        public void recordDuration(long nanos, boolean success) {
+            duration.record(nanos);
+            (success ? successes : failures).increment();
+        }
+
+        public void success(long startNanos) {
+            record(startNanos, true);
+        }
+
+        public void failure(long startNanos) {
+            record(startNanos, false);
+        }
+    }
+}
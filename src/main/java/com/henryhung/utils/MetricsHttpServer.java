@@ -0,0 +1,35 @@
+package com.henryhung.utils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Minimal /metrics endpoint for processes without a servlet container, such as the EC2 worker
+public class MetricsHttpServer {
+
+    private MetricsHttpServer() {
+    }
+
+    public static HttpServer start(int port, Metrics metrics) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        // Scrapes are rare and cheap; the default single dispatcher thread is enough
+        server.setExecutor(null);
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,381 @@
+package com.henryhung.utils;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+// Resizes every frame of an animated GIF or every page of a multi-page TIFF, where ImageUtils and PooledResizer
+// only read the first image. Frames are decoded one at a time on the calling thread, since a reader is not
+// thread-safe and a GIF frame is drawn over what the previous frames left. Each frame is then fitted,
+// letterboxed and, for GIF, reduced to a palette on the executor. At most `parallelism` frames are in flight,
+// and they are written in order, so memory stays at a few frames however long the animation is.
+// GIF frames keep their delays, disposal methods and the loop count. They are written as full, opaque frames,
+// so the disposal methods keep the timing of the original without changing what is shown.
+public class MultiFrameResizer {
+
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final List<String> MULTI_FRAME_FORMATS = Arrays.asList("gif", "tif", "tiff");
+
+    private final Executor executor;
+    private final Color background;
+    private final ImageUtils.ResampleFilter filter;
+
+    public MultiFrameResizer(Executor executor, Color background, ImageUtils.ResampleFilter filter) {
+        this.executor = executor;
+        this.background = background;
+        this.filter = filter;
+    }
+
+    // A reader set up on input if it holds more than one frame and format can be written as a sequence,
+    // otherwise null, with input back at the start for the single-image path. Only GIF and TIFF are
+    // counted: for other formats getNumImages would scan the whole stream for nothing.
+    public static ImageReader multiFrameReader(ImageInputStream input, String format) throws IOException {
+        if (!MULTI_FRAME_FORMATS.contains(format.toLowerCase()) || !canWriteSequence(format)) {
+            return null;
+        }
+        long start = input.getStreamPosition();
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            reader = readers.next();
+            String readerFormat = reader.getOriginatingProvider().getFormatNames()[0].toLowerCase();
+            if (!MULTI_FRAME_FORMATS.contains(readerFormat)) {
+                return null;
+            }
+            // Not seek-forward-only: counting the frames reads past them, and reading starts over from the first
+            reader.setInput(input, false, false);
+            int frameCount;
+            try {
+                frameCount = reader.getNumImages(true);
+            } catch (IOException e) {
+                // Damaged after the first frame; the single-image path reads what it can
+                return null;
+            }
+            if (frameCount > 1) {
+                ImageReader multiFrame = reader;
+                reader = null;
+                return multiFrame;
+            }
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+                input.seek(start);
+            }
+        }
+    }
+
+    private static boolean canWriteSequence(String format) {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            return false;
+        }
+        ImageWriter writer = writers.next();
+        try {
+            return writer.canWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Every frame of reader's input fitted to each of sizes, as one animation or multi-page file per size,
+    // keyed by edge length. Disposes of the reader.
+    public SortedMap<Integer, byte[]> resize(ImageReader reader, String format, List<Integer> sizes, int parallelism) throws IOException {
+        boolean gif = isGif(reader);
+        int largestSize = sizes.get(sizes.size() - 1);
+        List<SequenceWriter> writers = new ArrayList<>();
+        Deque<CompletableFuture<List<BufferedImage>>> pending = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < sizes.size(); i++) {
+                writers.add(new SequenceWriter(format));
+            }
+            Canvas canvas = gif ? new Canvas(reader) : null;
+            int frameCount = reader.getNumImages(true);
+            List<Node> frameControls = new ArrayList<>();
+            Node loop = null;
+            for (int i = 0; i < frameCount; i++) {
+                BufferedImage frame;
+                if (gif) {
+                    Node metadata = reader.getImageMetadata(i).getAsTree(GIF_IMAGE_METADATA);
+                    if (i == 0) {
+                        loop = child(metadata, "ApplicationExtensions");
+                    }
+                    frameControls.add(child(metadata, "GraphicControlExtension"));
+                    frame = canvas.draw(reader.read(i), metadata);
+                } else {
+                    frame = readSubsampled(reader, i, largestSize);
+                    frameControls.add(null);
+                }
+                pending.add(CompletableFuture.supplyAsync(() -> resizeFrame(frame, sizes, gif), executor));
+
+                while (pending.size() >= Math.max(1, parallelism)) {
+                    writeFrame(writers, join(pending.poll()), frameControls, loop);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeFrame(writers, join(pending.poll()), frameControls, loop);
+            }
+
+            SortedMap<Integer, byte[]> outputs = new TreeMap<>();
+            for (int i = 0; i < sizes.size(); i++) {
+                outputs.put(sizes.get(i), writers.get(i).finish());
+            }
+            return outputs;
+        } finally {
+            for (CompletableFuture<List<BufferedImage>> frame : pending) {
+                frame.cancel(false);
+            }
+            for (SequenceWriter writer : writers) {
+                writer.dispose();
+            }
+            reader.dispose();
+        }
+    }
+
+    // Like the single-image decode, skip source pixels on pages far larger than the output
+    private static BufferedImage readSubsampled(ImageReader reader, int index, int size) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = ImageUtils.subsamplingFactor(reader.getWidth(index), reader.getHeight(index), size, size);
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return reader.read(index, param);
+    }
+
+    // Largest size first, each smaller one from the next larger, like the single-image pyramid; smallest first
+    // in the result. Runs on the executor, so it uses freshly allocated images rather than the pooled ones.
+    private List<BufferedImage> resizeFrame(BufferedImage frame, List<Integer> sizes, boolean gif) {
+        BufferedImage[] resized = new BufferedImage[sizes.size()];
+        BufferedImage current = frame;
+        for (int i = sizes.size() - 1; i >= 0; i--) {
+            int size = sizes.get(i);
+            current = ImageUtils.fitAndLetterbox(current, size, size, background, filter);
+            resized[i] = gif ? toPalette(current) : current;
+        }
+        return Arrays.asList(resized);
+    }
+
+    // The GIF writer builds a palette for any image that has none, which is the slowest part of writing a
+    // frame. Doing it here, by encoding and decoding the frame alone, keeps it off the thread that writes the
+    // frames in order; that one then only compresses.
+    private static BufferedImage toPalette(BufferedImage image) {
+        try {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ImageUtils.writeImage(image, "gif", encoded);
+            return ImageIO.read(new ByteArrayInputStream(encoded.toByteArray()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<BufferedImage> join(CompletableFuture<List<BufferedImage>> frame) throws IOException {
+        try {
+            return frame.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Failed to resize frame", e.getCause());
+        }
+    }
+
+    private static void writeFrame(List<SequenceWriter> writers, List<BufferedImage> frame, List<Node> frameControls, Node loop) throws IOException {
+        for (int i = 0; i < writers.size(); i++) {
+            SequenceWriter writer = writers.get(i);
+            writer.write(frame.get(i), frameControls.get(writer.frames), writer.frames == 0 ? loop : null);
+        }
+    }
+
+    private static boolean isGif(ImageReader reader) {
+        return reader.getOriginatingProvider().getFormatNames()[0].equalsIgnoreCase("gif");
+    }
+
+    private static Node child(Node node, String name) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeName().equals(name)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static String attribute(Node node, String name, String defaultValue) {
+        if (node == null) {
+            return defaultValue;
+        }
+        NamedNodeMap attributes = node.getAttributes();
+        Node attribute = attributes == null ? null : attributes.getNamedItem(name);
+        return attribute == null ? defaultValue : attribute.getNodeValue();
+    }
+
+    private static int intAttribute(Node node, String name) {
+        return Integer.parseInt(attribute(node, name, "0"));
+    }
+
+    // The logical screen of a GIF, with every frame drawn at its offset over what the previous ones left
+    private static class Canvas {
+        private final BufferedImage image;
+        private BufferedImage saved;
+        private int disposeX, disposeY, disposeWidth, disposeHeight;
+        private String disposal = "none";
+
+        Canvas(ImageReader reader) throws IOException {
+            Node screen = child(reader.getStreamMetadata().getAsTree(GIF_STREAM_METADATA), "LogicalScreenDescriptor");
+            int width = intAttribute(screen, "logicalScreenWidth");
+            int height = intAttribute(screen, "logicalScreenHeight");
+            // Some encoders leave the logical screen empty; the first frame then sets it
+            if (width <= 0 || height <= 0) {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            }
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        // Apply the previous frame's disposal, draw this one and return a copy of the result
+        BufferedImage draw(BufferedImage frame, Node metadata) {
+            Graphics2D g2d = image.createGraphics();
+            try {
+                if (disposal.equals("restoreToBackgroundColor")) {
+                    // Browsers clear to transparent rather than to the background color, and so does this
+                    g2d.setComposite(AlphaComposite.Clear);
+                    g2d.fillRect(disposeX, disposeY, disposeWidth, disposeHeight);
+                } else if (disposal.equals("restoreToPrevious") && saved != null) {
+                    g2d.setComposite(AlphaComposite.Src);
+                    g2d.drawImage(saved, 0, 0, null);
+                }
+
+                Node descriptor = child(metadata, "ImageDescriptor");
+                disposeX = intAttribute(descriptor, "imageLeftPosition");
+                disposeY = intAttribute(descriptor, "imageTopPosition");
+                disposeWidth = frame.getWidth();
+                disposeHeight = frame.getHeight();
+                disposal = attribute(child(metadata, "GraphicControlExtension"), "disposalMethod", "none");
+                if (disposal.equals("restoreToPrevious")) {
+                    saved = copy(image);
+                }
+
+                g2d.setComposite(AlphaComposite.SrcOver);
+                g2d.drawImage(frame, disposeX, disposeY, null);
+            } finally {
+                g2d.dispose();
+            }
+            return copy(image);
+        }
+
+        private static BufferedImage copy(BufferedImage image) {
+            return new BufferedImage(image.getColorModel(), image.copyData(null), image.isAlphaPremultiplied(), null);
+        }
+    }
+
+    // One output size: a sequence writer over an in-memory stream
+    private static class SequenceWriter {
+        private final ImageWriter writer;
+        private final ImageWriteParam param;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final ImageOutputStream stream;
+        private final boolean gif;
+        private int frames;
+        private boolean closed;
+
+        SequenceWriter(String format) throws IOException {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+            if (!found.hasNext()) {
+                throw new IOException("No appropriate writer found for " + format);
+            }
+            writer = found.next();
+            param = ImageUtils.writeParam(writer, format);
+            gif = writer.getOriginatingProvider().getFormatNames()[0].equalsIgnoreCase("gif");
+            stream = new MemoryCacheImageOutputStream(output);
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+        }
+
+        void write(BufferedImage image, Node control, Node loop) throws IOException {
+            IIOMetadata metadata = null;
+            if (gif) {
+                metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+                IIOMetadataNode root = new IIOMetadataNode(GIF_IMAGE_METADATA);
+                IIOMetadataNode graphicControl = new IIOMetadataNode("GraphicControlExtension");
+                graphicControl.setAttribute("disposalMethod", attribute(control, "disposalMethod", "none"));
+                graphicControl.setAttribute("userInputFlag", attribute(control, "userInputFlag", "FALSE"));
+                graphicControl.setAttribute("transparentColorFlag", "FALSE");
+                graphicControl.setAttribute("delayTime", attribute(control, "delayTime", "0"));
+                graphicControl.setAttribute("transparentColorIndex", "0");
+                root.appendChild(graphicControl);
+                if (loop != null) {
+                    root.appendChild(applicationExtensions(loop));
+                }
+                metadata.mergeTree(GIF_IMAGE_METADATA, root);
+            }
+            writer.writeToSequence(new IIOImage(image, null, metadata), param);
+            frames++;
+        }
+
+        // A copy of the NETSCAPE looping extension and any others; cloneNode would leave out the attributes
+        private static IIOMetadataNode applicationExtensions(Node extensions) {
+            IIOMetadataNode copy = new IIOMetadataNode("ApplicationExtensions");
+            for (Node extension = extensions.getFirstChild(); extension != null; extension = extension.getNextSibling()) {
+                IIOMetadataNode applicationExtension = new IIOMetadataNode("ApplicationExtension");
+                applicationExtension.setAttribute("applicationID", attribute(extension, "applicationID", ""));
+                applicationExtension.setAttribute("authenticationCode", attribute(extension, "authenticationCode", ""));
+                applicationExtension.setUserObject(((IIOMetadataNode) extension).getUserObject());
+                copy.appendChild(applicationExtension);
+            }
+            return copy;
+        }
+
+        byte[] finish() throws IOException {
+            writer.endWriteSequence();
+            stream.close();
+            closed = true;
+            return output.toByteArray();
+        }
+
+        void dispose() {
+            writer.dispose();
+            if (closed) {
+                return;
+            }
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // The output is being discarded
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.henryhung.utils;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes 8-bit PNGs with the rows split into bands that are filtered and deflated in parallel, the way pigz
+// compresses gzip. Bands are filtered first, since a row's filter reads the row above it. Each band is then
+// deflated on its own, primed with the 32 KB of filtered data before it as a preset dictionary, so matches
+// can still reach back into the previous band. Every band except the last ends with a sync flush, so the
+// bands line up on byte boundaries and join into one zlib stream. The per-band Adler-32 checksums are
+// combined at the end, and the stream is written as one IDAT chunk per band.
+// Gray, gray+alpha, RGB and RGBA rasters of bytes and packed int RGB/ARGB are read directly; anything else
+// goes through getRGB. Scratch buffers are kept per thread, like PooledResizer's.
+public class ParallelPngEncoder {
+
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        // Per row, the filter whose output has the smallest sum of absolute values, as libpng picks; ImageIO only
+        // does this for palette images and writes NONE for everything else
+        ADAPTIVE
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+    private static final int WINDOW = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+    private static final Filter[] CANDIDATES = {Filter.SUB, Filter.UP, Filter.AVERAGE, Filter.PAETH};
+
+    private static ParallelPngEncoder shared;
+
+    private final ForkJoinPool pool;
+    private final int level;
+    private final Filter filter;
+    private final int bandBytes;
+
+    private final ThreadLocal<Image> images = ThreadLocal.withInitial(Image::new);
+    private final ThreadLocal<Band> bands;
+
+    public ParallelPngEncoder(ForkJoinPool pool, int level, Filter filter, int bandBytes) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.pool = pool;
+        this.level = level;
+        this.filter = filter;
+        this.bandBytes = Math.max(WINDOW, bandBytes);
+        this.bands = ThreadLocal.withInitial(() -> new Band(level));
+    }
+
+    // One encoder and pool per JVM, configured by the png.* settings
+    public static synchronized ParallelPngEncoder shared() {
+        if (shared == null) {
+            int threads = Math.max(1, Config.getInt("png.threads", Runtime.getRuntime().availableProcessors()));
+            ForkJoinPool pool = new ForkJoinPool(threads, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName("png-encoder-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+            // Same default level as ImageIO's PNG writer, so only the parallelism differs
+            shared = new ParallelPngEncoder(pool,
+                    Config.getInt("png.compressionLevel", 4),
+                    Filter.valueOf(Config.getString("png.filter", Filter.ADAPTIVE.name()).toUpperCase()),
+                    Config.getInt("png.bandBytes", 128 * 1024));
+        }
+        return shared;
+    }
+
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        Pixels pixels = Pixels.of(image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = width * pixels.channels;
+        int stride = rowBytes + 1;
+        int rowsPerBand = Math.max(1, bandBytes / stride);
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+
+        Image state = images.get();
+        state.prepare((long) height * stride, bandCount);
+        byte[] filtered = state.filtered;
+
+        List<ForkJoinTask<?>> filterTasks = new ArrayList<>(bandCount);
+        List<ForkJoinTask<?>> deflateTasks = new ArrayList<>(bandCount);
+        for (int b = 0; b < bandCount; b++) {
+            int index = b;
+            int firstRow = b * rowsPerBand;
+            int lastRow = Math.min(height, firstRow + rowsPerBand);
+            filterTasks.add(ForkJoinTask.adapt(() -> bands.get().filter(pixels, filtered, firstRow, lastRow, width, filter)));
+            deflateTasks.add(ForkJoinTask.adapt(() -> bands.get().deflate(state, index, filtered, firstRow * stride, (lastRow - firstRow) * stride, index == bandCount - 1)));
+        }
+        run(filterTasks);
+        run(deflateTasks);
+
+        long adler = 1;
+        for (int b = 0; b < bandCount; b++) {
+            int rows = Math.min(height, (b + 1) * rowsPerBand) - b * rowsPerBand;
+            adler = combineAdler(adler, state.adlers[b], (long) rows * stride);
+        }
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) pixels.colorType();
+        writeChunk(out, state.crc, IHDR, null, header, header.length, null);
+        for (int b = 0; b < bandCount; b++) {
+            byte[] prefix = b == 0 ? zlibHeader(level) : null;
+            byte[] suffix = null;
+            if (b == bandCount - 1) {
+                suffix = new byte[4];
+                putInt(suffix, 0, (int) adler);
+            }
+            writeChunk(out, state.crc, IDAT, prefix, state.compressed[b], state.compressedLengths[b], suffix);
+        }
+        writeChunk(out, state.crc, IEND, null, new byte[0], 0, null);
+    }
+
+    // Small images are encoded on the calling thread rather than handed to the pool
+    private void run(List<ForkJoinTask<?>> tasks) {
+        if (tasks.size() == 1 || pool.getParallelism() == 1) {
+            for (ForkJoinTask<?> task : tasks) {
+                task.invoke();
+            }
+            return;
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    private static byte[] zlibHeader(int level) {
+        // Deflate with a 32 KB window, then the level hint, with the check bits making the pair a multiple of 31
+        int hint = level == Deflater.DEFAULT_COMPRESSION ? 2 : level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int header = 0x7800 | hint << 6;
+        header += 31 - header % 31;
+        return new byte[]{(byte) (header >> 8), (byte) header};
+    }
+
+    // Adler-32 of two pieces from the checksums of each, as zlib's adler32_combine
+    static long combineAdler(long first, long second, long secondLength) {
+        long remainder = secondLength % ADLER_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = remainder * sum1 % ADLER_BASE;
+        sum1 += (second & 0xffff) + ADLER_BASE - 1;
+        sum2 += (first >>> 16) + (second >>> 16) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (long) ADLER_BASE << 1) {
+            sum2 -= (long) ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeChunk(OutputStream out, CRC32 crc, byte[] type, byte[] prefix, byte[] data, int length, byte[] suffix) throws IOException {
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        int suffixLength = suffix == null ? 0 : suffix.length;
+        byte[] word = new byte[4];
+        putInt(word, 0, prefixLength + length + suffixLength);
+        out.write(word);
+        crc.reset();
+        crc.update(type);
+        out.write(type);
+        if (prefix != null) {
+            crc.update(prefix);
+            out.write(prefix);
+        }
+        crc.update(data, 0, length);
+        out.write(data, 0, length);
+        if (suffix != null) {
+            crc.update(suffix);
+            out.write(suffix);
+        }
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    // Buffers of one image, kept by the thread that encodes it: the filtered rows and each band's output
+    private static final class Image {
+        final CRC32 crc = new CRC32();
+        byte[] filtered = new byte[0];
+        byte[][] compressed = new byte[0][];
+        int[] compressedLengths = new int[0];
+        long[] adlers = new long[0];
+
+        void prepare(long filteredLength, int bandCount) throws IOException {
+            if (filteredLength > Integer.MAX_VALUE - 8) {
+                throw new IOException("Image too large to encode in memory: " + filteredLength + " bytes of rows");
+            }
+            if (filtered.length < filteredLength) {
+                filtered = new byte[(int) filteredLength];
+            }
+            if (compressed.length < bandCount) {
+                byte[][] grown = new byte[bandCount][];
+                System.arraycopy(compressed, 0, grown, 0, compressed.length);
+                for (int b = compressed.length; b < bandCount; b++) {
+                    grown[b] = new byte[0];
+                }
+                compressed = grown;
+                compressedLengths = new int[bandCount];
+                adlers = new long[bandCount];
+            }
+        }
+    }
+
+    // Scratch of one pool thread: a deflater, the raw rows being filtered and the candidate filter outputs
+    private static final class Band {
+        // Raw deflate: the zlib header and checksum are written around the joined bands. Filtered rows compress
+        // better with FILTERED, which favours short matches over literals.
+        final Deflater deflater;
+        final Adler32 adler = new Adler32();
+        byte[] previous = new byte[0];
+        byte[] current = new byte[0];
+        int[] argb = new int[0];
+        // Indexed by filter ordinal; NONE's slot is unused, the raw row is its output
+        final byte[][] candidates = new byte[5][];
+
+        Band(int level) {
+            deflater = new Deflater(level, true);
+            // A new strategy only takes effect in a deflate call of its own, so spend that call here
+            deflater.setStrategy(Deflater.FILTERED);
+            deflater.deflate(new byte[16]);
+            deflater.reset();
+        }
+
+        void filter(Pixels pixels, byte[] filtered, int firstRow, int lastRow, int width, Filter filter) {
+            int rowBytes = width * pixels.channels;
+            if (current.length < rowBytes) {
+                previous = new byte[rowBytes];
+                current = new byte[rowBytes];
+                argb = new int[width];
+                for (int i = 0; i < candidates.length; i++) {
+                    candidates[i] = new byte[rowBytes];
+                }
+            }
+            if (firstRow == 0) {
+                Arrays.fill(previous, 0, rowBytes, (byte) 0);
+            } else {
+                pixels.row(firstRow - 1, previous, argb);
+            }
+            int bpp = pixels.channels;
+            for (int y = firstRow; y < lastRow; y++) {
+                pixels.row(y, current, argb);
+                int out = y * (rowBytes + 1);
+                if (filter == Filter.ADAPTIVE) {
+                    int best = choose(rowBytes, bpp);
+                    filtered[out] = (byte) best;
+                    System.arraycopy(best == Filter.NONE.ordinal() ? current : candidates[best], 0, filtered, out + 1, rowBytes);
+                } else {
+                    filtered[out] = (byte) filter.ordinal();
+                    apply(filter, current, previous, filtered, out + 1, rowBytes, bpp);
+                }
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        }
+
+        // Filter the current row every way into the candidates and return the filter with the smallest sum
+        private int choose(int rowBytes, int bpp) {
+            int best = Filter.NONE.ordinal();
+            int bestSum = 0;
+            for (int i = 0; i < rowBytes; i++) {
+                bestSum += Math.abs(current[i]);
+            }
+            for (Filter candidate : CANDIDATES) {
+                int sum = apply(candidate, current, previous, candidates[candidate.ordinal()], 0, rowBytes, bpp);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = candidate.ordinal();
+                }
+            }
+            return best;
+        }
+
+        // Filter row into out from offset on, returning the sum of the output's absolute values as signed bytes
+        private static int apply(Filter filter, byte[] row, byte[] prior, byte[] out, int offset, int length, int bpp) {
+            int sum = 0;
+            switch (filter) {
+                case NONE:
+                    System.arraycopy(row, 0, out, offset, length);
+                    break;
+                case SUB:
+                    for (int i = 0; i < bpp; i++) {
+                        byte value = row[i];
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    for (int i = bpp; i < length; i++) {
+                        byte value = (byte) (row[i] - row[i - bpp]);
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    break;
+                case UP:
+                    for (int i = 0; i < length; i++) {
+                        byte value = (byte) (row[i] - prior[i]);
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    break;
+                case AVERAGE:
+                    for (int i = 0; i < bpp; i++) {
+                        byte value = (byte) (row[i] - ((prior[i] & 0xff) >>> 1));
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    for (int i = bpp; i < length; i++) {
+                        byte value = (byte) (row[i] - (((row[i - bpp] & 0xff) + (prior[i] & 0xff)) >>> 1));
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < bpp; i++) {
+                        byte value = (byte) (row[i] - prior[i]);
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    for (int i = bpp; i < length; i++) {
+                        byte value = (byte) (row[i] - paeth(row[i - bpp] & 0xff, prior[i] & 0xff, prior[i - bpp] & 0xff));
+                        out[offset + i] = value;
+                        sum += Math.abs(value);
+                    }
+                    break;
+            }
+            return sum;
+        }
+
+        // The neighbour closest to left + up - upLeft, picked with masks instead of branches, which photos
+        // mispredict about half the time
+        private static int paeth(int left, int up, int upLeft) {
+            int toLeft = Math.abs(up - upLeft);
+            int toUp = Math.abs(left - upLeft);
+            int toUpLeft = Math.abs(left + up - 2 * upLeft);
+            int notLeft = ((toUp - toLeft) | (toUpLeft - toLeft)) >> 31;
+            int notUp = (toUpLeft - toUp) >> 31;
+            return (~notLeft & left) | (notLeft & ((~notUp & up) | (notUp & upLeft)));
+        }
+
+        void deflate(Image image, int index, byte[] filtered, int start, int length, boolean last) {
+            adler.reset();
+            adler.update(filtered, start, length);
+            image.adlers[index] = adler.getValue();
+
+            deflater.reset();
+            if (start > 0) {
+                int dictionary = Math.min(WINDOW, start);
+                deflater.setDictionary(filtered, start - dictionary, dictionary);
+            }
+            deflater.setInput(filtered, start, length);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] output = image.compressed[index];
+            if (output.length < length / 2 + 64) {
+                output = new byte[length / 2 + 64];
+            }
+            int written = 0;
+            while (true) {
+                int space = output.length - written;
+                written += deflater.deflate(output, written, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                // Done once the stream is finished, or, flushing, once the input is used up and the deflater
+                // stopped short of the space given
+                if (last ? deflater.finished() : deflater.needsInput() && written < output.length) {
+                    break;
+                }
+                if (written == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+            }
+            image.compressed[index] = output;
+            image.compressedLengths[index] = written;
+        }
+    }
+
+    // Reads one row of an image as 8-bit samples in PNG order (gray, gray+alpha, RGB or RGBA)
+    private abstract static class Pixels {
+        final int width;
+        final int channels;
+
+        Pixels(int width, int channels) {
+            this.width = width;
+            this.channels = channels;
+        }
+
+        // PNG colour type of the channel count
+        int colorType() {
+            switch (channels) {
+                case 1:
+                    return 0;
+                case 2:
+                    return 4;
+                case 3:
+                    return 2;
+                default:
+                    return 6;
+            }
+        }
+
+        // argb is scratch for the getRGB fallback
+        abstract void row(int y, byte[] row, int[] argb);
+
+        static Pixels of(BufferedImage image) {
+            Raster raster = image.getRaster();
+            ColorModel colorModel = image.getColorModel();
+            int width = image.getWidth();
+            int translateX = raster.getSampleModelTranslateX();
+            int translateY = raster.getSampleModelTranslateY();
+
+            if (raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+                    && colorModel instanceof ComponentColorModel && !colorModel.isAlphaPremultiplied() && is8Bit(colorModel)) {
+                int bands = raster.getNumBands();
+                int colorSpaceType = colorModel.getColorSpace().getType();
+                boolean gray = colorSpaceType == ColorSpace.TYPE_GRAY && (bands == 1 || bands == 2);
+                boolean rgb = colorModel.getColorSpace().isCS_sRGB() && (bands == 3 || bands == 4);
+                if (gray || rgb) {
+                    PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+                    DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+                    byte[] data = buffer.getData();
+                    int[] bandOffsets = sampleModel.getBandOffsets();
+                    int pixelStride = sampleModel.getPixelStride();
+                    int scanlineStride = sampleModel.getScanlineStride();
+                    int base = buffer.getOffset() - translateY * scanlineStride - translateX * pixelStride;
+                    return new Pixels(width, bands) {
+                        @Override
+                        void row(int y, byte[] row, int[] argb) {
+                            int in = base + y * scanlineStride;
+                            if (bands == 3) {
+                                int red = bandOffsets[0];
+                                int green = bandOffsets[1];
+                                int blue = bandOffsets[2];
+                                for (int x = 0, out = 0; x < width; x++, in += pixelStride, out += 3) {
+                                    row[out] = data[in + red];
+                                    row[out + 1] = data[in + green];
+                                    row[out + 2] = data[in + blue];
+                                }
+                                return;
+                            }
+                            for (int x = 0, out = 0; x < width; x++, in += pixelStride) {
+                                for (int c = 0; c < bands; c++) {
+                                    row[out++] = data[in + bandOffsets[c]];
+                                }
+                            }
+                        }
+                    };
+                }
+            }
+
+            if (raster.getDataBuffer() instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                    && colorModel instanceof DirectColorModel && !colorModel.isAlphaPremultiplied()) {
+                DirectColorModel direct = (DirectColorModel) colorModel;
+                boolean alpha = direct.getAlphaMask() == 0xff000000;
+                if (direct.getRedMask() == 0xff0000 && direct.getGreenMask() == 0xff00 && direct.getBlueMask() == 0xff
+                        && (alpha || direct.getAlphaMask() == 0)) {
+                    SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                    DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+                    int[] data = buffer.getData();
+                    int scanlineStride = sampleModel.getScanlineStride();
+                    int base = buffer.getOffset() - translateY * scanlineStride - translateX;
+                    return packed(width, alpha, (y, argb) -> System.arraycopy(data, base + y * scanlineStride, argb, 0, width));
+                }
+            }
+
+            return packed(width, colorModel.hasAlpha(), (y, argb) -> image.getRGB(0, y, width, 1, argb, 0, width));
+        }
+
+        private static boolean is8Bit(ColorModel colorModel) {
+            for (int size : colorModel.getComponentSize()) {
+                if (size != 8) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private interface RowSource {
+            void read(int y, int[] argb);
+        }
+
+        private static Pixels packed(int width, boolean alpha, RowSource source) {
+            return new Pixels(width, alpha ? 4 : 3) {
+                @Override
+                void row(int y, byte[] row, int[] argb) {
+                    source.read(y, argb);
+                    int out = 0;
+                    for (int x = 0; x < width; x++) {
+                        int pixel = argb[x];
+                        row[out++] = (byte) (pixel >> 16);
+                        row[out++] = (byte) (pixel >> 8);
+                        row[out++] = (byte) pixel;
+                        if (alpha) {
+                            row[out++] = (byte) (pixel >>> 24);
+                        }
+                    }
+                }
+            };
+        }
+    }
+}
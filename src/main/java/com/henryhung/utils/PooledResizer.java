@@ -0,0 +1,385 @@
+package com.henryhung.utils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// The JVM resize path without per-image garbage. Each thread keeps what it has needed so far and reuses it:
+// the images ImageIO decodes into (one per pixel layout, grown to the largest working image), the output
+// canvases (one per size), the resampler's weight tables and intermediate rows, and one ImageIO reader and
+// writer per format. Pixels are resampled straight from the decoded raster's byte[] or int[] into the
+// canvas's byte[], without Graphics2D. The canvases are 3-byte BGR, which the JPEG writer encodes without
+// converting every row first.
+// An image returned by readImage or fitAndLetterbox is overwritten by the next call of the same kind on the
+// same thread, so it has to be encoded before then.
+public class PooledResizer {
+
+    // Decode targets are kept per pixel layout; more than this many layouts on one thread starts over
+    private static final int MAX_DECODE_TARGETS = 8;
+    private static final int MAX_CANVASES = 16;
+
+    private static final ThreadLocal<PooledResizer> CURRENT = ThreadLocal.withInitial(() ->
+            new PooledResizer(Config.getLong("worker.rasterPoolMaxPixels", 2048L * 2048)));
+
+    private final long maxPooledPixels;
+    private final Map<ImageTypeSpecifier, BufferedImage> decodeTargets = new HashMap<>();
+    private final List<BufferedImage> canvases = new ArrayList<>();
+    private final List<ImageReader> readers = new ArrayList<>();
+    private final Map<String, ImageWriter> writers = new HashMap<>();
+    private final Map<String, ImageWriteParam> writeParams = new HashMap<>();
+    private final SeparableResampler resampler = SeparableResampler.create();
+    private int[] row = new int[0];
+
+    // Decoded images up to maxPooledPixels are kept for reuse; larger ones are allocated per image
+    public PooledResizer(long maxPooledPixels) {
+        this.maxPooledPixels = maxPooledPixels;
+    }
+
+    public static PooledResizer current() {
+        return CURRENT.get();
+    }
+
+    // Same as ImageUtils.readImage(InputStream, int, int), decoding into this thread's pooled image
+    public BufferedImage readImage(InputStream inputStream, int width, int height) throws IOException {
+        try (ImageInputStream input = new MemoryCacheImageInputStream(inputStream)) {
+            return readSubsampled(input, width, height);
+        }
+    }
+
+    public BufferedImage readImage(File file, int width, int height) throws IOException {
+        try (ImageInputStream input = new FileImageInputStream(file)) {
+            return readSubsampled(input, width, height);
+        }
+    }
+
+    // From a stream the caller owns and closes, e.g. after looking for more frames with MultiFrameResizer
+    public BufferedImage readImage(ImageInputStream input, int width, int height) throws IOException {
+        return readSubsampled(input, width, height);
+    }
+
+    private BufferedImage readSubsampled(ImageInputStream input, int width, int height) throws IOException {
+        ImageReader reader = reader(input);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            reader.setInput(input, true, true);
+            int sourceWidth = reader.getWidth(0);
+            int sourceHeight = reader.getHeight(0);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = ImageUtils.subsamplingFactor(sourceWidth, sourceHeight, width, height);
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            int decodedWidth = (sourceWidth + subsampling - 1) / subsampling;
+            int decodedHeight = (sourceHeight + subsampling - 1) / subsampling;
+
+            BufferedImage target = decodeTarget(reader.getRawImageType(0), decodedWidth, decodedHeight);
+            if (target == null) {
+                return reader.read(0, param);
+            }
+            // The pooled image may be larger than this one; the reader fills the top left corner
+            param.setDestination(target);
+            reader.read(0, param);
+            if (target.getWidth() == decodedWidth && target.getHeight() == decodedHeight) {
+                return target;
+            }
+            return target.getSubimage(0, 0, decodedWidth, decodedHeight);
+        } finally {
+            reader.reset();
+        }
+    }
+
+    // A reader kept from an earlier image of the same format, or a new one from ImageIO
+    private ImageReader reader(ImageInputStream input) throws IOException {
+        for (int i = 0; i < readers.size(); i++) {
+            ImageReaderSpi provider = readers.get(i).getOriginatingProvider();
+            if (provider != null && provider.canDecodeInput(input)) {
+                return readers.get(i);
+            }
+        }
+        Iterator<ImageReader> found = ImageIO.getImageReaders(input);
+        if (!found.hasNext()) {
+            return null;
+        }
+        ImageReader reader = found.next();
+        readers.add(reader);
+        return reader;
+    }
+
+    // The pooled image to decode a width x height image of this layout into, or null to let the reader
+    // allocate one. Palettes differ from image to image, so only plain component and packed RGB layouts are kept.
+    private BufferedImage decodeTarget(ImageTypeSpecifier type, int width, int height) {
+        if (type == null) {
+            return null;
+        }
+        ColorModel colorModel = type.getColorModel();
+        if (!(colorModel instanceof ComponentColorModel) && !(colorModel instanceof DirectColorModel)) {
+            return null;
+        }
+        BufferedImage target = decodeTargets.get(type);
+        if (target != null && target.getWidth() >= width && target.getHeight() >= height) {
+            return target;
+        }
+
+        // Grow to cover both this image and the ones seen before, or replace the old one if that is too big
+        int pooledWidth = target == null ? width : Math.max(width, target.getWidth());
+        int pooledHeight = target == null ? height : Math.max(height, target.getHeight());
+        if ((long) pooledWidth * pooledHeight > maxPooledPixels) {
+            if ((long) width * height > maxPooledPixels) {
+                return null;
+            }
+            pooledWidth = width;
+            pooledHeight = height;
+        }
+        if (target == null && decodeTargets.size() >= MAX_DECODE_TARGETS) {
+            decodeTargets.clear();
+        }
+        target = type.createBufferedImage(pooledWidth, pooledHeight);
+        decodeTargets.put(type, target);
+        return target;
+    }
+
+    // Same as ImageUtils.fitAndLetterbox, drawing into this thread's width x height canvas
+    public BufferedImage fitAndLetterbox(BufferedImage image, int width, int height, Color background, ImageUtils.ResampleFilter filter) {
+        BufferedImage canvas = canvas(width, height);
+        fitAndLetterbox(image, canvas, background, filter);
+        return canvas;
+    }
+
+    // Draw the image into a TYPE_3BYTE_BGR canvas
+    void fitAndLetterbox(BufferedImage image, BufferedImage canvas, Color background, ImageUtils.ResampleFilter filter) {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        double scale = Math.min((double) width / image.getWidth(), (double) height / image.getHeight());
+        int scaledWidth = Math.max(1, Math.min(width, (int) Math.round(image.getWidth() * scale)));
+        int scaledHeight = Math.max(1, Math.min(height, (int) Math.round(image.getHeight() * scale)));
+
+        byte[] pixels = ((DataBufferByte) canvas.getRaster().getDataBuffer()).getData();
+        int backgroundRgb = background.getRGB() & 0xffffff;
+        fill(pixels, width * 3, backgroundRgb);
+
+        resampler.begin(SeparableResampler.Kernel.forFilter(filter), image.getWidth(), image.getHeight(), scaledWidth, scaledHeight);
+        filterRows(image, backgroundRgb);
+        resampler.finish(pixels, ((height - scaledHeight) / 2 * width + (width - scaledWidth) / 2) * 3, width * 3);
+    }
+
+    // Paint the first row with the background, then copy it over the others
+    private static void fill(byte[] pixels, int stride, int rgb) {
+        for (int i = 0; i < stride; i += 3) {
+            pixels[i] = (byte) rgb;
+            pixels[i + 1] = (byte) (rgb >> 8);
+            pixels[i + 2] = (byte) (rgb >> 16);
+        }
+        for (int offset = stride; offset < pixels.length; offset += stride) {
+            System.arraycopy(pixels, 0, pixels, offset, stride);
+        }
+    }
+
+    private BufferedImage canvas(int width, int height) {
+        for (int i = 0; i < canvases.size(); i++) {
+            BufferedImage canvas = canvases.get(i);
+            if (canvas.getWidth() == width && canvas.getHeight() == height) {
+                return canvas;
+            }
+        }
+        if (canvases.size() >= MAX_CANVASES) {
+            canvases.clear();
+        }
+        BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        canvases.add(canvas);
+        return canvas;
+    }
+
+    // Feed every row of the image to the resampler as packed RGB, with any transparency flattened onto the background
+    private void filterRows(BufferedImage image, int background) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (row.length < width) {
+            row = new int[width];
+        }
+        int[] row = this.row;
+
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        ColorModel colorModel = image.getColorModel();
+
+        if (isPackedRgb(colorModel, sampleModel, dataBuffer)) {
+            int[] data = ((DataBufferInt) dataBuffer).getData();
+            int stride = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+            int base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+            boolean alpha = colorModel.hasAlpha();
+            for (int y = 0; y < height; y++) {
+                int offset = base + y * stride;
+                if (!alpha) {
+                    // Opaque rows are read in place
+                    resampler.filterRow(data, offset, y);
+                    continue;
+                }
+                for (int x = 0; x < width; x++) {
+                    row[x] = flatten(data[offset + x], background);
+                }
+                resampler.filterRow(row, 0, y);
+            }
+            return;
+        }
+
+        if (isInterleavedBytes(colorModel, sampleModel, dataBuffer)) {
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+            byte[] data = ((DataBufferByte) dataBuffer).getData();
+            int stride = interleaved.getScanlineStride();
+            int pixelStride = interleaved.getPixelStride();
+            int[] bandOffsets = interleaved.getBandOffsets();
+            int bands = bandOffsets.length;
+            int base = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX() * pixelStride;
+            int first = bandOffsets[0];
+            int second = bands > 1 ? bandOffsets[1] : 0;
+            int third = bands > 2 ? bandOffsets[2] : 0;
+            int last = bandOffsets[bands - 1];
+            for (int y = 0; y < height; y++) {
+                int p = base + y * stride;
+                for (int x = 0; x < width; x++, p += pixelStride) {
+                    int pixel;
+                    if (bands >= 3) {
+                        pixel = (data[p + first] & 0xff) << 16 | (data[p + second] & 0xff) << 8 | (data[p + third] & 0xff);
+                    } else {
+                        int gray = data[p + first] & 0xff;
+                        pixel = gray << 16 | gray << 8 | gray;
+                    }
+                    if (bands == 2 || bands == 4) {
+                        pixel = flatten((data[p + last] & 0xff) << 24 | pixel, background);
+                    }
+                    row[x] = pixel;
+                }
+                resampler.filterRow(row, 0, y);
+            }
+            return;
+        }
+
+        // Palettes, 16-bit samples and other colour spaces convert through the colour model
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                row[x] = flatten(row[x], background);
+            }
+            resampler.filterRow(row, 0, y);
+        }
+    }
+
+    // TYPE_INT_RGB and TYPE_INT_ARGB, and any other non-premultiplied int layout with the same masks
+    private static boolean isPackedRgb(ColorModel colorModel, SampleModel sampleModel, DataBuffer dataBuffer) {
+        if (!(colorModel instanceof DirectColorModel) || !(sampleModel instanceof SinglePixelPackedSampleModel)
+                || !(dataBuffer instanceof DataBufferInt) || colorModel.isAlphaPremultiplied()) {
+            return false;
+        }
+        DirectColorModel direct = (DirectColorModel) colorModel;
+        return direct.getRedMask() == 0xff0000 && direct.getGreenMask() == 0xff00 && direct.getBlueMask() == 0xff
+                && (direct.getAlphaMask() == 0 || direct.getAlphaMask() == 0xff000000);
+    }
+
+    // 8-bit gray, gray and alpha, RGB and RGBA in any band order, e.g. TYPE_3BYTE_BGR and what the PNG reader produces
+    private static boolean isInterleavedBytes(ColorModel colorModel, SampleModel sampleModel, DataBuffer dataBuffer) {
+        if (!(colorModel instanceof ComponentColorModel) || !(sampleModel instanceof PixelInterleavedSampleModel)
+                || !(dataBuffer instanceof DataBufferByte) || colorModel.isAlphaPremultiplied()) {
+            return false;
+        }
+        int bands = sampleModel.getNumBands();
+        if (bands != colorModel.getNumComponents()) {
+            return false;
+        }
+        for (int i = 0; i < bands; i++) {
+            if (colorModel.getComponentSize(i) != 8) {
+                return false;
+            }
+        }
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        int colors = colorModel.getNumColorComponents();
+        // Gray is copied to all three channels, as Java2D does when drawing a gray image onto an RGB one
+        return (colors == 3 && colorSpace.isCS_sRGB()) || (colors == 1 && colorSpace.getType() == ColorSpace.TYPE_GRAY);
+    }
+
+    private static int flatten(int argb, int background) {
+        int alpha = argb >>> 24;
+        if (alpha == 0xff) {
+            return argb & 0xffffff;
+        }
+        if (alpha == 0) {
+            return background;
+        }
+        int inverse = 0xff - alpha;
+        int r = (((argb >> 16) & 0xff) * alpha + ((background >> 16) & 0xff) * inverse + 127) / 255;
+        int g = (((argb >> 8) & 0xff) * alpha + ((background >> 8) & 0xff) * inverse + 127) / 255;
+        int b = ((argb & 0xff) * alpha + (background & 0xff) * inverse + 127) / 255;
+        return r << 16 | g << 8 | b;
+    }
+
+    // Same as ImageUtils.writeImage, with this thread's writer for the format
+    public void writeImage(BufferedImage image, String format, OutputStream outputStream) throws IOException {
+        try (ImageOutputStream output = new MemoryCacheImageOutputStream(outputStream)) {
+            writeImage(image, format, output);
+        }
+    }
+
+    public void writeImage(BufferedImage image, String format, File outputFile) throws IOException {
+        if (outputFile.exists() && !outputFile.delete()) {
+            throw new IOException("Could not overwrite " + outputFile.getAbsolutePath());
+        }
+        try (ImageOutputStream output = new FileImageOutputStream(outputFile)) {
+            writeImage(image, format, output);
+        }
+    }
+
+    private void writeImage(BufferedImage image, String format, ImageOutputStream output) throws IOException {
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+            if (!found.hasNext()) {
+                throw new IOException("No appropriate writer found for " + format);
+            }
+            writer = found.next();
+            writers.put(format, writer);
+            writeParams.put(format, ImageUtils.writeParam(writer, format));
+        }
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), writeParams.get(format));
+        } finally {
+            writer.reset();
+        }
+    }
+}
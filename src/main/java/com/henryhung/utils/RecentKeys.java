@@ -0,0 +1,37 @@
+package com.henryhung.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The last capacity keys added, oldest dropped first. Remembers what has been done recently without growing
+// for the life of the process; a key that has been dropped is simply treated as new again.
+public class RecentKeys {
+
+    private final int capacity;
+
+    // Insertion-ordered, so the eldest entry is the key added longest ago
+    private final LinkedHashMap<String, Boolean> keys;
+
+    public RecentKeys(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.keys = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > RecentKeys.this.capacity;
+            }
+        };
+    }
+
+    // False if the key was already there
+    public synchronized boolean add(String key) {
+        return keys.put(key, Boolean.TRUE) == null;
+    }
+
+    public synchronized boolean contains(String key) {
+        return keys.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,273 @@
+package com.henryhung.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Processed results keyed by a hash of the uploaded bytes and the processing parameters.
+// An in-memory LRU tier bounded by total bytes, backed by an optional on-disk LRU tier.
+public class ResultCache {
+
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final File diskDirectory;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    // Keys being written to the disk tier, not yet in its index
+    private final Set<String> diskWrites = new HashSet<>();
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public ResultCache(long maxMemoryBytes, File diskDirectory, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskDirectory = diskDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDirectory != null) {
+            loadDiskIndex();
+        }
+    }
+
+    // Build a cache from cache.* settings; the disk tier is enabled by setting cache.directory
+    public static ResultCache fromConfig() {
+        String directory = Config.getString("cache.directory", "");
+        return new ResultCache(
+                Config.getLong("cache.maxMemoryBytes", 64L * 1024 * 1024),
+                directory.isEmpty() ? null : new File(directory),
+                Config.getLong("cache.maxDiskBytes", 1024L * 1024 * 1024));
+    }
+
+    public static String cacheKey(byte[] content, String parameters) {
+        return cacheKeys(content, Collections.singletonList(parameters)).get(0);
+    }
+
+    // Keys of several results of the same upload, hashing the content only once
+    public static List<String> cacheKeys(byte[] content, List<String> parameters) {
+        MessageDigest contentDigest = contentDigest();
+        contentDigest.update(content);
+        return cacheKeys(contentDigest, parameters);
+    }
+
+    // A digest to feed the upload to as it streams past, e.g. through a DigestInputStream, instead of holding it
+    public static MessageDigest contentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public static String cacheKey(MessageDigest contentDigest, String parameters) {
+        return cacheKeys(contentDigest, Collections.singletonList(parameters)).get(0);
+    }
+
+    // The same keys from a digest of the content; the digest itself is left as it is, so it can be used again
+    public static List<String> cacheKeys(MessageDigest contentDigest, List<String> parameters) {
+        try {
+            MessageDigest content = (MessageDigest) contentDigest.clone();
+            content.update((byte) 0);
+            List<String> keys = new ArrayList<>();
+            for (String parameter : parameters) {
+                MessageDigest digest = (MessageDigest) content.clone();
+                digest.update(parameter.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                keys.add(hex.toString());
+            }
+            return keys;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Only the index and LRU updates hold the lock; files are read and written outside it, so a slow disk
+    // never holds up a memory hit
+    public byte[] get(String key) {
+        byte[] value;
+        Long diskSize;
+        synchronized (this) {
+            value = memory.get(key);
+            // Touch the disk entry as well, so it counts as recently used
+            diskSize = value == null ? disk.get(key) : null;
+        }
+        if (value == null && diskSize != null) {
+            value = readFromDisk(key, diskSize);
+            if (value != null) {
+                synchronized (this) {
+                    putInMemory(key, value);
+                }
+            }
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(value.length);
+        return value;
+    }
+
+    public void put(String key, byte[] value) {
+        boolean write;
+        synchronized (this) {
+            putInMemory(key, value);
+            // Claim the key so that concurrent puts of the same result write it only once
+            write = diskDirectory != null && !disk.containsKey(key) && diskWrites.add(key);
+        }
+        if (write) {
+            writeToDisk(key, value);
+        }
+    }
+
+    private void putInMemory(String key, byte[] value) {
+        // Don't let a single oversized entry flush the whole tier
+        if (value.length > maxMemoryBytes / 4) {
+            return;
+        }
+        byte[] previous = memory.put(key, value);
+        if (previous != null) {
+            memoryBytes -= previous.length;
+        }
+        memoryBytes += value.length;
+
+        Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private byte[] readFromDisk(String key, long size) {
+        try {
+            return Files.readAllBytes(diskFile(key));
+        } catch (IOException e) {
+            // Removed behind our back, or evicted while we were reading; forget it
+            synchronized (this) {
+                if (disk.remove(key, size)) {
+                    diskBytes -= size;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, byte[] value) {
+        try {
+            Files.createDirectories(diskDirectory.toPath());
+            Path temp = Files.createTempFile(diskDirectory.toPath(), key, ".tmp");
+            Files.write(temp, value);
+            Files.move(temp, diskFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            debug("Failed to write cache entry to disk: " + e.getMessage());
+            synchronized (this) {
+                diskWrites.remove(key);
+            }
+            return;
+        }
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            diskWrites.remove(key);
+            disk.put(key, (long) value.length);
+            diskBytes += value.length;
+
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                diskBytes -= entry.getValue();
+                eldest.remove();
+                evictions.incrementAndGet();
+                evicted.add(entry.getKey());
+            }
+        }
+        for (String evictedKey : evicted) {
+            try {
+                Files.deleteIfExists(diskFile(evictedKey));
+            } catch (IOException e) {
+                debug("Failed to delete cache entry from disk: " + e.getMessage());
+            }
+        }
+    }
+
+    // Rebuild the disk index from a previous run, oldest files first so they are evicted first
+    private void loadDiskIndex() {
+        File[] files = diskDirectory.listFiles((dir, name) -> name.endsWith(".bin"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - ".bin".length());
+            disk.put(key, file.length());
+            diskBytes += file.length();
+        }
+        debug("Loaded " + disk.size() + " cache entries from " + diskDirectory.getAbsolutePath());
+    }
+
+    private Path diskFile(String key) {
+        return new File(diskDirectory, key + ".bin").toPath();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public String getStats() {
+        return String.format("hits=%d misses=%d hitRate=%.2f evictions=%d bytesSaved=%d memoryBytes=%d diskBytes=%d",
+                getHits(), getMisses(), getHitRate(), getEvictions(), getBytesSaved(), getMemoryBytes(), getDiskBytes());
+    }
+
+    private static void debug(String message) {
+        System.out.println("ResultCache: " + message);
+    }
+}
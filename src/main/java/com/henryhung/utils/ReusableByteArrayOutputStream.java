@@ -0,0 +1,23 @@
+package com.henryhung.utils;
+
+import java.io.ByteArrayOutputStream;
+
+// A ByteArrayOutputStream that keeps its grown buffer from job to job, so encoding doesn't reallocate it every time.
+// The outputs of one job are held together until they are uploaded, so each one is taken out with toByteArray.
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+    private final int initialCapacity;
+
+    public ReusableByteArrayOutputStream(int initialCapacity) {
+        super(initialCapacity);
+        this.initialCapacity = initialCapacity;
+    }
+
+    // Reset for the next job, dropping the backing array if it has grown beyond maxCapacity
+    public synchronized void recycle(int maxCapacity) {
+        if (buf.length > maxCapacity) {
+            buf = new byte[initialCapacity];
+        }
+        count = 0;
+    }
+}
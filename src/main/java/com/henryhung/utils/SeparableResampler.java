@@ -0,0 +1,262 @@
+package com.henryhung.utils;
+
+import java.util.Arrays;
+
+// Resizes packed RGB pixels in two passes: every source row is filtered horizontally into an intermediate
+// buffer, then every output row is filtered vertically out of it. The kernel is widened by the scale factor
+// when shrinking, so every source pixel contributes and no halving steps are needed to avoid aliasing.
+// This is the scalar version; create() returns the Vector API one (VectorResampler) when the JVM has
+// jdk.incubator.vector. Not thread safe: the weight tables and the intermediate buffer are kept for the next resize.
+class SeparableResampler {
+
+    private static volatile boolean loggedFallback;
+
+    enum Kernel {
+        // Area average
+        BOX(0.5) {
+            double weight(double x) {
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            }
+        },
+        TRIANGLE(1.0) {
+            double weight(double x) {
+                x = Math.abs(x);
+                return x < 1 ? 1 - x : 0;
+            }
+        },
+        // Bicubic with a = -0.5, the curve behind Java2D's bicubic interpolation
+        CATMULL_ROM(2.0) {
+            double weight(double x) {
+                x = Math.abs(x);
+                if (x < 1) {
+                    return (1.5 * x - 2.5) * x * x + 1;
+                }
+                if (x < 2) {
+                    return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+                }
+                return 0;
+            }
+        },
+        // Cubic with B = C = 1/3: softer than Catmull-Rom, with less ringing
+        MITCHELL(2.0) {
+            double weight(double x) {
+                x = Math.abs(x);
+                if (x < 1) {
+                    return ((7 * x - 12) * x * x + 16.0 / 3) / 6;
+                }
+                if (x < 2) {
+                    return (((-7.0 / 3 * x + 12) * x - 20) * x + 32.0 / 3) / 6;
+                }
+                return 0;
+            }
+        },
+        // Windowed sinc over three lobes: the sharpest, at three times the taps of triangle
+        LANCZOS3(3.0) {
+            double weight(double x) {
+                x = Math.abs(x);
+                if (x < 1e-8) {
+                    return 1;
+                }
+                if (x >= 3) {
+                    return 0;
+                }
+                double px = Math.PI * x;
+                return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+            }
+        };
+
+        final double support;
+
+        Kernel(double support) {
+            this.support = support;
+        }
+
+        abstract double weight(double x);
+
+        // The kernel closest to each of the Java2D filters; the progressive ones need no halving here
+        static Kernel forFilter(ImageUtils.ResampleFilter filter) {
+            switch (filter) {
+                case NEAREST_NEIGHBOR:
+                    return BOX;
+                case BILINEAR:
+                case PROGRESSIVE_BILINEAR:
+                case TRIANGLE:
+                    return TRIANGLE;
+                case MITCHELL:
+                    return MITCHELL;
+                case LANCZOS3:
+                    return LANCZOS3;
+                default:
+                    return CATMULL_ROM;
+            }
+        }
+    }
+
+    final Weights horizontal = new Weights();
+    final Weights vertical = new Weights();
+    int sourceWidth;
+    int sourceHeight;
+    int targetWidth;
+    int targetHeight;
+    // Kept in float like VectorResampler's, so both give the same pixels apart from rounding. Interleaved in
+    // the BGR order of the output.
+    private float[] intermediate = new float[0];
+    private float[] sums = new float[0];
+
+    // The Vector API version if jdk.incubator.vector is available and resampler.vector isn't false. It is
+    // only loaded by name, so this class still links on a JVM started without --add-modules jdk.incubator.vector.
+    static SeparableResampler create() {
+        if (Config.getBoolean("resampler.vector", true)) {
+            try {
+                return (SeparableResampler) Class.forName("com.henryhung.utils.VectorResampler").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                if (!loggedFallback) {
+                    loggedFallback = true;
+                    System.out.println("SeparableResampler: Vector API not available (" + e + "), using scalar code;"
+                            + " start the JVM with --add-modules jdk.incubator.vector to enable it");
+                }
+            }
+        }
+        return new SeparableResampler();
+    }
+
+    // Prepare to resize a sourceWidth x sourceHeight image to targetWidth x targetHeight
+    void begin(Kernel kernel, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        horizontal.compute(kernel, sourceWidth, targetWidth, tapAlignment());
+        vertical.compute(kernel, sourceHeight, targetHeight, 1);
+        allocate();
+    }
+
+    // Rows of weights are padded with zeros to a multiple of this many taps
+    int tapAlignment() {
+        return 1;
+    }
+
+    void allocate() {
+        if (intermediate.length < sourceHeight * targetWidth * 3) {
+            intermediate = new float[sourceHeight * targetWidth * 3];
+        }
+        if (sums.length < targetWidth * 3) {
+            sums = new float[targetWidth * 3];
+        }
+    }
+
+    // Filter source row y, read from pixels[offset] on, into the intermediate buffer. Every row from 0 to
+    // sourceHeight - 1 has to be passed in before finish.
+    void filterRow(int[] pixels, int offset, int y) {
+        int[] starts = horizontal.starts;
+        int[] counts = horizontal.counts;
+        float[] weights = horizontal.values;
+        int taps = horizontal.taps;
+        int out = y * targetWidth * 3;
+        for (int x = 0; x < targetWidth; x++, out += 3) {
+            int start = offset + starts[x];
+            int count = counts[x];
+            int w = x * taps;
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            for (int k = 0; k < count; k++) {
+                int pixel = pixels[start + k];
+                float weight = weights[w + k];
+                r += ((pixel >> 16) & 0xff) * weight;
+                g += ((pixel >> 8) & 0xff) * weight;
+                b += (pixel & 0xff) * weight;
+            }
+            intermediate[out] = b;
+            intermediate[out + 1] = g;
+            intermediate[out + 2] = r;
+        }
+    }
+
+    // Filter the intermediate rows vertically into target as 3-byte BGR pixels, output row y starting at
+    // byte offset + y * stride
+    void finish(byte[] target, int offset, int stride) {
+        int[] starts = vertical.starts;
+        int[] counts = vertical.counts;
+        float[] weights = vertical.values;
+        int taps = vertical.taps;
+        float[] sums = this.sums;
+        int rowLength = targetWidth * 3;
+        for (int y = 0; y < targetHeight; y++) {
+            Arrays.fill(sums, 0, rowLength, 0f);
+            int count = counts[y];
+            for (int k = 0; k < count; k++) {
+                float weight = weights[y * taps + k];
+                int row = (starts[y] + k) * rowLength;
+                for (int s = 0; s < rowLength; s++) {
+                    sums[s] += intermediate[row + s] * weight;
+                }
+            }
+            int out = offset + y * stride;
+            for (int s = 0; s < rowLength; s++) {
+                target[out + s] = (byte) clamp(sums[s]);
+            }
+        }
+    }
+
+    static int clamp(float value) {
+        int rounded = (int) (value + 0.5f);
+        return rounded < 0 ? 0 : Math.min(255, rounded);
+    }
+
+    // For every output pixel along one axis, the first source pixel it reads, how many it reads and their
+    // normalised weights, taps apart in values. Kept until an image of other dimensions comes along.
+    static final class Weights {
+        int taps;
+        int[] starts = new int[0];
+        int[] counts = new int[0];
+        float[] values = new float[0];
+        private Kernel kernel;
+        private int sourceLength;
+        private int targetLength;
+        private int alignment;
+
+        void compute(Kernel kernel, int sourceLength, int targetLength, int alignment) {
+            if (kernel == this.kernel && sourceLength == this.sourceLength && targetLength == this.targetLength && alignment == this.alignment) {
+                return;
+            }
+            this.kernel = kernel;
+            this.sourceLength = sourceLength;
+            this.targetLength = targetLength;
+            this.alignment = alignment;
+
+            double scale = (double) sourceLength / targetLength;
+            double filterScale = Math.max(1.0, scale);
+            double support = kernel.support * filterScale;
+            taps = ((int) Math.ceil(support) * 2 + 1 + alignment - 1) / alignment * alignment;
+            if (starts.length < targetLength) {
+                starts = new int[targetLength];
+                counts = new int[targetLength];
+            }
+            if (values.length < targetLength * taps) {
+                values = new float[targetLength * taps];
+            }
+
+            for (int i = 0; i < targetLength; i++) {
+                double center = (i + 0.5) * scale;
+                int min = Math.max(0, (int) (center - support + 0.5));
+                int max = Math.min(sourceLength, (int) (center + support + 0.5));
+                int base = i * taps;
+                double total = 0;
+                for (int k = 0; k < max - min; k++) {
+                    double weight = kernel.weight((min + k - center + 0.5) / filterScale);
+                    values[base + k] = (float) weight;
+                    total += weight;
+                }
+                if (total != 0) {
+                    for (int k = 0; k < max - min; k++) {
+                        values[base + k] /= total;
+                    }
+                }
+                Arrays.fill(values, base + max - min, base + taps, 0f);
+                starts[i] = min;
+                counts[i] = max - min;
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.henryhung.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThreadUtils {
+
+    private ThreadUtils() {
+    }
+
+    // Daemon threads named <prefix>-<n>, so background pools never keep the JVM alive and are easy to spot in thread dumps
+    public static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,146 @@
+package com.henryhung.utils;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SeparableResampler on the Vector API, loaded by SeparableResampler.create when jdk.incubator.vector is present.
+// Source rows are split into planar float channels and the intermediate buffer is kept planar and in float:
+//  - horizontally, each output pixel is a dot product of its weight row with a run of source pixels, a whole
+//    vector of taps at a time (weight rows are zero-padded to a multiple of the vector length)
+//  - vertically, each output row sums weighted intermediate rows a whole vector of pixels at a time
+class VectorResampler extends SeparableResampler {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+    private static final int LANES = FLOATS.length();
+
+    private float[] red = new float[0];
+    private float[] green = new float[0];
+    private float[] blue = new float[0];
+    private float[] intermediateRed = new float[0];
+    private float[] intermediateGreen = new float[0];
+    private float[] intermediateBlue = new float[0];
+    private float[] outputRed = new float[0];
+    private float[] outputGreen = new float[0];
+    private float[] outputBlue = new float[0];
+
+    @Override
+    int tapAlignment() {
+        return LANES;
+    }
+
+    @Override
+    void allocate() {
+        // A run of taps may read up to a vector past the last source pixel, where the weights are zero
+        if (red.length < sourceWidth + LANES) {
+            red = new float[sourceWidth + LANES];
+            green = new float[sourceWidth + LANES];
+            blue = new float[sourceWidth + LANES];
+        }
+        if (intermediateRed.length < sourceHeight * targetWidth) {
+            intermediateRed = new float[sourceHeight * targetWidth];
+            intermediateGreen = new float[sourceHeight * targetWidth];
+            intermediateBlue = new float[sourceHeight * targetWidth];
+        }
+        if (outputRed.length < targetWidth) {
+            outputRed = new float[targetWidth];
+            outputGreen = new float[targetWidth];
+            outputBlue = new float[targetWidth];
+        }
+    }
+
+    @Override
+    void filterRow(int[] pixels, int offset, int y) {
+        int width = sourceWidth;
+        int x = 0;
+        for (int bound = INTS.loopBound(width); x < bound; x += LANES) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, offset + x);
+            ((FloatVector) pixel.lanewise(VectorOperators.LSHR, 16).and(0xff).convert(VectorOperators.I2F, 0)).intoArray(red, x);
+            ((FloatVector) pixel.lanewise(VectorOperators.LSHR, 8).and(0xff).convert(VectorOperators.I2F, 0)).intoArray(green, x);
+            ((FloatVector) pixel.and(0xff).convert(VectorOperators.I2F, 0)).intoArray(blue, x);
+        }
+        for (; x < width; x++) {
+            int pixel = pixels[offset + x];
+            red[x] = (pixel >> 16) & 0xff;
+            green[x] = (pixel >> 8) & 0xff;
+            blue[x] = pixel & 0xff;
+        }
+
+        int[] starts = horizontal.starts;
+        int[] counts = horizontal.counts;
+        float[] weights = horizontal.values;
+        int taps = horizontal.taps;
+        int out = y * targetWidth;
+        for (int i = 0; i < targetWidth; i++) {
+            int start = starts[i];
+            int count = counts[i];
+            int w = i * taps;
+            FloatVector r = FloatVector.zero(FLOATS);
+            FloatVector g = FloatVector.zero(FLOATS);
+            FloatVector b = FloatVector.zero(FLOATS);
+            for (int k = 0; k < count; k += LANES) {
+                FloatVector weight = FloatVector.fromArray(FLOATS, weights, w + k);
+                r = FloatVector.fromArray(FLOATS, red, start + k).fma(weight, r);
+                g = FloatVector.fromArray(FLOATS, green, start + k).fma(weight, g);
+                b = FloatVector.fromArray(FLOATS, blue, start + k).fma(weight, b);
+            }
+            intermediateRed[out + i] = r.reduceLanes(VectorOperators.ADD);
+            intermediateGreen[out + i] = g.reduceLanes(VectorOperators.ADD);
+            intermediateBlue[out + i] = b.reduceLanes(VectorOperators.ADD);
+        }
+    }
+
+    @Override
+    void finish(byte[] target, int offset, int stride) {
+        int[] starts = vertical.starts;
+        int[] counts = vertical.counts;
+        float[] weights = vertical.values;
+        int taps = vertical.taps;
+        int width = targetWidth;
+        int bound = FLOATS.loopBound(width);
+        for (int y = 0; y < targetHeight; y++) {
+            int first = starts[y] * width;
+            int count = counts[y];
+            int w = y * taps;
+
+            int x = 0;
+            for (; x < bound; x += LANES) {
+                FloatVector r = FloatVector.zero(FLOATS);
+                FloatVector g = FloatVector.zero(FLOATS);
+                FloatVector b = FloatVector.zero(FLOATS);
+                for (int k = 0, row = first + x; k < count; k++, row += width) {
+                    FloatVector weight = FloatVector.broadcast(FLOATS, weights[w + k]);
+                    r = FloatVector.fromArray(FLOATS, intermediateRed, row).fma(weight, r);
+                    g = FloatVector.fromArray(FLOATS, intermediateGreen, row).fma(weight, g);
+                    b = FloatVector.fromArray(FLOATS, intermediateBlue, row).fma(weight, b);
+                }
+                r.intoArray(outputRed, x);
+                g.intoArray(outputGreen, x);
+                b.intoArray(outputBlue, x);
+            }
+            for (; x < width; x++) {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int k = 0, row = first + x; k < count; k++, row += width) {
+                    float weight = weights[w + k];
+                    r += intermediateRed[row] * weight;
+                    g += intermediateGreen[row] * weight;
+                    b += intermediateBlue[row] * weight;
+                }
+                outputRed[x] = r;
+                outputGreen[x] = g;
+                outputBlue[x] = b;
+            }
+
+            int out = offset + y * stride;
+            for (x = 0; x < width; x++, out += 3) {
+                target[out] = (byte) clamp(outputBlue[x]);
+                target[out + 1] = (byte) clamp(outputGreen[x]);
+                target[out + 2] = (byte) clamp(outputRed[x]);
+            }
+        }
+    }
+}
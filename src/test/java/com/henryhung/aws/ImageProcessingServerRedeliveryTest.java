@@ -0,0 +1,215 @@
+package com.henryhung.aws;
+
+import com.henryhung.transport.InMemoryMessageQueue;
+import com.henryhung.transport.InMemoryObjectStore;
+import com.henryhung.transport.Lane;
+import com.henryhung.transport.QueueMessage;
+import com.henryhung.transport.StoredObject;
+import com.henryhung.transport.Transports;
+import com.henryhung.utils.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The inbox and the outbox deliver at least once; a redelivered message must neither process an image
+// a second time nor hand its result to the client twice
+class ImageProcessingServerRedeliveryTest {
+
+    private static final List<Integer> SIZES = List.of(64, 256);
+
+    private CountingObjectStore store;
+    private InMemoryMessageQueue queue;
+    private ImageProcessingServer worker;
+    private ImageUploadClient client;
+    private String inbox;
+    private String outbox;
+
+    @BeforeAll
+    static void configure() {
+        System.setProperty("transport", Transports.MEMORY);
+        System.setProperty("output.sizes", "64,256");
+        System.setProperty("worker.parallelism", "4");
+        // The shortest timeout the worker accepts, so that a message left alone comes back quickly
+        System.setProperty("worker.visibilityTimeoutSeconds", "2");
+    }
+
+    @BeforeEach
+    void setUp() {
+        // A store and queue of its own, rather than the ones shared through Transports
+        store = new CountingObjectStore();
+        queue = new InMemoryMessageQueue();
+        worker = new ImageProcessingServer(store, queue);
+        client = new ImageUploadClient(store, queue);
+        inbox = Lane.FAST.queue();
+        outbox = Transports.outboxQueue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.release();
+        client.close();
+        worker.close();
+    }
+
+    @Test
+    void deletesRedeliveryOfCompletedJob() throws Exception {
+        LongAdder completed = duplicateJobs("completed");
+        long before = completed.sum();
+        worker.start();
+
+        ProcessedImage processed = client.uploadAndProcessAsync("a.png", png()).get(30, TimeUnit.SECONDS);
+        String key = processed.getKey();
+        queue.send(inbox, key, 0).join();
+
+        awaitTrue(() -> completed.sum() == before + 1, "repeated message recognised as completed");
+        awaitTrue(() -> queue.size(inbox) == 0, "repeated message deleted");
+        assertEquals(1, store.downloads(key), "processing runs");
+        assertEquals(0, queue.size(outbox), "results announced again");
+    }
+
+    @Test
+    void leavesDuplicateWhileJobIsInFlight() throws Exception {
+        LongAdder inFlight = duplicateJobs("in_flight");
+        LongAdder completed = duplicateJobs("completed");
+        long inFlightBefore = inFlight.sum();
+        long completedBefore = completed.sum();
+        String key = "in-flight.png";
+        store.put(key, new ByteArrayInputStream(png()), png().length);
+        // The first job stops in its download until the duplicate has been seen
+        store.block(key);
+        queue.send(inbox, key, 0).join();
+        queue.send(inbox, key, 0).join();
+        worker.start();
+
+        awaitTrue(() -> inFlight.sum() == inFlightBefore + 1, "duplicate recognised as in flight");
+        store.release();
+        // The duplicate was left alone and comes back after its visibility timeout, by then as completed
+        awaitTrue(() -> completed.sum() == completedBefore + 1, "duplicate recognised as completed");
+        awaitTrue(() -> queue.size(inbox) == 0, "both messages deleted");
+
+        assertEquals(1, store.downloads(key), "processing runs");
+        List<QueueMessage> results = queue.receive(outbox, 10, 0, 30);
+        assertEquals(1, results.size(), "results announced");
+        assertEquals(ProcessedImage.resultMessage(key, SIZES), results.get(0).getBody());
+    }
+
+    @Test
+    void finishesRedeliveryWhoseResultsAreStored() throws Exception {
+        LongAdder stored = duplicateJobs("stored");
+        long before = stored.sum();
+        String key = "stored.png";
+        store.put(key, new ByteArrayInputStream(png()), png().length);
+        for (int size : SIZES) {
+            store.putAsync(ProcessedImage.variantKey(key, size), new byte[]{1}).join();
+        }
+        // A worker that uploaded the results and stopped before deleting the message
+        queue.send(inbox, key, 0).join();
+        assertEquals(1, queue.receive(inbox, 1, 0, 1).size());
+        Thread.sleep(1500);
+        worker.start();
+
+        awaitTrue(() -> stored.sum() == before + 1, "redelivery found its results in storage");
+        awaitTrue(() -> queue.size(inbox) == 0, "redelivered message deleted");
+        assertEquals(0, store.downloads(key), "processing runs");
+        assertFalse(store.exists(key), "raw image left in storage");
+        List<QueueMessage> results = queue.receive(outbox, 10, 0, 30);
+        assertEquals(1, results.size(), "results announced");
+        assertEquals(ProcessedImage.resultMessage(key, SIZES), results.get(0).getBody());
+    }
+
+    @Test
+    void dropsRepeatedResultOfDeliveredKey() throws Exception {
+        LongAdder duplicates = Metrics.global().counter("image_duplicate_results_total", "", "");
+        long before = duplicates.sum();
+        worker.start();
+
+        ProcessedImage first = client.uploadAndProcessAsync("a.png", png()).get(30, TimeUnit.SECONDS);
+        String key = first.getKey();
+        assertEquals(SIZES, first.getSizes());
+        // The worker announces the result again after a redelivery; a second job keeps the client polling
+        queue.send(outbox, ProcessedImage.resultMessage(key, SIZES), 0).join();
+        ProcessedImage second = client.uploadAndProcessAsync("b.png", png()).get(30, TimeUnit.SECONDS);
+
+        assertFalse(key.equals(second.getKey()));
+        awaitTrue(() -> duplicates.sum() == before + 1, "repeated result dropped");
+        awaitTrue(() -> queue.size(outbox) == 0, "repeated result deleted");
+        assertEquals(1, store.downloads(key), "processing runs");
+    }
+
+    private static LongAdder duplicateJobs(String reason) {
+        return Metrics.global().counter("image_duplicate_jobs_total", "", "reason=\"" + reason + "\"");
+    }
+
+    private static byte[] png() throws IOException {
+        BufferedImage image = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 255 / 319) << 16 | (y * 255 / 239) << 8 | 0x80);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(15);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting: " + message);
+            Thread.sleep(20);
+        }
+    }
+
+    // Counts how often the worker opens each raw image, i.e. how often it is processed, and can hold a download
+    private static class CountingObjectStore extends InMemoryObjectStore {
+
+        private final Map<String, AtomicInteger> downloads = new ConcurrentHashMap<>();
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile String blockedKey;
+
+        @Override
+        public StoredObject get(String key) throws IOException {
+            downloads.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            if (key.equals(blockedKey)) {
+                try {
+                    released.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.get(key);
+        }
+
+        int downloads(String key) {
+            AtomicInteger count = downloads.get(key);
+            return count == null ? 0 : count.get();
+        }
+
+        void block(String key) {
+            blockedKey = key;
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.henryhung.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// The pool's `magick -script -` line protocol and named pipes only mean anything against a real ImageMagick 7,
+// so this runs wherever `magick` is on the PATH and is skipped elsewhere. imagemagick.poolSize stays 0 by
+// default until it has passed on the workers' ImageMagick.
+class ImageMagickPoolTest {
+
+    private static final String COMMAND = "magick";
+
+    private ImageMagickPool pool;
+
+    @BeforeAll
+    static void requireImageMagick() {
+        assumeTrue(onPath(COMMAND), COMMAND + " is not on the PATH");
+    }
+
+    @AfterEach
+    void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    void resizesJpegPngAndGif() throws Exception {
+        pool = start(2, 200);
+        for (String format : new String[]{"jpg", "png", "gif"}) {
+            byte[] resized = pool.resizeImage(encode(image(400, 300), format), format, format, 64, 64);
+            assertResized(resized, format);
+        }
+    }
+
+    @Test
+    void failsCorruptImageAndReplacesProcess() throws Exception {
+        pool = start(1, 200);
+        byte[] corrupt = "not an image at all".getBytes(StandardCharsets.US_ASCII);
+        assertThrows(IOException.class, () -> pool.resizeImage(corrupt, "png", "png", 64, 64));
+        // The process that failed is discarded; the next job gets a new one
+        assertResized(pool.resizeImage(encode(image(400, 300), "png"), "png", "png", 64, 64), "png");
+    }
+
+    @Test
+    void recyclesProcessesAfterMaxJobs() throws Exception {
+        LongAdder started = Metrics.global().counter("imagemagick_processes_started_total", "", "");
+        // The health check at start counts as the first job of the only process
+        pool = start(1, 2);
+        long before = started.sum();
+        byte[] png = encode(image(400, 300), "png");
+        for (int i = 0; i < 6; i++) {
+            assertResized(pool.resizeImage(png, "png", "png", 64, 64), "png job " + i);
+        }
+        // Every second job needs a new process, and each one ends its script and exits gracefully
+        assertEquals(before + 3, started.sum());
+    }
+
+    private static ImageMagickPool start(int size, int maxJobs) {
+        ImageMagickPool pool = ImageMagickPool.start(COMMAND, size, maxJobs, 20_000, 60_000);
+        assertNotNull(pool, "Processes failed their first health check");
+        return pool;
+    }
+
+    // 64x48 after the resize, centred on a white 64x64 canvas
+    private static void assertResized(byte[] resized, String message) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(resized));
+        assertNotNull(decoded, message);
+        assertEquals(64, decoded.getWidth(), message);
+        assertEquals(64, decoded.getHeight(), message);
+        assertTrue(near(decoded.getRGB(32, 2), 0xffffff), message + ": padding is white");
+        assertTrue(near(decoded.getRGB(32, 32), 0x336699), message + ": image is in the middle");
+    }
+
+    // Within what JPEG and a GIF palette leave of a flat colour
+    private static boolean near(int rgb, int expected) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            if (Math.abs((rgb >> shift & 0xff) - (expected >> shift & 0xff)) > 24) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static BufferedImage image(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(0x336699));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, format, out), "No ImageIO writer for " + format);
+        return out.toByteArray();
+    }
+
+    private static boolean onPath(String command) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String directory : path.split(File.pathSeparator)) {
+            if (!directory.isEmpty() && Files.isExecutable(Paths.get(directory, command))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
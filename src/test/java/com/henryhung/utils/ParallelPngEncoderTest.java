@@ -0,0 +1,195 @@
+package com.henryhung.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The encoder joins separately deflated bands into one zlib stream by hand, so check the result the way a strict
+// decoder would: every chunk CRC, one complete zlib stream with a matching Adler-32, and the pixels read back
+class ParallelPngEncoderTest {
+
+    private static final int[] IMAGE_TYPES = {
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_BYTE_GRAY,
+    };
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void combinesAdlerChecksumsOfPieces() {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(200_000)];
+            random.nextBytes(data);
+            int split = data.length == 0 ? 0 : random.nextInt(data.length + 1);
+            long first = adler(data, 0, split);
+            long second = adler(data, split, data.length - split);
+            assertEquals(adler(data, 0, data.length), ParallelPngEncoder.combineAdler(first, second, data.length - split), "split at " + split);
+        }
+    }
+
+    @Test
+    void writesValidStreamsAtEveryBandCount() throws Exception {
+        Random random = new Random(11);
+        BufferedImage image = image(random, BufferedImage.TYPE_INT_RGB, 300, 400);
+        // One band, a few, and the most the 32 KB minimum band allows
+        for (int bandBytes : new int[]{Integer.MAX_VALUE, 200_000, 100_000, 32 * 1024}) {
+            ParallelPngEncoder encoder = new ParallelPngEncoder(pool, 4, ParallelPngEncoder.Filter.ADAPTIVE, bandBytes);
+            byte[] png = encode(encoder, image);
+            // One IDAT chunk per band
+            int rowsPerBand = Math.max(1, bandBytes / (300 * 3 + 1));
+            assertEquals((400 + rowsPerBand - 1) / rowsPerBand, idatCount(png), "bands of " + bandBytes + " bytes");
+            assertValidPng(png, image);
+        }
+    }
+
+    @Test
+    void roundTripsEveryFilterLevelAndImageType() throws Exception {
+        Random random = new Random(13);
+        for (int type : IMAGE_TYPES) {
+            BufferedImage image = image(random, type, 161, 257);
+            for (ParallelPngEncoder.Filter filter : ParallelPngEncoder.Filter.values()) {
+                for (int level : new int[]{Deflater.DEFAULT_COMPRESSION, 0, 1, 4, 9}) {
+                    ParallelPngEncoder encoder = new ParallelPngEncoder(pool, level, filter, 32 * 1024);
+                    assertValidPng(encode(encoder, image), image);
+                }
+            }
+        }
+    }
+
+    @Test
+    void encodesTinyImages() throws Exception {
+        ParallelPngEncoder encoder = new ParallelPngEncoder(pool, 4, ParallelPngEncoder.Filter.ADAPTIVE, 32 * 1024);
+        for (int size : new int[]{1, 2, 3}) {
+            BufferedImage image = image(new Random(size), BufferedImage.TYPE_INT_ARGB, size, size);
+            assertValidPng(encode(encoder, image), image);
+        }
+    }
+
+    // Noise over gradients and flat areas, so that every filter gets picked and the bands compress differently
+    private static BufferedImage image(Random random, int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb;
+                if (y < height / 3) {
+                    argb = 0xff000000 | (x * 255 / Math.max(1, width - 1)) << 16 | (y * 255 / Math.max(1, height - 1)) << 8 | 0x40;
+                } else if (y < 2 * height / 3) {
+                    argb = random.nextInt();
+                } else {
+                    argb = 0x80336699;
+                }
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(ParallelPngEncoder encoder, BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.write(image, out);
+        return out.toByteArray();
+    }
+
+    private static void assertValidPng(byte[] png, BufferedImage expected) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(png);
+        byte[] signature = new byte[8];
+        buffer.get(signature);
+        assertArrayEquals(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, signature);
+
+        ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+        String type = "";
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            byte[] typeAndData = new byte[4 + length];
+            buffer.get(typeAndData);
+            CRC32 crc = new CRC32();
+            crc.update(typeAndData);
+            assertEquals(crc.getValue(), buffer.getInt() & 0xffffffffL, "CRC of chunk");
+            type = new String(typeAndData, 0, 4, StandardCharsets.US_ASCII);
+            if (type.equals("IDAT")) {
+                zlib.write(typeAndData, 4, length);
+            }
+        }
+        assertEquals("IEND", type);
+
+        // Inflater checks the zlib header and the Adler-32 of the whole stream
+        byte[] compressed = zlib.toByteArray();
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] chunk = new byte[64 * 1024];
+        long inflated = 0;
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new AssertionError("Invalid zlib stream: " + e.getMessage(), e);
+        }
+        assertTrue(inflater.finished(), "zlib stream ends");
+        assertEquals(0, inflater.getRemaining(), "bytes after the zlib stream");
+        inflater.end();
+        int channels = expected.getColorModel().getNumComponents();
+        assertEquals((long) expected.getHeight() * (expected.getWidth() * channels + 1), inflated, "filtered bytes");
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(decoded);
+        assertEquals(expected.getWidth(), decoded.getWidth());
+        assertEquals(expected.getHeight(), decoded.getHeight());
+        int[] expectedPixels = expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0, expected.getWidth());
+        int[] decodedPixels = decoded.getRGB(0, 0, decoded.getWidth(), decoded.getHeight(), null, 0, decoded.getWidth());
+        assertTrue(Arrays.equals(expectedPixels, decodedPixels), "pixels read back differ");
+    }
+
+    private static int idatCount(byte[] png) {
+        ByteBuffer buffer = ByteBuffer.wrap(png, 8, png.length - 8);
+        int count = 0;
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            byte[] type = new byte[4];
+            buffer.get(type);
+            if (new String(type, StandardCharsets.US_ASCII).equals("IDAT")) {
+                count++;
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+        return count;
+    }
+
+    private static long adler(byte[] data, int offset, int length) {
+        Adler32 adler = new Adler32();
+        adler.update(data, offset, length);
+        return adler.getValue();
+    }
+}
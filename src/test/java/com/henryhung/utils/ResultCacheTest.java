@@ -0,0 +1,139 @@
+package com.henryhung.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void servesEntriesFromMemory() {
+        ResultCache cache = new ResultCache(1024, null, 0);
+        cache.put("a", new byte[]{1, 2, 3});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void keysFromStreamedDigestMatchKeysFromBytes() throws Exception {
+        byte[] content = new byte[100_000];
+        new Random(3).nextBytes(content);
+        MessageDigest digest = ResultCache.contentDigest();
+        try (InputStream stream = new DigestInputStream(new ByteArrayInputStream(content), digest)) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        }
+        List<String> parameters = List.of("resize=64x64", "resize=256x256");
+
+        assertEquals(ResultCache.cacheKeys(content, parameters), ResultCache.cacheKeys(digest, parameters));
+        // The digest is left as it was, so the same upload can be keyed again
+        assertEquals(ResultCache.cacheKey(content, "resize=64x64"), ResultCache.cacheKey(digest, "resize=64x64"));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedFromMemory() {
+        ResultCache cache = new ResultCache(1000, null, 0);
+        cache.put("a", new byte[250]);
+        cache.put("b", new byte[250]);
+        cache.put("c", new byte[250]);
+        cache.get("a");
+        cache.put("d", new byte[250]);
+        cache.put("e", new byte[250]);
+
+        assertNull(cache.get("b"));
+        assertTrue(cache.get("a") != null);
+        assertTrue(cache.getMemoryBytes() <= 1000);
+    }
+
+    @Test
+    void keepsEntriesOnDiskAcrossInstances() {
+        File diskDirectory = directory.toFile();
+        ResultCache cache = new ResultCache(1024, diskDirectory, 1024 * 1024);
+        cache.put("a", new byte[]{4, 5, 6});
+
+        ResultCache reopened = new ResultCache(1024, diskDirectory, 1024 * 1024);
+        assertArrayEquals(new byte[]{4, 5, 6}, reopened.get("a"));
+        assertEquals(3, reopened.getDiskBytes());
+    }
+
+    @Test
+    void deletesEvictedFilesFromDisk() throws Exception {
+        ResultCache cache = new ResultCache(1024, directory.toFile(), 1000);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, new byte[300]);
+        }
+
+        assertTrue(cache.getDiskBytes() <= 1000);
+        try (var files = Files.list(directory)) {
+            assertEquals(cache.getDiskBytes(), files.mapToLong(file -> file.toFile().length()).sum());
+        }
+        // Too large for the memory tier, so this comes from disk
+        assertArrayEquals(new byte[300], cache.get("k9"));
+    }
+
+    @Test
+    void forgetsFilesRemovedBehindItsBack() throws Exception {
+        ResultCache cache = new ResultCache(1024, directory.toFile(), 1024 * 1024);
+        cache.put("a", new byte[600]);
+        try (var files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getDiskBytes());
+    }
+
+    @Test
+    void handlesConcurrentPutsAndGets() throws Exception {
+        ResultCache cache = new ResultCache(64 * 1024, directory.toFile(), 256 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> tasks = IntStream.range(0, 8).mapToObj(thread -> executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    String key = "k" + (i % 50);
+                    byte[] value = cache.get(key);
+                    if (value == null) {
+                        cache.put(key, new byte[1024 + i % 50]);
+                    } else {
+                        assertEquals(1024 + i % 50, value.length);
+                    }
+                }
+            })).collect(Collectors.toList());
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(cache.getDiskBytes() <= 256 * 1024);
+        assertArrayEquals(new byte[1024 + 7], cache.get("k7"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.henryhung.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The Vector API resampler and the scalar fallback must produce the same pixels, up to float rounding,
+// whether or not the JVM was started with jdk.incubator.vector
+class SeparableResamplerTest {
+
+    private static final int[][] DIMENSIONS = {
+            // source width, source height, target width, target height
+            {640, 480, 128, 96},
+            {333, 517, 61, 97},
+            {97, 61, 333, 197},
+            {256, 256, 255, 255},
+            {7, 5, 3, 2},
+    };
+
+    @Test
+    void vectorAndScalarResultsMatch() {
+        Random random = new Random(42);
+        SeparableResampler scalar = new SeparableResampler();
+        SeparableResampler vector = new VectorResampler();
+        for (int[] dimensions : DIMENSIONS) {
+            int[] pixels = image(random, dimensions[0], dimensions[1]);
+            for (SeparableResampler.Kernel kernel : SeparableResampler.Kernel.values()) {
+                byte[] expected = resize(scalar, kernel, pixels, dimensions);
+                byte[] actual = resize(vector, kernel, pixels, dimensions);
+                int difference = maxDifference(expected, actual);
+                assertTrue(difference <= 1, kernel + " " + dimensions[0] + "x" + dimensions[1] + " -> "
+                        + dimensions[2] + "x" + dimensions[3] + " differs by " + difference + " levels");
+            }
+        }
+    }
+
+    @Test
+    void keepsFlatColourExact() {
+        int[] dimensions = {300, 200, 75, 50};
+        int[] pixels = new int[dimensions[0] * dimensions[1]];
+        Arrays.fill(pixels, 0x336699);
+        byte[] expected = new byte[dimensions[2] * dimensions[3] * 3];
+        for (int i = 0; i < expected.length; i += 3) {
+            expected[i] = (byte) 0x99;
+            expected[i + 1] = 0x66;
+            expected[i + 2] = 0x33;
+        }
+        for (SeparableResampler.Kernel kernel : SeparableResampler.Kernel.values()) {
+            assertArrayEquals(expected, resize(new SeparableResampler(), kernel, pixels, dimensions), kernel + " scalar");
+            assertArrayEquals(expected, resize(new VectorResampler(), kernel, pixels, dimensions), kernel + " vector");
+        }
+    }
+
+    // Smooth gradients with noise and hard edges, so that the kernels' negative lobes overshoot
+    private static int[] image(Random random, int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / Math.max(1, width - 1) + random.nextInt(32)) & 0xff;
+                int g = ((x / 8 + y / 8) % 2 == 0) ? 255 : 0;
+                int b = random.nextInt(256);
+                pixels[y * width + x] = r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] resize(SeparableResampler resampler, SeparableResampler.Kernel kernel, int[] pixels, int[] dimensions) {
+        int sourceWidth = dimensions[0];
+        int sourceHeight = dimensions[1];
+        int targetWidth = dimensions[2];
+        int targetHeight = dimensions[3];
+        resampler.begin(kernel, sourceWidth, sourceHeight, targetWidth, targetHeight);
+        for (int y = 0; y < sourceHeight; y++) {
+            resampler.filterRow(pixels, y * sourceWidth, y);
+        }
+        byte[] target = new byte[targetWidth * targetHeight * 3];
+        resampler.finish(target, 0, targetWidth * 3);
+        return target;
+    }
+
+    private static int maxDifference(byte[] expected, byte[] actual) {
+        int max = 0;
+        for (int i = 0; i < expected.length; i++) {
+            max = Math.max(max, Math.abs((expected[i] & 0xff) - (actual[i] & 0xff)));
+        }
+        return max;
+    }
+}